@@ -0,0 +1,52 @@
+package com.github.kdvolder.tttree;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+
+/**
+ * Base class for the immutable, tree-backed sets in this package.
+ * <p>
+ * The {@link AbstractSet} implementations of remove, removeAll and retainAll scan the set with an
+ * iterator and only fail when they try to remove an element through it. Subclasses provide an
+ * O(log(n)) {@link #contains} and this class uses it instead. The mutators still throw
+ * {@link UnsupportedOperationException} whenever they would actually change the set, and
+ * otherwise quietly return false.
+ */
+abstract class AbstractImmutableSet<E> extends AbstractSet<E> {
+
+	@Override
+	public abstract boolean contains(Object o);
+
+	@Override
+	public boolean remove(Object o) {
+		if (contains(o)) {
+			throw new UnsupportedOperationException("remove");
+		}
+		return false;
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		for (Object o : c) {
+			remove(o);
+		}
+		return false;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		for (E e : this) {
+			if (!c.contains(e)) {
+				throw new UnsupportedOperationException("retainAll");
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void clear() {
+		if (!isEmpty()) {
+			throw new UnsupportedOperationException("clear");
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.github.kdvolder.tttree;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces files such that after a crash, there is either the old or the complete new file.
+ */
+final class AtomicFiles {
+
+	private AtomicFiles() {}
+
+	private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+	/**
+	 * Atomically replace a file by another file in the same directory, whose contents must
+	 * already have been forced to disk. The directory is forced as well, since until then
+	 * a crash may bring back the old file.
+	 */
+	static void replace(Path source, Path target) throws IOException {
+		Files.move(source, target, ATOMIC_MOVE, REPLACE_EXISTING);
+		forceDirectory(target.toAbsolutePath().getParent());
+	}
+
+	/**
+	 * Force the entries of a directory to disk, so that the files created, moved or deleted in
+	 * it stay that way after a crash. On Windows a directory can't be opened, and this is
+	 * neither possible nor needed.
+	 */
+	static void forceDirectory(Path dir) throws IOException {
+		if (WINDOWS) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+}
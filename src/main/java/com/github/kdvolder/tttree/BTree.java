@@ -0,0 +1,618 @@
+package com.github.kdvolder.tttree;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable sorted map implemented by means of a persistent B-tree with a configurable fanout.
+ * <p>
+ * Like a {@link TTTree}, modified copies are created in O(log(n)) by copying only the nodes on the
+ * path from the root to the changed entry, and sharing all other nodes with the original. But rather
+ * than binary and ternary nodes and a separate leaf object per entry, a B-tree node holds up to
+ * 'fanout' children in an array. This makes the tree much shallower, lookups touch far
+ * fewer objects (and cache lines), and the memory overhead per entry is small. The price is that
+ * each update copies a few arrays of size 'fanout', so updates are slower for larger fanouts.
+ * <p>
+ * The entries themselves are packed into leaf pages of up to 'leafCapacity' entries each. A leaf
+ * page is a single array holding keys and values interleaved, so there is no per-entry object at
+ * all, and a key is stored right next to its value. Changing a single entry copies just that one
+ * small array plus the internal nodes above it.
+ * <p>
+ * Keys are sorted by their natural ordering, or by a {@link Comparator} given when creating the
+ * empty tree.
+ */
+public final class BTree<K, V> implements Iterable<Map.Entry<K, V>> {
+
+	public static final int DEFAULT_FANOUT = 32;
+
+	public static final int DEFAULT_LEAF_CAPACITY = 32;
+
+	/**
+	 * Smallest supported fanout. With a smaller fanout the minimum number of children of a
+	 * node would drop to 1.
+	 */
+	public static final int MIN_FANOUT = 4;
+
+	/**
+	 * Smallest supported number of entries per leaf page.
+	 */
+	public static final int MIN_LEAF_CAPACITY = 2;
+
+	private final Node root;
+	private final Comparator<? super K> cmp;
+	private final int fanout;
+	private final int leafCapacity;
+
+	private BTree(Node root, Comparator<? super K> cmp, int fanout, int leafCapacity) {
+		this.root = root;
+		this.cmp = cmp;
+		this.fanout = fanout;
+		this.leafCapacity = leafCapacity;
+	}
+
+	////////////////////////////////////
+	// public api
+	////////////////////////////////////
+
+	/**
+	 * Create an empty tree with the {@link #DEFAULT_FANOUT} and {@link #DEFAULT_LEAF_CAPACITY},
+	 * sorted by the natural ordering of its keys.
+	 */
+	public static <K extends Comparable<K>, V> BTree<K, V> empty() {
+		return empty(null, DEFAULT_FANOUT, DEFAULT_LEAF_CAPACITY);
+	}
+
+	/**
+	 * Create an empty tree with a given fanout, sorted by the natural ordering of its keys.
+	 * Leaf pages hold up to 'fanout' entries.
+	 */
+	public static <K extends Comparable<K>, V> BTree<K, V> empty(int fanout) {
+		return empty(null, fanout, fanout);
+	}
+
+	/**
+	 * Create an empty tree with a given fanout, sorted by a comparator (or by the natural
+	 * ordering of the keys if the comparator is null). Leaf pages hold up to 'fanout' entries.
+	 */
+	public static <K, V> BTree<K, V> empty(Comparator<? super K> comparator, int fanout) {
+		return empty(comparator, fanout, fanout);
+	}
+
+	/**
+	 * Create an empty tree with a given fanout for internal nodes and a given capacity for leaf
+	 * pages, sorted by a comparator (or by the natural ordering of the keys if the comparator is null).
+	 * <p>
+	 * Larger leaf pages use less memory per entry, smaller ones make single-entry updates cheaper.
+	 *
+	 * @throws IllegalArgumentException if fanout is smaller than {@link #MIN_FANOUT} or leafCapacity
+	 *      is smaller than {@link #MIN_LEAF_CAPACITY}.
+	 */
+	public static <K, V> BTree<K, V> empty(Comparator<? super K> comparator, int fanout, int leafCapacity) {
+		if (fanout<MIN_FANOUT) {
+			throw new IllegalArgumentException("Fanout must be at least "+MIN_FANOUT+": "+fanout);
+		}
+		if (leafCapacity<MIN_LEAF_CAPACITY) {
+			throw new IllegalArgumentException("Leaf capacity must be at least "+MIN_LEAF_CAPACITY+": "+leafCapacity);
+		}
+		return new BTree<>(EMPTY_LEAF, comparator, fanout, leafCapacity);
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(K k) {
+		Node node = root;
+		while (node instanceof Inner) {
+			Inner inner = (Inner) node;
+			node = inner.children[inner.childIndex(cmp, k)];
+		}
+		Leaf leaf = (Leaf) node;
+		int i = leaf.indexOf(cmp, k);
+		return i>=0 ? (V) leaf.entries[2*i+1] : null;
+	}
+
+	public boolean containsKey(K k) {
+		Node node = root;
+		while (node instanceof Inner) {
+			Inner inner = (Inner) node;
+			node = inner.children[inner.childIndex(cmp, k)];
+		}
+		return ((Leaf) node).indexOf(cmp, k)>=0;
+	}
+
+	/**
+	 * Create a copy of this tree with a given key associated to a value. If the key is
+	 * already associated to an equal value, this tree itself is returned.
+	 */
+	public BTree<K, V> put(K k, V v) {
+		Node newRoot = root.put(this, k, v);
+		if (newRoot==root) {
+			return this;
+		} else if (newRoot.count()>newRoot.capacity(this)) {
+			Node[] halves = newRoot.split();
+			newRoot = new Inner(
+					new Object[] { halves[1].firstKey() },
+					new Node[] { halves[0], halves[1] }
+			);
+		}
+		return new BTree<>(newRoot, cmp, fanout, leafCapacity);
+	}
+
+	/**
+	 * Create a copy of this tree without the entry for a given key. If there is no such
+	 * entry, this tree itself is returned.
+	 */
+	public BTree<K, V> remove(K k) {
+		Node newRoot = root.remove(this, k);
+		if (newRoot==root) {
+			return this;
+		} else if (newRoot instanceof Inner && newRoot.count()==1) {
+			newRoot = ((Inner) newRoot).children[0];
+		}
+		return new BTree<>(newRoot, cmp, fanout, leafCapacity);
+	}
+
+	/**
+	 * Number of entries in the tree. O(1).
+	 */
+	public int size() {
+		return root.size();
+	}
+
+	public boolean isEmpty() {
+		return root.size()==0;
+	}
+
+	public int getFanout() {
+		return fanout;
+	}
+
+	public int getLeafCapacity() {
+		return leafCapacity;
+	}
+
+	/**
+	 * @return The comparator that orders the keys, or null for natural ordering.
+	 */
+	public Comparator<? super K> comparator() {
+		return cmp;
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new BTreeIterator();
+	}
+
+	/**
+	 * Calls an action for every key-value pair, in order.
+	 */
+	public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+		root.forEachEntry(action);
+	}
+
+	/**
+	 * For debugging. Dump tree structure in indented format onto sysout
+	 */
+	public void dump() {
+		root.dump(0);
+	}
+
+	@Override
+	public String toString() {
+		return "BTree(size="+size()+", fanout="+fanout+", leafCapacity="+leafCapacity+")";
+	}
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	private static final Leaf EMPTY_LEAF = new Leaf(new Object[0]);
+
+	/**
+	 * Find a key in a sorted range of an array. Returns the index of the key if it is found,
+	 * or (-(insertion point) - 1) if it isn't, like {@link Arrays#binarySearch}.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K> int search(Comparator<? super K> cmp, Object[] keys, int from, int to, K k) {
+		int lo = from;
+		int hi = to-1;
+		while (lo<=hi) {
+			int mid = (lo+hi) >>> 1;
+			int c = TTTree.compare(cmp, (K) keys[mid], k);
+			if (c<0) {
+				lo = mid+1;
+			} else if (c>0) {
+				hi = mid-1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo+1);
+	}
+
+	private static <T> T[] insert(T[] array, int i, T e) {
+		T[] copy = Arrays.copyOf(array, array.length+1);
+		System.arraycopy(array, i, copy, i+1, array.length-i);
+		copy[i] = e;
+		return copy;
+	}
+
+	private static <T> T[] delete(T[] array, int i) {
+		T[] copy = Arrays.copyOf(array, array.length-1);
+		System.arraycopy(array, i+1, copy, i, copy.length-i);
+		return copy;
+	}
+
+	private static <T> T[] replace(T[] array, int i, T e) {
+		T[] copy = array.clone();
+		copy[i] = e;
+		return copy;
+	}
+
+	private static Object[] concat(Object[] a, Object[] b) {
+		Object[] result = Arrays.copyOf(a, a.length+b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static abstract class Node {
+
+		/**
+		 * Number of entries (for a leaf) or children (for an internal node).
+		 */
+		abstract int count();
+
+		/**
+		 * Largest number of entries or children this kind of node may have in a given tree.
+		 * Nodes other than the root must have at least half of that.
+		 */
+		abstract int capacity(BTree<?, ?> tree);
+
+		/**
+		 * Number of entries in the subtree.
+		 */
+		abstract int size();
+
+		abstract Object firstKey();
+
+		/**
+		 * Put an entry into the subtree. The result may hold one more than its {@link #capacity}
+		 * of children or entries, in which case the parent must {@link #split} it.
+		 */
+		abstract <K, V> Node put(BTree<K, V> tree, K k, V v);
+
+		/**
+		 * Remove an entry from the subtree. The result may have fewer than the minimum count
+		 * of children or entries, in which case the parent must merge it with a sibling.
+		 */
+		abstract <K, V> Node remove(BTree<K, V> tree, K k);
+
+		/**
+		 * Split a node into two halves.
+		 */
+		abstract Node[] split();
+
+		/**
+		 * Concatenate this node with its right sibling, which are separated by a given key.
+		 */
+		abstract Node merge(Object separator, Node right);
+
+		abstract <K, V> void forEachEntry(BiConsumer<? super K, ? super V> action);
+
+		abstract void dump(int indent);
+
+		void print(int indent, Object msg) {
+			for (int i = 0; i < indent; i++) {
+				System.out.print("  ");
+			}
+			System.out.println(msg);
+		}
+	}
+
+	/**
+	 * A leaf page, holding a sorted run of entries. Keys and values are interleaved in a
+	 * single array: entries[2*i] is the i-th key and entries[2*i+1] its value.
+	 */
+	private static final class Leaf extends Node {
+		final Object[] entries;
+
+		Leaf(Object[] entries) {
+			this.entries = entries;
+		}
+
+		/**
+		 * Find the index of the entry with a given key, or (-(insertion point) - 1) if there is none.
+		 */
+		@SuppressWarnings("unchecked")
+		<K> int indexOf(Comparator<? super K> cmp, K k) {
+			int lo = 0;
+			int hi = entries.length/2-1;
+			while (lo<=hi) {
+				int mid = (lo+hi) >>> 1;
+				int c = TTTree.compare(cmp, (K) entries[2*mid], k);
+				if (c<0) {
+					lo = mid+1;
+				} else if (c>0) {
+					hi = mid-1;
+				} else {
+					return mid;
+				}
+			}
+			return -(lo+1);
+		}
+
+		@Override
+		int count() {
+			return entries.length/2;
+		}
+
+		@Override
+		int capacity(BTree<?, ?> tree) {
+			return tree.leafCapacity;
+		}
+
+		@Override
+		int size() {
+			return entries.length/2;
+		}
+
+		@Override
+		Object firstKey() {
+			return entries[0];
+		}
+
+		@Override
+		<K, V> Node put(BTree<K, V> tree, K k, V v) {
+			int i = indexOf(tree.cmp, k);
+			if (i>=0) {
+				if (Objects.equals(entries[2*i+1], v)) {
+					return this;
+				}
+				return new Leaf(replace(entries, 2*i+1, v));
+			}
+			i = -(i+1);
+			Object[] newEntries = new Object[entries.length+2];
+			System.arraycopy(entries, 0, newEntries, 0, 2*i);
+			newEntries[2*i] = k;
+			newEntries[2*i+1] = v;
+			System.arraycopy(entries, 2*i, newEntries, 2*i+2, entries.length-2*i);
+			return new Leaf(newEntries);
+		}
+
+		@Override
+		<K, V> Node remove(BTree<K, V> tree, K k) {
+			int i = indexOf(tree.cmp, k);
+			if (i<0) {
+				return this;
+			}
+			Object[] newEntries = new Object[entries.length-2];
+			System.arraycopy(entries, 0, newEntries, 0, 2*i);
+			System.arraycopy(entries, 2*i+2, newEntries, 2*i, newEntries.length-2*i);
+			return new Leaf(newEntries);
+		}
+
+		@Override
+		Node[] split() {
+			int half = 2*(count()/2);
+			return new Node[] {
+				new Leaf(Arrays.copyOfRange(entries, 0, half)),
+				new Leaf(Arrays.copyOfRange(entries, half, entries.length))
+			};
+		}
+
+		@Override
+		Node merge(Object separator, Node right) {
+			return new Leaf(concat(entries, ((Leaf) right).entries));
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		<K, V> void forEachEntry(BiConsumer<? super K, ? super V> action) {
+			for (int i = 0; i < entries.length; i+=2) {
+				action.accept((K) entries[i], (V) entries[i+1]);
+			}
+		}
+
+		@Override
+		void dump(int indent) {
+			for (int i = 0; i < entries.length; i+=2) {
+				print(indent, entries[i]+" = "+entries[i+1]);
+			}
+		}
+	}
+
+	/**
+	 * An internal node. The keys separate the children: keys[i] is the smallest key that
+	 * may occur in children[i+1], and is larger than all keys in children[0..i].
+	 */
+	private static final class Inner extends Node {
+		final Object[] keys;
+		final Node[] children;
+		final int size;
+
+		Inner(Object[] keys, Node[] children) {
+			this.keys = keys;
+			this.children = children;
+			int size = 0;
+			for (Node c : children) {
+				size += c.size();
+			}
+			this.size = size;
+		}
+
+		<K> int childIndex(Comparator<? super K> cmp, K k) {
+			int i = search(cmp, keys, 0, keys.length, k);
+			return i>=0 ? i+1 : -(i+1);
+		}
+
+		@Override
+		int count() {
+			return children.length;
+		}
+
+		@Override
+		int capacity(BTree<?, ?> tree) {
+			return tree.fanout;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		Object firstKey() {
+			return children[0].firstKey();
+		}
+
+		@Override
+		<K, V> Node put(BTree<K, V> tree, K k, V v) {
+			int i = childIndex(tree.cmp, k);
+			Node child = children[i];
+			Node newChild = child.put(tree, k, v);
+			if (newChild==child) {
+				return this;
+			} else if (newChild.count()>newChild.capacity(tree)) {
+				Node[] halves = newChild.split();
+				Node[] newChildren = insert(children, i+1, halves[1]);
+				newChildren[i] = halves[0];
+				return new Inner(insert(keys, i, halves[1].firstKey()), newChildren);
+			}
+			return new Inner(keys, replace(children, i, newChild));
+		}
+
+		@Override
+		<K, V> Node remove(BTree<K, V> tree, K k) {
+			int i = childIndex(tree.cmp, k);
+			Node child = children[i];
+			Node newChild = child.remove(tree, k);
+			if (newChild==child) {
+				return this;
+			} else if (newChild.count()>=newChild.capacity(tree)/2) {
+				return new Inner(keys, replace(children, i, newChild));
+			}
+			//Underflow: merge the child with a sibling, and split the result again if it is too big.
+			int left = i>0 ? i-1 : i;
+			Node merged = left==i
+					? newChild.merge(keys[i], children[i+1])
+					: children[left].merge(keys[left], newChild);
+			if (merged.count()<=merged.capacity(tree)) {
+				Node[] newChildren = delete(children, left+1);
+				newChildren[left] = merged;
+				return new Inner(delete(keys, left), newChildren);
+			}
+			Node[] halves = merged.split();
+			Node[] newChildren = children.clone();
+			newChildren[left] = halves[0];
+			newChildren[left+1] = halves[1];
+			return new Inner(replace(keys, left, halves[1].firstKey()), newChildren);
+		}
+
+		@Override
+		Node[] split() {
+			int half = children.length/2;
+			return new Node[] {
+				new Inner(Arrays.copyOfRange(keys, 0, half-1), Arrays.copyOfRange(children, 0, half)),
+				new Inner(Arrays.copyOfRange(keys, half, keys.length), Arrays.copyOfRange(children, half, children.length))
+			};
+		}
+
+		@Override
+		Node merge(Object separator, Node right) {
+			Inner r = (Inner) right;
+			Object[] newKeys = new Object[keys.length+1+r.keys.length];
+			System.arraycopy(keys, 0, newKeys, 0, keys.length);
+			newKeys[keys.length] = separator;
+			System.arraycopy(r.keys, 0, newKeys, keys.length+1, r.keys.length);
+			Node[] newChildren = Arrays.copyOf(children, children.length+r.children.length);
+			System.arraycopy(r.children, 0, newChildren, children.length, r.children.length);
+			return new Inner(newKeys, newChildren);
+		}
+
+		@Override
+		<K, V> void forEachEntry(BiConsumer<? super K, ? super V> action) {
+			for (Node c : children) {
+				c.forEachEntry(action);
+			}
+		}
+
+		@Override
+		void dump(int indent) {
+			for (int i = 0; i < children.length; i++) {
+				if (i>0) {
+					print(indent, keys[i-1]);
+				}
+				children[i].dump(indent+1);
+			}
+		}
+	}
+
+	/**
+	 * Iterates the entries in order. Keeps the path from the root to the current leaf, along
+	 * with the position within each node along that path.
+	 */
+	private final class BTreeIterator implements Iterator<Map.Entry<K, V>> {
+
+		private Node[] path = new Node[4];
+		private int[] pos = new int[4];
+		private int depth = 0; //number of nodes on the path; path[depth-1] is the current leaf
+
+		BTreeIterator() {
+			if (root.size()>0) {
+				descend(root);
+			}
+		}
+
+		/**
+		 * Push a node and its leftmost descendants onto the path.
+		 */
+		private void descend(Node node) {
+			while (true) {
+				if (depth==path.length) {
+					path = Arrays.copyOf(path, depth*2);
+					pos = Arrays.copyOf(pos, depth*2);
+				}
+				path[depth] = node;
+				pos[depth++] = 0;
+				if (node instanceof Leaf) {
+					return;
+				}
+				node = ((Inner) node).children[0];
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return depth>0;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Map.Entry<K, V> next() {
+			if (depth==0) {
+				throw new NoSuchElementException();
+			}
+			Leaf leaf = (Leaf) path[depth-1];
+			int i = pos[depth-1]++;
+			Map.Entry<K, V> entry = new SimpleImmutableEntry<>((K) leaf.entries[2*i], (V) leaf.entries[2*i+1]);
+			if (pos[depth-1]==leaf.count()) {
+				//Leaf exhausted, move to the next one
+				depth--;
+				while (depth>0) {
+					Inner inner = (Inner) path[depth-1];
+					int next = ++pos[depth-1];
+					if (next<inner.children.length) {
+						descend(inner.children[next]);
+						break;
+					}
+					depth--;
+				}
+			}
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.github.kdvolder.tttree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * The binary format of {@link TTTree#writeTo} and {@link TTTree#readFrom}, which is also
+ * used by {@link TTTMap} and {@link TTTSet}. It consists of:
+ * <ul>
+ *   <li>a 4 byte magic number,</li>
+ *   <li>a version byte (currently 1),</li>
+ *   <li>a flags byte, telling whether the entries include values (they don't for a set),</li>
+ *   <li>the number of entries, as a variable length integer,</li>
+ *   <li>the entries in ascending order, each a key followed by its value, written by the codecs.</li>
+ * </ul>
+ * Because the entries are sorted, the reader builds the tree bottom-up in O(n) time with
+ * {@link TTTree#fromSorted}. The reader consumes exactly the bytes of the tree, so a tree
+ * can be followed by other data in the same stream or channel.
+ */
+final class BinaryFormat {
+
+	private BinaryFormat() {}
+
+	private static final int MAGIC = 0x54545446; //"TTTF"
+	private static final int VERSION = 1;
+	private static final int HAS_VALUES = 1;
+
+	/**
+	 * Write a tree to a stream. The stream is flushed but not closed.
+	 *
+	 * @param valueCodec Codec for the values, or null to write only the keys.
+	 */
+	static <K, V> void write(TTTree<K, V> tree, OutputStream os, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(valueCodec!=null ? HAS_VALUES : 0);
+		Codecs.writeVarLong(out, tree.size());
+		for (Map.Entry<K, V> e : tree) {
+			keyCodec.write(out, e.getKey());
+			if (valueCodec!=null) {
+				valueCodec.write(out, e.getValue());
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Read a tree from a stream. The stream is not buffered here, so that no bytes beyond
+	 * those of the tree are consumed from it.
+	 *
+	 * @param valueCodec Codec for the values, or null if the stream should hold only keys.
+	 * @param noValue The value of every entry, when there is no valueCodec.
+	 */
+	static <K, V> TTTree<K, V> read(InputStream is, Comparator<? super K> cmp, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec, V noValue) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt()!=MAGIC) {
+			throw new StreamCorruptedException("Not a TTTree stream");
+		}
+		int version = in.readUnsignedByte();
+		if (version!=VERSION) {
+			throw new InvalidObjectException("Unsupported format version: "+version);
+		}
+		boolean hasValues = (in.readUnsignedByte() & HAS_VALUES)!=0;
+		if (hasValues!=(valueCodec!=null)) {
+			throw new InvalidObjectException(hasValues ? "Stream holds a map, not a set" : "Stream holds a set, not a map");
+		}
+		long size = Codecs.readVarLong(in);
+		if (size<0 || size>Integer.MAX_VALUE) {
+			throw new StreamCorruptedException("Bad size: "+size);
+		}
+		Iterator<Map.Entry<K, V>> entries = new Iterator<Map.Entry<K, V>>() {
+			int remaining = (int) size;
+
+			@Override
+			public boolean hasNext() {
+				return remaining>0;
+			}
+
+			@Override
+			public Map.Entry<K, V> next() {
+				if (remaining==0) {
+					throw new NoSuchElementException();
+				}
+				remaining--;
+				try {
+					K k = keyCodec.read(in);
+					V v = valueCodec!=null ? valueCodec.read(in) : noValue;
+					return new SimpleImmutableEntry<>(k, v);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+		try {
+			return TTTree.fromSorted(cmp, entries, null);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} catch (IllegalArgumentException e) {
+			//Keys out of order or duplicated
+			throw new StreamCorruptedException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Read a tree from a channel. A {@link SeekableByteChannel}, such as a file channel, is read
+	 * through a buffer, after which its position is set to the end of the tree (or to the end
+	 * of the bytes that were used, if reading fails). Other channels are read without a buffer,
+	 * like a stream, since bytes read ahead could not be given back. That costs a read from the
+	 * channel for every byte of the fixed-size and variable-length numbers, which the codecs read
+	 * one byte at a time; only byte arrays, such as the contents of strings, are read in one go.
+	 * The length prefixes can't be used to bound a buffer, because the codecs decide how many
+	 * bytes they read. A caller that owns the rest of the channel should rather read from a
+	 * buffered stream over it.
+	 */
+	static <K, V> TTTree<K, V> read(ReadableByteChannel channel, Comparator<? super K> cmp, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec, V noValue) throws IOException {
+		if (channel instanceof SeekableByteChannel) {
+			SeekableByteChannel seekable = (SeekableByteChannel) channel;
+			long start = seekable.position();
+			CountingInputStream in = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(seekable)));
+			try {
+				return read(in, cmp, keyCodec, valueCodec, noValue);
+			} finally {
+				seekable.position(start+in.getCount());
+			}
+		}
+		return read(Channels.newInputStream(channel), cmp, keyCodec, valueCodec, noValue);
+	}
+}
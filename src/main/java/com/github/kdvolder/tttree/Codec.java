@@ -0,0 +1,16 @@
+package com.github.kdvolder.tttree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads values of some type in the binary format of {@link TTTree#writeTo}
+ * and {@link TTTree#readFrom}. See {@link Codecs} for codecs of common types.
+ */
+public interface Codec<T> {
+
+	void write(DataOutput out, T value) throws IOException;
+
+	T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,112 @@
+package com.github.kdvolder.tttree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link Codec}s for common types. Numbers are written as variable length integers, so
+ * that small values (positive or negative) take only one or two bytes.
+ */
+public final class Codecs {
+
+	private Codecs() {}
+
+	public static final Codec<Integer> INT = new Codec<Integer>() {
+		@Override
+		public void write(DataOutput out, Integer value) throws IOException {
+			writeVarLong(out, value);
+		}
+
+		@Override
+		public Integer read(DataInput in) throws IOException {
+			long v = readVarLong(in);
+			if ((int) v != v) {
+				throw new StreamCorruptedException("Not an int: "+v);
+			}
+			return (int) v;
+		}
+	};
+
+	public static final Codec<Long> LONG = new Codec<Long>() {
+		@Override
+		public void write(DataOutput out, Long value) throws IOException {
+			writeVarLong(out, value);
+		}
+
+		@Override
+		public Long read(DataInput in) throws IOException {
+			return readVarLong(in);
+		}
+	};
+
+	/**
+	 * Writes strings as their length in bytes followed by their UTF-8 encoding.
+	 */
+	public static final Codec<String> STRING = new Codec<String>() {
+		@Override
+		public void write(DataOutput out, String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(out, bytes.length);
+			out.write(bytes);
+		}
+
+		@Override
+		public String read(DataInput in) throws IOException {
+			long length = readVarLong(in);
+			if (length<0 || length>Integer.MAX_VALUE) {
+				throw new StreamCorruptedException("Bad string length: "+length);
+			}
+			byte[] bytes = new byte[(int) length];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+
+	/**
+	 * Wrap a codec so that it also accepts null, at the cost of one extra byte per value.
+	 */
+	public static <T> Codec<T> nullable(Codec<T> codec) {
+		return new Codec<T>() {
+			@Override
+			public void write(DataOutput out, T value) throws IOException {
+				out.writeBoolean(value!=null);
+				if (value!=null) {
+					codec.write(out, value);
+				}
+			}
+
+			@Override
+			public T read(DataInput in) throws IOException {
+				return in.readBoolean() ? codec.read(in) : null;
+			}
+		};
+	}
+
+	/**
+	 * Write a zigzag encoded variable length integer: 7 bits per byte, with the high bit
+	 * set on all bytes but the last.
+	 */
+	static void writeVarLong(DataOutput out, long v) throws IOException {
+		long zigzag = (v << 1) ^ (v >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.writeByte((int) (zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		out.writeByte((int) zigzag);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long zigzag = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80)==0) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new StreamCorruptedException("Variable length integer is too long");
+	}
+}
@@ -0,0 +1,205 @@
+package com.github.kdvolder.tttree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * Applies updates to a {@link ConcurrentTTTMap} by flat combining, for maps that are updated by
+ * many threads at once.
+ * <p>
+ * When many threads update a {@link ConcurrentTTTMap} directly, most of their compare-and-sets
+ * fail, and the paths they copied are thrown away. Instead, an updater puts every update in a
+ * lock-free queue. One thread at a time (the 'combiner', which is simply one of the threads
+ * submitting updates) takes all waiting updates from the queue and applies them as a batch, with
+ * a {@link TTTreeBuilder}, so the nodes copied for one update are modified in place by the next
+ * ones. The batch is installed with a single compare-and-set. The combiner then gives up its role,
+ * and only after that completes the futures of the updates, so that callbacks on the futures don't
+ * hold up the next batch. The other threads don't wait for their turn: their update is
+ * applied by the combiner and they get a future for its result. So that the combiner doesn't
+ * spend its own call applying everyone else's updates, it applies only a few batches per call,
+ * and hands the rest to the common {@link ForkJoinPool}.
+ * <p>
+ * Updates through an updater can be mixed with direct updates of the map, and with updates
+ * through other updaters; a batch is reapplied if the map was changed in the mean time. Like
+ * the map, an updater doesn't allow null keys or values. An update whose function throws an
+ * exception is skipped and its future completes exceptionally.
+ */
+public final class CombiningUpdater<K, V> {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+	//The maximum number of batches a thread applies while submitting a single update
+	private static final int MAX_BATCHES = 4;
+
+	private final ConcurrentTTTMap<K, V> map;
+	private final AtomicReference<TTTMap<K, V>> root;
+	private final int maxBatchSize;
+
+	private final ConcurrentLinkedQueue<Request<K, V>> pending = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean combining = new AtomicBoolean();
+
+	public CombiningUpdater(ConcurrentTTTMap<K, V> map) {
+		this(map, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	/**
+	 * Create an updater for a map. If the map is a range view, the updater updates the map it is
+	 * a view of, and only accepts keys in the range of the view.
+	 *
+	 * @param maxBatchSize The maximum number of updates applied with a single compare-and-set.
+	 */
+	public CombiningUpdater(ConcurrentTTTMap<K, V> map, int maxBatchSize) {
+		if (maxBatchSize<1) {
+			throw new IllegalArgumentException("Batch size must be positive: "+maxBatchSize);
+		}
+		this.map = map;
+		this.root = map.root();
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Associate a key with a value.
+	 *
+	 * @return A future for the previous value, or null if there was none.
+	 */
+	public CompletableFuture<V> put(K k, V v) {
+		Objects.requireNonNull(v);
+		return submit(k, (key, old) -> v, false);
+	}
+
+	/**
+	 * Remove the entry for a key.
+	 *
+	 * @return A future for the removed value, or null if there was none.
+	 */
+	public CompletableFuture<V> remove(K k) {
+		return submit(k, (key, old) -> null, false);
+	}
+
+	/**
+	 * Associate a key with the result of a function applied to the key and its current value (or
+	 * null if there is none), or remove the entry if the function returns null. The function
+	 * may be called more than once, and by another thread.
+	 *
+	 * @return A future for the new value, or null if there is none.
+	 */
+	public CompletableFuture<V> compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+		return submit(k, f, true);
+	}
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	/**
+	 * @throws IllegalArgumentException if the key is outside the range of the map, like
+	 *   {@link ConcurrentTTTMap#put} does.
+	 */
+	private CompletableFuture<V> submit(K k, BiFunction<? super K, ? super V, ? extends V> f, boolean returnsNew) {
+		map.checkKey(k);
+		Request<K, V> request = new Request<>(k, f, returnsNew);
+		pending.add(request);
+		combine();
+		return request.result;
+	}
+
+	/**
+	 * Apply the pending updates, unless another thread is doing that already. The queue is
+	 * checked again after giving up the combiner role, so an update added by a thread that
+	 * couldn't become the combiner is never left behind. After {@link #MAX_BATCHES} batches, the
+	 * remaining updates are handed to the common pool rather than applied by the caller.
+	 */
+	private void combine() {
+		for (int batches = 0; !pending.isEmpty(); batches++) {
+			if (batches==MAX_BATCHES) {
+				ForkJoinPool.commonPool().execute(this::combine);
+				return;
+			}
+			if (!combining.compareAndSet(false, true)) {
+				return;
+			}
+			List<Request<K, V>> batch = new ArrayList<>();
+			try {
+				Request<K, V> request;
+				while (batch.size()<maxBatchSize && (request = pending.poll())!=null) {
+					batch.add(request);
+				}
+				apply(batch);
+			} catch (Throwable e) {
+				//Not thrown by an update function, which applyTo catches, so the batch wasn't installed
+				for (Request<K, V> request : batch) {
+					request.failure = e;
+				}
+				throw e;
+			} finally {
+				combining.set(false);
+				for (Request<K, V> request : batch) {
+					request.complete();
+				}
+			}
+		}
+	}
+
+	private void apply(List<Request<K, V>> batch) {
+		for (int failures = 0; ; failures++) {
+			TTTMap<K, V> current = root.get();
+			TTTree<K, V> tree = current.tree();
+			TTTreeBuilder<K, V> builder = new TTTreeBuilder<>(tree, current.comparator());
+			for (Request<K, V> request : batch) {
+				request.applyTo(builder);
+			}
+			TTTree<K, V> updated = builder.persistent();
+			if (updated==tree || root.compareAndSet(current, new TTTMap<>(current.comparator(), updated))) {
+				break;
+			}
+			ConcurrentTTTMap.backoff(failures);
+		}
+	}
+
+	private static final class Request<K, V> {
+		final K k;
+		final BiFunction<? super K, ? super V, ? extends V> f;
+		final boolean returnsNew;
+		final CompletableFuture<V> result = new CompletableFuture<>();
+
+		//Outcome of the last application
+		V oldValue;
+		V newValue;
+		Throwable failure;
+
+		Request(K k, BiFunction<? super K, ? super V, ? extends V> f, boolean returnsNew) {
+			this.k = k;
+			this.f = f;
+			this.returnsNew = returnsNew;
+		}
+
+		void applyTo(TTTreeBuilder<K, V> builder) {
+			failure = null;
+			try {
+				builder.computeEntry(k, (key, e) -> {
+					oldValue = e==null ? null : e.getValue();
+					newValue = f.apply(key, oldValue);
+					return newValue==null ? TTTree.NO_ENTRY : newValue;
+				});
+			} catch (Throwable e) {
+				//The function is called before anything is changed, so the builder is unaffected
+				failure = e;
+			}
+		}
+
+		void complete() {
+			if (failure!=null) {
+				result.completeExceptionally(failure);
+			} else {
+				result.complete(returnsNew ? newValue : oldValue);
+			}
+		}
+	}
+}
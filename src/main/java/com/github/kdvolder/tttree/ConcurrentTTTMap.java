@@ -0,0 +1,774 @@
+package com.github.kdvolder.tttree;
+
+import static com.github.kdvolder.tttree.TTTree.NO_ENTRY;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import com.google.common.collect.Iterators;
+
+/**
+ * A thread-safe {@link ConcurrentNavigableMap} holding an immutable {@link TTTMap} in an
+ * {@link AtomicReference}.
+ * <p>
+ * Reads use the current map without any locking. An update computes a modified copy of the
+ * current map and installs it with a compare-and-set, retrying (after an exponentially growing,
+ * randomized pause) if another update got there first. Since each update copies only O(log(n))
+ * nodes, a failed attempt wastes little work. Every update is atomic, including bulk and
+ * compute-style operations; the functions passed to the latter may be called more than once.
+ * <p>
+ * {@link #snapshot} returns the current content as a {@link TTTMap} in O(1). Iterators and the
+ * other read operations work on such a snapshot, so iteration is consistent: it sees the map
+ * as it was at a single point in time. Views such as {@link #subMap}, {@link #descendingMap}
+ * and {@link #keySet} are backed by this map, and updates through them are visible in it.
+ * <p>
+ * Like {@link ConcurrentSkipListMap}, the map doesn't allow null keys or values.
+ */
+public class ConcurrentTTTMap<K, V> extends AbstractMap<K, V> implements ConcurrentNavigableMap<K, V> {
+
+	private final AtomicReference<TTTMap<K, V>> root;
+
+	/**
+	 * The range of keys of this view, or null if this is not a range view.
+	 */
+	private final Range<K> range;
+	private final boolean descending;
+
+	public ConcurrentTTTMap() {
+		this(new TTTMap<>());
+	}
+
+	/**
+	 * Create an empty map sorted by a given comparator.
+	 */
+	public ConcurrentTTTMap(Comparator<? super K> comparator) {
+		this(new TTTMap<>(comparator));
+	}
+
+	/**
+	 * Create a map with the same contents and ordering as a given {@link TTTMap}, which must not
+	 * contain null values.
+	 */
+	public ConcurrentTTTMap(TTTMap<K, V> initial) {
+		this(new AtomicReference<>(initial), null, false);
+	}
+
+	private ConcurrentTTTMap(AtomicReference<TTTMap<K, V>> root, Range<K> range, boolean descending) {
+		this.root = root;
+		this.range = range;
+		this.descending = descending;
+	}
+
+	/**
+	 * The current content of this map, in O(1) (or O(log(n)) for range views). The snapshot is
+	 * not affected by later updates. It is always in ascending order, also for descending views.
+	 */
+	public TTTMap<K, V> snapshot() {
+		TTTMap<K, V> map = root.get();
+		return range==null ? map : range.apply(map);
+	}
+
+	////////////////////////////////////
+	// reads
+	////////////////////////////////////
+
+	@Override
+	public int size() {
+		return snapshot().size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return snapshot().isEmpty();
+	}
+
+	@Override
+	public V get(Object k) {
+		return inRange(k) ? root.get().get(k) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object k) {
+		return inRange(k) && root.get().containsKey(k);
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		Comparator<? super K> cmp = root.get().comparator();
+		if (descending) {
+			return cmp==null ? Collections.reverseOrder() : Collections.reverseOrder(cmp);
+		}
+		return cmp;
+	}
+
+	@Override
+	public Entry<K, V> lowerEntry(K key) {
+		return view().lowerEntry(key);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return view().lowerKey(key);
+	}
+
+	@Override
+	public Entry<K, V> floorEntry(K key) {
+		return view().floorEntry(key);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return view().floorKey(key);
+	}
+
+	@Override
+	public Entry<K, V> ceilingEntry(K key) {
+		return view().ceilingEntry(key);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return view().ceilingKey(key);
+	}
+
+	@Override
+	public Entry<K, V> higherEntry(K key) {
+		return view().higherEntry(key);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return view().higherKey(key);
+	}
+
+	@Override
+	public Entry<K, V> firstEntry() {
+		return view().firstEntry();
+	}
+
+	@Override
+	public Entry<K, V> lastEntry() {
+		return view().lastEntry();
+	}
+
+	@Override
+	public K firstKey() {
+		return view().firstKey();
+	}
+
+	@Override
+	public K lastKey() {
+		return view().lastKey();
+	}
+
+	/**
+	 * The entries of this map. The set is backed by the map, and its iterators iterate a
+	 * snapshot of the map taken when they are created.
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractSet<Entry<K, V>>() {
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return new SnapshotIterator<>(view().entrySet().iterator(), e -> ConcurrentTTTMap.this.remove(e.getKey(), e.getValue()));
+			}
+
+			@Override
+			public int size() {
+				return ConcurrentTTTMap.this.size();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (o instanceof Map.Entry) {
+					Entry<?, ?> e = (Entry<?, ?>) o;
+					return e.getValue()!=null && e.getValue().equals(get(e.getKey()));
+				}
+				return false;
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (o instanceof Map.Entry) {
+					Entry<?, ?> e = (Entry<?, ?>) o;
+					return ConcurrentTTTMap.this.remove(e.getKey(), e.getValue());
+				}
+				return false;
+			}
+
+			@Override
+			public void clear() {
+				ConcurrentTTTMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public NavigableSet<K> keySet() {
+		return new KeySet<>(this);
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return new KeySet<>(this);
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return new KeySet<>(descendingMap());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o==this) {
+			return true;
+		}
+		return snapshot().equals(o instanceof ConcurrentTTTMap ? ((ConcurrentTTTMap<?, ?>) o).snapshot() : o);
+	}
+
+	@Override
+	public int hashCode() {
+		return snapshot().hashCode();
+	}
+
+	////////////////////////////////////
+	// views
+	////////////////////////////////////
+
+	@Override
+	public ConcurrentTTTMap<K, V> descendingMap() {
+		return new ConcurrentTTTMap<>(root, range, !descending);
+	}
+
+	@Override
+	public ConcurrentTTTMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		Objects.requireNonNull(fromKey);
+		Objects.requireNonNull(toKey);
+		if (descending) {
+			return subRange(toKey, toInclusive, fromKey, fromInclusive);
+		}
+		return subRange(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public ConcurrentTTTMap<K, V> headMap(K toKey, boolean inclusive) {
+		Objects.requireNonNull(toKey);
+		return descending ? subRange(toKey, inclusive, null, false) : subRange(null, false, toKey, inclusive);
+	}
+
+	@Override
+	public ConcurrentTTTMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		Objects.requireNonNull(fromKey);
+		return descending ? subRange(null, false, fromKey, inclusive) : subRange(fromKey, inclusive, null, false);
+	}
+
+	@Override
+	public ConcurrentTTTMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public ConcurrentTTTMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public ConcurrentTTTMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	////////////////////////////////////
+	// updates
+	////////////////////////////////////
+
+	@Override
+	public V put(K k, V v) {
+		checkKey(k);
+		Objects.requireNonNull(v);
+		return update(m -> m.insert(k, v)).get(k);
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> entries) {
+		for (Entry<? extends K, ? extends V> e : entries.entrySet()) {
+			checkKey(e.getKey());
+			Objects.requireNonNull(e.getValue());
+		}
+		update(m -> {
+			for (Entry<? extends K, ? extends V> e : entries.entrySet()) {
+				m = m.insert(e.getKey(), e.getValue());
+			}
+			return m;
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(Object k) {
+		if (!inRange(k)) {
+			return null;
+		}
+		return update(m -> m.delete((K) k)).get(k);
+	}
+
+	@Override
+	public void clear() {
+		update(m -> range==null ? new TTTMap<>(m.comparator()) : range.removeFrom(m));
+	}
+
+	@Override
+	public V putIfAbsent(K k, V v) {
+		checkKey(k);
+		Objects.requireNonNull(v);
+		return update(m -> m.computeEntry(k, (key, e) -> e!=null ? e.getValue() : v)).get(k);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean remove(Object k, Object v) {
+		if (v==null || !inRange(k)) {
+			return false;
+		}
+		TTTMap<K, V> old = update(m -> m.computeEntry((K) k, (key, e) -> e==null || v.equals(e.getValue()) ? NO_ENTRY : e.getValue()));
+		return v.equals(old.get(k));
+	}
+
+	@Override
+	public boolean replace(K k, V oldValue, V newValue) {
+		checkKey(k);
+		Objects.requireNonNull(oldValue);
+		Objects.requireNonNull(newValue);
+		TTTMap<K, V> old = update(m -> m.computeEntry(k, (key, e) -> {
+			if (e==null) {
+				return NO_ENTRY;
+			}
+			return oldValue.equals(e.getValue()) ? newValue : e.getValue();
+		}));
+		return oldValue.equals(old.get(k));
+	}
+
+	@Override
+	public V replace(K k, V v) {
+		checkKey(k);
+		Objects.requireNonNull(v);
+		return update(m -> m.computeEntry(k, (key, e) -> e==null ? NO_ENTRY : v)).get(k);
+	}
+
+	@Override
+	public V compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+		checkKey(k);
+		Object[] result = new Object[1];
+		update(m -> m.computeEntry(k, (key, e) -> {
+			V v = f.apply(key, e==null ? null : e.getValue());
+			result[0] = v;
+			return v==null ? NO_ENTRY : v;
+		}));
+		return unchecked(result[0]);
+	}
+
+	@Override
+	public V computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+		checkKey(k);
+		Object[] result = new Object[1];
+		update(m -> m.computeEntry(k, (key, e) -> {
+			if (e!=null) {
+				result[0] = e.getValue();
+				return e.getValue();
+			}
+			V v = f.apply(key);
+			result[0] = v;
+			return v==null ? NO_ENTRY : v;
+		}));
+		return unchecked(result[0]);
+	}
+
+	@Override
+	public V computeIfPresent(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+		checkKey(k);
+		Object[] result = new Object[1];
+		update(m -> m.computeEntry(k, (key, e) -> {
+			V v = e==null ? null : f.apply(key, e.getValue());
+			result[0] = v;
+			return v==null ? NO_ENTRY : v;
+		}));
+		return unchecked(result[0]);
+	}
+
+	@Override
+	public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+		checkKey(k);
+		Objects.requireNonNull(v);
+		Object[] result = new Object[1];
+		update(m -> m.computeEntry(k, (key, e) -> {
+			V merged = e==null ? v : f.apply(e.getValue(), v);
+			result[0] = merged;
+			return merged==null ? NO_ENTRY : merged;
+		}));
+		return unchecked(result[0]);
+	}
+
+	@Override
+	public Entry<K, V> pollFirstEntry() {
+		return poll(true);
+	}
+
+	@Override
+	public Entry<K, V> pollLastEntry() {
+		return poll(false);
+	}
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	/**
+	 * Replace the current map by the result of a function applied to it, retrying until the
+	 * compare-and-set succeeds.
+	 *
+	 * @return The map that was replaced.
+	 */
+	private TTTMap<K, V> update(UnaryOperator<TTTMap<K, V>> f) {
+		for (int failures = 0; ; failures++) {
+			TTTMap<K, V> current = root.get();
+			TTTMap<K, V> updated = f.apply(current);
+			if (updated==current || root.compareAndSet(current, updated)) {
+				return current;
+			}
+			backoff(failures);
+		}
+	}
+
+	/**
+	 * The reference holding the current map, shared by all views (and by
+	 * {@link CombiningUpdater}s) of this map.
+	 */
+	AtomicReference<TTTMap<K, V>> root() {
+		return root;
+	}
+
+	/**
+	 * Pause after a failed compare-and-set. The first few retries only yield, after that the
+	 * pauses grow exponentially (up to about 65 microseconds) and are randomized, so that
+	 * competing threads get out of each other's way.
+	 */
+	static void backoff(int failures) {
+		if (failures<2) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(1L << Math.min(failures, 16)));
+		}
+	}
+
+	/**
+	 * Atomically remove the first (or last) entry of this view.
+	 */
+	private Entry<K, V> poll(boolean first) {
+		TTTMap<K, V> old = update(m -> {
+			Entry<K, V> e = pollable(m, first);
+			return e==null ? m : m.delete(e.getKey());
+		});
+		return pollable(old, first);
+	}
+
+	private Entry<K, V> pollable(TTTMap<K, V> m, boolean first) {
+		NavigableMap<K, V> view = view(m);
+		return first ? view.firstEntry() : view.lastEntry();
+	}
+
+	/**
+	 * The current content of this map, in the order of this view.
+	 */
+	private NavigableMap<K, V> view() {
+		return view(root.get());
+	}
+
+	private NavigableMap<K, V> view(TTTMap<K, V> map) {
+		TTTMap<K, V> bounded = range==null ? map : range.apply(map);
+		return descending ? bounded.descendingMap() : bounded;
+	}
+
+	private ConcurrentTTTMap<K, V> subRange(K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+		Comparator<? super K> cmp = root.get().comparator();
+		Range<K> current = range==null ? new Range<>(cmp, null, false, null, false) : range;
+		return new ConcurrentTTTMap<>(root, current.sub(lo, loInclusive, hi, hiInclusive), descending);
+	}
+
+	private boolean inRange(Object k) {
+		Objects.requireNonNull(k);
+		return range==null || range.contains(k);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the key is outside the range of this view.
+	 */
+	void checkKey(K k) {
+		if (!inRange(k)) {
+			throw new IllegalArgumentException("Key out of range: "+k);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T unchecked(Object o) {
+		return (T) o;
+	}
+
+	/**
+	 * A range of keys. A null bound means the range is unbounded on that side.
+	 */
+	private static final class Range<K> {
+		final Comparator<? super K> cmp;
+		final K lo;
+		final boolean loInclusive;
+		final K hi;
+		final boolean hiInclusive;
+
+		Range(Comparator<? super K> cmp, K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+			this.cmp = cmp;
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+		}
+
+		@SuppressWarnings("unchecked")
+		boolean contains(Object o) {
+			K k = (K) o;
+			return !tooLow(k, loInclusive) && !tooHigh(k, hiInclusive);
+		}
+
+		private boolean tooLow(K k, boolean inclusive) {
+			if (lo==null) {
+				return false;
+			}
+			int c = TTTree.compare(cmp, k, lo);
+			return c<0 || c==0 && !inclusive;
+		}
+
+		private boolean tooHigh(K k, boolean inclusive) {
+			if (hi==null) {
+				return false;
+			}
+			int c = TTTree.compare(cmp, k, hi);
+			return c>0 || c==0 && !inclusive;
+		}
+
+		/**
+		 * Narrow this range. Null bounds keep the current bounds.
+		 *
+		 * @throws IllegalArgumentException if a bound is outside of this range.
+		 */
+		Range<K> sub(K newLo, boolean newLoInclusive, K newHi, boolean newHiInclusive) {
+			if (newLo!=null && (tooLow(newLo, loInclusive || !newLoInclusive) || tooHigh(newLo, hiInclusive || !newLoInclusive))) {
+				throw new IllegalArgumentException("Key out of range: "+newLo);
+			}
+			if (newHi!=null && (tooLow(newHi, loInclusive || !newHiInclusive) || tooHigh(newHi, hiInclusive || !newHiInclusive))) {
+				throw new IllegalArgumentException("Key out of range: "+newHi);
+			}
+			if (newLo!=null && newHi!=null && TTTree.compare(cmp, newLo, newHi)>0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+			return new Range<>(cmp,
+					newLo!=null ? newLo : lo, newLo!=null ? newLoInclusive : loInclusive,
+					newHi!=null ? newHi : hi, newHi!=null ? newHiInclusive : hiInclusive
+			);
+		}
+
+		<V> TTTMap<K, V> apply(TTTMap<K, V> map) {
+			if (lo!=null && hi!=null) {
+				return map.subMap(lo, loInclusive, hi, hiInclusive);
+			} else if (lo!=null) {
+				return map.tailMap(lo, loInclusive);
+			} else if (hi!=null) {
+				return map.headMap(hi, hiInclusive);
+			}
+			return map;
+		}
+
+		/**
+		 * @return A copy of a map without the keys in this range.
+		 */
+		<V> TTTMap<K, V> removeFrom(TTTMap<K, V> map) {
+			TTTMap<K, V> empty = new TTTMap<>(map.comparator());
+			TTTMap<K, V> below = lo==null ? empty : map.headMap(lo, !loInclusive);
+			TTTMap<K, V> above = hi==null ? empty : map.tailMap(hi, !hiInclusive);
+			return below.merge(above, (a, b) -> a);
+		}
+	}
+
+	/**
+	 * Iterates a snapshot, removing entries from the map on {@link #remove}.
+	 */
+	private static final class SnapshotIterator<T> implements Iterator<T> {
+		private final Iterator<T> snapshot;
+		private final Consumer<T> remover;
+		private T last;
+
+		SnapshotIterator(Iterator<T> snapshot, Consumer<T> remover) {
+			this.snapshot = snapshot;
+			this.remover = remover;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return snapshot.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return last = snapshot.next();
+		}
+
+		@Override
+		public void remove() {
+			if (last==null) {
+				throw new IllegalStateException();
+			}
+			remover.accept(last);
+			last = null;
+		}
+	}
+
+	/**
+	 * The keys of a {@link ConcurrentNavigableMap}, as a set backed by the map.
+	 */
+	private static final class KeySet<K> extends AbstractSet<K> implements NavigableSet<K> {
+		private final ConcurrentNavigableMap<K, ?> map;
+
+		KeySet(ConcurrentNavigableMap<K, ?> map) {
+			this.map = map;
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			return Iterators.transform(map.entrySet().iterator(), Map.Entry::getKey);
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return map.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return map.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return map.remove(o)!=null;
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return map.comparator();
+		}
+
+		@Override
+		public K first() {
+			return map.firstKey();
+		}
+
+		@Override
+		public K last() {
+			return map.lastKey();
+		}
+
+		@Override
+		public K lower(K e) {
+			return map.lowerKey(e);
+		}
+
+		@Override
+		public K floor(K e) {
+			return map.floorKey(e);
+		}
+
+		@Override
+		public K ceiling(K e) {
+			return map.ceilingKey(e);
+		}
+
+		@Override
+		public K higher(K e) {
+			return map.higherKey(e);
+		}
+
+		@Override
+		public K pollFirst() {
+			return TTTMap.keyOrNull(map.pollFirstEntry());
+		}
+
+		@Override
+		public K pollLast() {
+			return TTTMap.keyOrNull(map.pollLastEntry());
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return new KeySet<>(map.descendingMap());
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return new KeySet<>(map.subMap(fromElement, fromInclusive, toElement, toInclusive));
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return new KeySet<>(map.headMap(toElement, inclusive));
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return new KeySet<>(map.tailMap(fromElement, inclusive));
+		}
+
+		@Override
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.github.kdvolder.tttree;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+
+/**
+ * A view of a {@link TTTMap} with its entries in descending order. All operations are implemented
+ * by delegating to the 'mirrored' operation on the underlying map.
+ */
+class DescendingTTTMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+
+	private final TTTMap<K, V> forward;
+
+	DescendingTTTMap(TTTMap<K, V> forward) {
+		this.forward = forward;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new AbstractImmutableSet<Entry<K,V>>() {
+
+			@Override
+			public Iterator<Entry<K, V>> iterator() {
+				return forward.descendingIterator();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return forward.entrySet().contains(o);
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return forward.isEmpty();
+			}
+
+			@Override
+			public int size() {
+				return forward.size();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return forward.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return forward.isEmpty();
+	}
+
+	@Override
+	public V get(Object key) {
+		return forward.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return forward.containsKey(key);
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return Collections.reverseOrder(forward.comparator());
+	}
+
+	@Override
+	public K firstKey() {
+		return forward.lastKey();
+	}
+
+	@Override
+	public K lastKey() {
+		return forward.firstKey();
+	}
+
+	@Override
+	public Entry<K, V> firstEntry() {
+		return forward.lastEntry();
+	}
+
+	@Override
+	public Entry<K, V> lastEntry() {
+		return forward.firstEntry();
+	}
+
+	@Override
+	public Entry<K, V> lowerEntry(K key) {
+		return forward.higherEntry(key);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return forward.higherKey(key);
+	}
+
+	@Override
+	public Entry<K, V> floorEntry(K key) {
+		return forward.ceilingEntry(key);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return forward.ceilingKey(key);
+	}
+
+	@Override
+	public Entry<K, V> ceilingEntry(K key) {
+		return forward.floorEntry(key);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return forward.floorKey(key);
+	}
+
+	@Override
+	public Entry<K, V> higherEntry(K key) {
+		return forward.lowerEntry(key);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return forward.lowerKey(key);
+	}
+
+	@Override
+	public Entry<K, V> pollFirstEntry() {
+		throw new UnsupportedOperationException("pollFirstEntry");
+	}
+
+	@Override
+	public Entry<K, V> pollLastEntry() {
+		throw new UnsupportedOperationException("pollLastEntry");
+	}
+
+	@Override
+	public NavigableMap<K, V> descendingMap() {
+		return forward;
+	}
+
+	@Override
+	public NavigableSet<K> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		return forward.descendingKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return forward.navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return forward.subMap(toKey, toInclusive, fromKey, fromInclusive).descendingMap();
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		return forward.tailMap(toKey, inclusive).descendingMap();
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		return forward.headMap(fromKey, inclusive).descendingMap();
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	@Override
+	public int hashCode() {
+		return forward.hashCode();
+	}
+}
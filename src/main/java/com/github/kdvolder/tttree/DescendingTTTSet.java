@@ -0,0 +1,129 @@
+package com.github.kdvolder.tttree;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+
+/**
+ * A view of a {@link TTTSet} with its elements in descending order. All operations are implemented
+ * by delegating to the 'mirrored' operation on the underlying set.
+ */
+class DescendingTTTSet<E> extends AbstractImmutableSet<E> implements NavigableSet<E> {
+
+	private final TTTSet<E> forward;
+
+	DescendingTTTSet(TTTSet<E> forward) {
+		this.forward = forward;
+	}
+
+	@Override
+	public Comparator<? super E> comparator() {
+		return Collections.reverseOrder(forward.comparator());
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return forward.descendingIterator();
+	}
+
+	@Override
+	public Iterator<E> descendingIterator() {
+		return forward.iterator();
+	}
+
+	@Override
+	public int size() {
+		return forward.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return forward.isEmpty();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return forward.contains(o);
+	}
+
+	@Override
+	public E first() {
+		return forward.last();
+	}
+
+	@Override
+	public E last() {
+		return forward.first();
+	}
+
+	@Override
+	public E lower(E e) {
+		return forward.higher(e);
+	}
+
+	@Override
+	public E floor(E e) {
+		return forward.ceiling(e);
+	}
+
+	@Override
+	public E ceiling(E e) {
+		return forward.floor(e);
+	}
+
+	@Override
+	public E higher(E e) {
+		return forward.lower(e);
+	}
+
+	@Override
+	public E pollFirst() {
+		throw new UnsupportedOperationException("pollFirst");
+	}
+
+	@Override
+	public E pollLast() {
+		throw new UnsupportedOperationException("pollLast");
+	}
+
+	@Override
+	public NavigableSet<E> descendingSet() {
+		return forward;
+	}
+
+	@Override
+	public NavigableSet<E> subSet(E fromElement, boolean fromInclusive, E toElement, boolean toInclusive) {
+		return forward.subSet(toElement, toInclusive, fromElement, fromInclusive).descendingSet();
+	}
+
+	@Override
+	public NavigableSet<E> headSet(E toElement, boolean inclusive) {
+		return forward.tailSet(toElement, inclusive).descendingSet();
+	}
+
+	@Override
+	public NavigableSet<E> tailSet(E fromElement, boolean inclusive) {
+		return forward.headSet(fromElement, inclusive).descendingSet();
+	}
+
+	@Override
+	public NavigableSet<E> subSet(E fromElement, E toElement) {
+		return subSet(fromElement, true, toElement, false);
+	}
+
+	@Override
+	public NavigableSet<E> headSet(E toElement) {
+		return headSet(toElement, false);
+	}
+
+	@Override
+	public NavigableSet<E> tailSet(E fromElement) {
+		return tailSet(fromElement, true);
+	}
+
+	@Override
+	public int hashCode() {
+		return forward.hashCode();
+	}
+}
@@ -0,0 +1,25 @@
+package com.github.kdvolder.tttree;
+
+/**
+ * Receives the differences between two versions of a tree, found by
+ * {@link TTTree#diff(TTTree, DiffListener)}. Differences are reported in key order.
+ * All methods do nothing by default, so implementations only need to override the
+ * kinds of change they care about.
+ */
+public interface DiffListener<K, V> {
+
+	/**
+	 * Called for an entry that occurs only in the new version.
+	 */
+	default void added(K k, V v) {}
+
+	/**
+	 * Called for an entry that occurs only in the old version.
+	 */
+	default void removed(K k, V v) {}
+
+	/**
+	 * Called for a key that occurs in both versions, associated with values that are not equal.
+	 */
+	default void changed(K k, V oldValue, V newValue) {}
+}
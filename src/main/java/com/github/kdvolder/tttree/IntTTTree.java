@@ -0,0 +1,112 @@
+package com.github.kdvolder.tttree;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.common.collect.Iterators;
+
+/**
+ * A variant of {@link TTTree} specialized for primitive int keys.
+ * <p>
+ * This is a thin wrapper around a {@link LongTTTree}, which stores the keys widened to
+ * long. A separate int-keyed node layout would not save any memory: with 8-byte object
+ * alignment, a leaf holding an int key and a value reference takes as much space as one
+ * holding a long key.
+ */
+public final class IntTTTree<V> implements Iterable<Map.Entry<Integer, V>> {
+
+	/**
+	 * Receives the entries of a tree in {@link IntTTTree#forEachEntry}.
+	 */
+	@FunctionalInterface
+	public interface EntryConsumer<V> {
+		void accept(int k, V v);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final IntTTTree EMPTY = new IntTTTree<>(LongTTTree.empty());
+
+	private final LongTTTree<V> tree;
+
+	private IntTTTree(LongTTTree<V> tree) {
+		this.tree = tree;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <V> IntTTTree<V> empty() {
+		return EMPTY;
+	}
+
+	public V get(int k) {
+		return tree.get(k);
+	}
+
+	public boolean containsKey(int k) {
+		return tree.containsKey(k);
+	}
+
+	/**
+	 * Create a copy of this tree with a given key associated to a value. If the key is
+	 * already associated to an equal value, this tree itself is returned.
+	 */
+	public IntTTTree<V> put(int k, V v) {
+		return wrap(tree.put(k, v));
+	}
+
+	/**
+	 * Create a copy of this tree without the entry for a given key. If there is no such
+	 * entry, this tree itself is returned.
+	 */
+	public IntTTTree<V> remove(int k) {
+		return wrap(tree.remove(k));
+	}
+
+	public int size() {
+		return tree.size();
+	}
+
+	public boolean isEmpty() {
+		return tree.isEmpty();
+	}
+
+	/**
+	 * @throws java.util.NoSuchElementException if the tree is empty.
+	 */
+	public int firstKey() {
+		return (int) tree.firstKey();
+	}
+
+	/**
+	 * @throws java.util.NoSuchElementException if the tree is empty.
+	 */
+	public int lastKey() {
+		return (int) tree.lastKey();
+	}
+
+	@Override
+	public Iterator<Map.Entry<Integer, V>> iterator() {
+		return Iterators.transform(tree.iterator(),
+				e -> new SimpleImmutableEntry<>(e.getKey().intValue(), e.getValue())
+		);
+	}
+
+	/**
+	 * Calls an action for every entry, in order, without boxing the keys.
+	 */
+	public void forEachEntry(EntryConsumer<? super V> action) {
+		tree.forEachEntry((k, v) -> action.accept((int) k, v));
+	}
+
+	@Override
+	public String toString() {
+		return tree.toString();
+	}
+
+	private IntTTTree<V> wrap(LongTTTree<V> newTree) {
+		if (newTree==tree) {
+			return this;
+		}
+		return new IntTTTree<>(newTree);
+	}
+}
@@ -0,0 +1,142 @@
+package com.github.kdvolder.tttree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Wraps a {@link LongTTTree} to provide a standard immutable {@link Map} implementation.
+ * <p>
+ * Besides the {@link Map} methods, which box their keys, it provides primitive overloads
+ * such as {@link #get(long)}, {@link #containsKey(long)}, {@link #insert(long, Object)} and
+ * {@link #delete(long)} that don't. The entries are iterated in ascending order of their keys.
+ */
+public class LongTTTMap<V> extends AbstractMap<Long, V> {
+
+	private final LongTTTree<V> map;
+
+	public LongTTTMap() {
+		this(LongTTTree.empty());
+	}
+
+	public LongTTTMap(LongTTTree<V> map) {
+		this.map = map;
+	}
+
+	@Override
+	public Set<Entry<Long, V>> entrySet() {
+		return new AbstractImmutableSet<Entry<Long, V>>() {
+
+			@Override
+			public Iterator<Entry<Long, V>> iterator() {
+				return map.iterator();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (o instanceof Entry) {
+					Entry<?, ?> e = (Entry<?, ?>) o;
+					if (e.getKey() instanceof Long) {
+						Entry<Long, V> found = map.getEntry((Long) e.getKey());
+						return found!=null && Objects.equals(found.getValue(), e.getValue());
+					}
+				}
+				return false;
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return LongTTTMap.this.isEmpty();
+			}
+
+			@Override
+			public int size() {
+				return LongTTTMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	@Override
+	public V get(Object k) {
+		if (k instanceof Long) {
+			return map.get((Long) k);
+		}
+		return null;
+	}
+
+	public V get(long k) {
+		return map.get(k);
+	}
+
+	@Override
+	public boolean containsKey(Object k) {
+		if (k instanceof Long) {
+			return map.containsKey((Long) k);
+		}
+		return false;
+	}
+
+	public boolean containsKey(long k) {
+		return map.containsKey(k);
+	}
+
+	/**
+	 * @throws java.util.NoSuchElementException if the map is empty.
+	 */
+	public long firstKey() {
+		return map.firstKey();
+	}
+
+	/**
+	 * @throws java.util.NoSuchElementException if the map is empty.
+	 */
+	public long lastKey() {
+		return map.lastKey();
+	}
+
+	/**
+	 * Make a copy of this map, adding or changing a single key-value association. If the
+	 * association already exists, this map itself is returned. See {@link TTTMap#insert}.
+	 */
+	public LongTTTMap<V> insert(long k, V v) {
+		return wrap(map.put(k, v));
+	}
+
+	/**
+	 * Make a copy of this map, deleting any existing association with a given key. If the key
+	 * is not present, this map itself is returned.
+	 */
+	public LongTTTMap<V> delete(long k) {
+		return wrap(map.remove(k));
+	}
+
+	/**
+	 * @return The tree wrapped by this map.
+	 */
+	public LongTTTree<V> getTree() {
+		return map;
+	}
+
+	private LongTTTMap<V> wrap(LongTTTree<V> tree) {
+		if (tree==map) {
+			return this;
+		}
+		return new LongTTTMap<>(tree);
+	}
+
+	public void dump() {
+		map.dump();
+	}
+}
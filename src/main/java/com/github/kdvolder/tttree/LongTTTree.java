@@ -0,0 +1,647 @@
+package com.github.kdvolder.tttree;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+import com.github.kdvolder.util.Assert;
+
+/**
+ * A variant of {@link TTTree} specialized for primitive long keys.
+ * <p>
+ * The keys are stored inline, as a plain long, in the leafs as well as in the internal nodes.
+ * So there is no boxed {@link Long} per entry, and looking up a key compares primitive
+ * values rather than calling {@link Comparable#compareTo}. Apart from that, the tree behaves
+ * like a {@link TTTree}: it is immutable and modified copies are created in O(log(n)),
+ * sharing most of their nodes with the original.
+ * <p>
+ * Use {@link LongTTTMap} to wrap it as a {@link java.util.Map}.
+ */
+public abstract class LongTTTree<V> implements Iterable<Map.Entry<Long, V>> {
+
+	/**
+	 * Receives the entries of a tree in {@link LongTTTree#forEachEntry}.
+	 */
+	@FunctionalInterface
+	public interface EntryConsumer<V> {
+		void accept(long k, V v);
+	}
+
+	////////////////////////////////////
+	// public api
+	////////////////////////////////////
+
+	@SuppressWarnings("unchecked")
+	public static <V> LongTTTree<V> empty() {
+		return EMPTY_TREE;
+	}
+
+	public final V get(long k) {
+		Leaf<V> e = lookup(k);
+		if (e!=null) {
+			return e.v;
+		}
+		return null;
+	}
+
+	public final boolean containsKey(long k) {
+		return lookup(k)!=null;
+	}
+
+	/**
+	 * @return The entry for a given key, or null if there is no such entry.
+	 */
+	public final Map.Entry<Long, V> getEntry(long k) {
+		return lookup(k);
+	}
+
+	/**
+	 * Create a copy of this tree with a given key associated to a value. If the key is
+	 * already associated to an equal value, this tree itself is returned.
+	 */
+	public abstract LongTTTree<V> put(long k, V v);
+
+	/**
+	 * Create a copy of this tree without the entry for a given key. If there is no such
+	 * entry, this tree itself is returned.
+	 */
+	public abstract LongTTTree<V> remove(long k);
+
+	/**
+	 * Number of entries in the tree. O(1).
+	 */
+	public abstract int size();
+
+	public boolean isEmpty() {
+		return false; // good default because most nodes aren't empty.
+	}
+
+	/**
+	 * @throws NoSuchElementException if the tree is empty.
+	 */
+	public final long firstKey() {
+		return nonEmpty().first().k;
+	}
+
+	/**
+	 * @throws NoSuchElementException if the tree is empty.
+	 */
+	public final long lastKey() {
+		return nonEmpty().last().k;
+	}
+
+	@Override
+	public Iterator<Map.Entry<Long, V>> iterator() {
+		return new LongTTTreeIterator<>(this);
+	}
+
+	/**
+	 * Calls an action for every entry, in order, without boxing the keys.
+	 */
+	public abstract void forEachEntry(EntryConsumer<? super V> action);
+
+	/**
+	 * For debugging. Dump tree structure in indented format onto sysout
+	 */
+	public void dump() {
+		dump(0);
+	}
+
+	@Override
+	public abstract String toString();
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	abstract Leaf<V> lookup(long k);
+	abstract int depth();
+	abstract Leaf<V> first();
+	abstract Leaf<V> last();
+	abstract void dump(int indent);
+
+	private LongTTTree<V> nonEmpty() {
+		if (isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return this;
+	}
+
+	void print(int indent, Object msg) {
+		for (int i = 0; i < indent; i++) {
+			System.out.print("  ");
+		}
+		System.out.println(msg);
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static final LongTTTree EMPTY_TREE = new LongTTTree() {
+		@Override public LongTTTree put(long k, Object v) { return new Leaf(k, v); }
+		@Override public LongTTTree remove(long k) { return this; }
+		@Override Leaf lookup(long k) { return null; }
+		@Override public int size() { return 0; }
+		@Override public boolean isEmpty() { return true; }
+		@Override public void forEachEntry(EntryConsumer action) {}
+		@Override int depth() { return 0; }
+		@Override Leaf first() { return null; }
+		@Override Leaf last() { return null; }
+		@Override void dump(int indent) { print(indent, this); }
+		@Override public String toString() { return "EMPTY"; }
+	};
+
+	private static final class Leaf<V> extends LongTTTree<V> implements Map.Entry<Long, V> {
+
+		private final long k;
+		private final V v;
+
+		Leaf(long k, V v) {
+			this.k = k;
+			this.v = v;
+		}
+
+		@Override
+		public LongTTTree<V> put(long ik, V iv) {
+			if (ik==k) {
+				if (Objects.equals(v, iv)) {
+					return this;
+				}
+				return new Leaf<>(ik, iv);
+			} else if (ik<k) {
+				return new Node2<>(new Leaf<>(ik, iv), ik, this);
+			} else {
+				return new Node2<>(this, k, new Leaf<>(ik, iv));
+			}
+		}
+
+		@Override
+		public LongTTTree<V> remove(long fk) {
+			if (fk==k) {
+				return empty();
+			}
+			return this;
+		}
+
+		@Override
+		Leaf<V> lookup(long fk) {
+			return fk==k ? this : null;
+		}
+
+		@Override
+		public int size() {
+			return 1;
+		}
+
+		@Override
+		public void forEachEntry(EntryConsumer<? super V> action) {
+			action.accept(k, v);
+		}
+
+		@Override
+		int depth() {
+			return 1;
+		}
+
+		@Override
+		Leaf<V> first() {
+			return this;
+		}
+
+		@Override
+		Leaf<V> last() {
+			return this;
+		}
+
+		@Override
+		void dump(int indent) {
+			print(indent, k + " = " +v);
+		}
+
+		@Override
+		public Long getKey() {
+			return k;
+		}
+
+		@Override
+		public V getValue() {
+			return v;
+		}
+
+		@Override
+		public V setValue(V value) {
+			throw new UnsupportedOperationException("setValue");
+		}
+
+		@Override
+		public String toString() {
+			return "["+k+" = "+v+"]";
+		}
+
+		/**
+		 * As specified by {@link Map.Entry#equals}.
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Map.Entry) {
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+				return Long.valueOf(k).equals(e.getKey()) && Objects.equals(v, e.getValue());
+			}
+			return false;
+		}
+
+		/**
+		 * As specified by {@link Map.Entry#hashCode}.
+		 */
+		@Override
+		public int hashCode() {
+			return Long.hashCode(k) ^ Objects.hashCode(v);
+		}
+	}
+
+	/**
+	 * Like the Node2 of {@link TTTree}: all keys in l are smaller than or equal to k, all keys
+	 * in r are larger than k.
+	 */
+	private static final class Node2<V> extends LongTTTree<V> {
+
+		private final LongTTTree<V> l;
+		private final long k;
+		private final LongTTTree<V> r;
+		private final int depth;
+		private final int size;
+
+		Node2(LongTTTree<V> l, long k, LongTTTree<V> r) {
+			Assert.isLegalState(l.depth()==r.depth());
+			this.depth = l.depth()+1;
+			this.size = l.size() + r.size();
+			this.l = l;
+			this.k = k;
+			this.r = r;
+		}
+
+		@Override
+		public LongTTTree<V> put(long ik, V iv) {
+			if (ik<=k) {
+				return withL(l.put(ik, iv));
+			} else {
+				return withR(r.put(ik, iv));
+			}
+		}
+
+		@Override
+		public LongTTTree<V> remove(long fk) {
+			if (fk<=k) {
+				return withL(l.remove(fk));
+			} else {
+				return withR(r.remove(fk));
+			}
+		}
+
+		/**
+		 * Create a copy of this node with its left child replaced. The new child is
+		 * the result of an update operation on the old one, so it may be one level
+		 * higher or lower than the old child.
+		 */
+		private LongTTTree<V> withL(LongTTTree<V> l) {
+			if (l==this.l) {
+				return this; //Avoid needless copying if tree is unchanged
+			} else if (l.depth()==this.l.depth()) {
+				return new Node2<>(l, k, r);
+			} else if (l.depth()>this.l.depth()) {
+				//Since the tree has just grown its root must be Node2
+				Node2<V> nl = (Node2<V>) l;
+				return new Node3<>(nl.l, nl.k, nl.r, k, r);
+			} else {
+				//l.depth shrunk
+				if (r instanceof Node2) {
+					Node2<V> r = (Node2<V>) this.r;
+					return new Node3<>(l, k, r.l, r.k, r.r);
+				} else if (r instanceof Node3) {
+					Node3<V> r = (Node3<V>) this.r;
+					return new Node2<>(
+							new Node2<>(l, k, r.l),
+							r.k1,
+							new Node2<>(r.m, r.k2, r.r)
+					);
+				} else {
+					Assert.isLegalState(l.isEmpty());
+					return r;
+				}
+			}
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the right child.
+		 */
+		private LongTTTree<V> withR(LongTTTree<V> r) {
+			if (r==this.r) {
+				return this; //Avoid needless copying if tree is unchanged
+			} else if (r.depth()==this.r.depth()) {
+				return new Node2<>(l, k, r);
+			} else if (r.depth()>this.r.depth()) {
+				//Since the tree has just grown its root must be Node2
+				Node2<V> nr = (Node2<V>) r;
+				return new Node3<>(l, k, nr.l, nr.k, nr.r);
+			} else {
+				//r.depth shrunk
+				if (l instanceof Node2) {
+					Node2<V> l = (Node2<V>) this.l;
+					return new Node3<>(l.l, l.k, l.r, k, r);
+				} else if (l instanceof Node3) {
+					Node3<V> l = (Node3<V>) this.l;
+					return new Node2<>(
+							new Node2<>(l.l, l.k1, l.m),
+							l.k2,
+							new Node2<>(l.r, k, r)
+					);
+				} else {
+					Assert.isLegalState(r.isEmpty());
+					return l;
+				}
+			}
+		}
+
+		@Override
+		Leaf<V> lookup(long fk) {
+			return fk<=k ? l.lookup(fk) : r.lookup(fk);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void forEachEntry(EntryConsumer<? super V> action) {
+			l.forEachEntry(action);
+			r.forEachEntry(action);
+		}
+
+		@Override
+		int depth() {
+			return depth;
+		}
+
+		@Override
+		Leaf<V> first() {
+			return l.first();
+		}
+
+		@Override
+		Leaf<V> last() {
+			return r.last();
+		}
+
+		@Override
+		void dump(int indent) {
+			l.dump(indent+1);
+			print(indent, k);
+			r.dump(indent+1);
+		}
+
+		@Override
+		public String toString() {
+			return "Node2["+depth+"]("+k+")";
+		}
+	}
+
+	/**
+	 * Like the Node3 of {@link TTTree}: keys in l are &lt;= k1, keys in m are &gt; k1
+	 * and &lt;= k2, keys in r are &gt; k2.
+	 */
+	private static final class Node3<V> extends LongTTTree<V> {
+
+		private final LongTTTree<V> l;
+		private final long k1;
+		private final LongTTTree<V> m;
+		private final long k2;
+		private final LongTTTree<V> r;
+		private final int depth;
+		private final int size;
+
+		Node3(LongTTTree<V> l, long k1, LongTTTree<V> m, long k2, LongTTTree<V> r) {
+			Assert.isLegalState(l.depth()==m.depth());
+			Assert.isLegalState(l.depth()==r.depth());
+			this.depth = l.depth()+1;
+			this.size = l.size() + m.size() + r.size();
+			this.l = l;
+			this.k1 = k1;
+			this.m = m;
+			this.k2 = k2;
+			this.r = r;
+		}
+
+		@Override
+		public LongTTTree<V> put(long k, V v) {
+			if (k<=k1) {
+				return withL(l.put(k, v));
+			} else if (k<=k2) {
+				return withM(m.put(k, v));
+			} else {
+				return withR(r.put(k, v));
+			}
+		}
+
+		@Override
+		public LongTTTree<V> remove(long k) {
+			if (k<=k1) {
+				return withL(l.remove(k));
+			} else if (k<=k2) {
+				return withM(m.remove(k));
+			} else {
+				return withR(r.remove(k));
+			}
+		}
+
+		/**
+		 * Create a copy of this node with its left child replaced. See {@link Node2#withL}.
+		 */
+		private LongTTTree<V> withL(LongTTTree<V> l) {
+			if (l==this.l) {
+				return this;
+			} else if (l.depth()==this.l.depth()) {
+				return new Node3<>(l, k1, m, k2, r);
+			} else if (l.depth()>this.l.depth()) {
+				//The tree has just grown, split ourself into a new Node2.
+				return new Node2<>(l, k1, new Node2<>(m, k2, r));
+			} else {
+				//shrunk l
+				if (l.isEmpty()) {
+					return new Node2<>(m, k2, r);
+				} else if (m instanceof Node2) {
+					Node2<V> m = (Node2<V>) this.m;
+					return new Node2<>(new Node3<>(l, k1, m.l, m.k, m.r), k2, r);
+				} else {
+					Node3<V> m = (Node3<V>) this.m;
+					return new Node3<>(
+						new Node2<>(l, k1, m.l),
+						m.k1,
+						new Node2<>(m.m, m.k2, m.r),
+						k2,
+						r
+					);
+				}
+			}
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the middle child.
+		 */
+		private LongTTTree<V> withM(LongTTTree<V> m) {
+			if (m==this.m) {
+				return this;
+			} else if (m.depth()==this.m.depth()) {
+				return new Node3<>(l, k1, m, k2, r);
+			} else if (m.depth()>this.m.depth()) {
+				//Since the tree has just grown its root *must* be Node2
+				Node2<V> nm = (Node2<V>) m;
+				return new Node2<>(new Node2<>(l, k1, nm.l), nm.k, new Node2<>(nm.r, k2, r));
+			} else {
+				//shrunk
+				if (m.isEmpty()) {
+					return new Node2<>(l, k1, r);
+				} else if (l instanceof Node2) {
+					Node2<V> l = (Node2<V>) this.l;
+					return new Node2<>(new Node3<>(l.l, l.k, l.r, k1, m), k2, r);
+				} else {
+					Node3<V> l = (Node3<V>) this.l;
+					return new Node3<>(
+						new Node2<>(l.l, l.k1, l.m),
+						l.k2,
+						new Node2<>(l.r, k1, m),
+						k2,
+						r
+					);
+				}
+			}
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the right child.
+		 */
+		private LongTTTree<V> withR(LongTTTree<V> r) {
+			if (r==this.r) {
+				return this;
+			} else if (r.depth()==this.r.depth()) {
+				return new Node3<>(l, k1, m, k2, r);
+			} else if (r.depth()>this.r.depth()) {
+				//The tree has just grown, split ourself into a new Node2.
+				return new Node2<>(new Node2<>(l, k1, m), k2, r);
+			} else {
+				//shrunk
+				if (r.isEmpty()) {
+					return new Node2<>(l, k1, m);
+				} else if (m instanceof Node2) {
+					Node2<V> m = (Node2<V>) this.m;
+					return new Node2<>(l, k1, new Node3<>(m.l, m.k, m.r, k2, r));
+				} else {
+					Node3<V> m = (Node3<V>) this.m;
+					return new Node3<>(
+						l,
+						k1,
+						new Node2<>(m.l, m.k1, m.m),
+						m.k2,
+						new Node2<>(m.r, k2, r)
+					);
+				}
+			}
+		}
+
+		@Override
+		Leaf<V> lookup(long k) {
+			if (k<=k1) {
+				return l.lookup(k);
+			} else if (k<=k2) {
+				return m.lookup(k);
+			} else {
+				return r.lookup(k);
+			}
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void forEachEntry(EntryConsumer<? super V> action) {
+			l.forEachEntry(action);
+			m.forEachEntry(action);
+			r.forEachEntry(action);
+		}
+
+		@Override
+		int depth() {
+			return depth;
+		}
+
+		@Override
+		Leaf<V> first() {
+			return l.first();
+		}
+
+		@Override
+		Leaf<V> last() {
+			return r.last();
+		}
+
+		@Override
+		void dump(int indent) {
+			l.dump(indent+1);
+			print(indent, k1);
+			m.dump(indent+1);
+			print(indent, k2);
+			r.dump(indent+1);
+		}
+
+		@Override
+		public String toString() {
+			return "Node3["+depth+"]("+k1+", "+k2+")";
+		}
+	}
+
+	/**
+	 * Iterates the entries in order, using a stack of the subtrees that remain to be visited.
+	 * See the iterator of {@link TTTree}.
+	 */
+	private static final class LongTTTreeIterator<V> implements Iterator<Map.Entry<Long, V>> {
+
+		private final LongTTTree<V>[] stack;
+		private int top = 0; //number of subtrees on the stack
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		LongTTTreeIterator(LongTTTree<V> tree) {
+			this.stack = new LongTTTree[2*tree.depth()+1];
+			if (!tree.isEmpty()) {
+				stack[top++] = tree;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return top>0;
+		}
+
+		@Override
+		public Map.Entry<Long, V> next() {
+			if (top==0) {
+				throw new NoSuchElementException();
+			}
+			LongTTTree<V> node = stack[--top];
+			stack[top] = null;
+			while (!(node instanceof Leaf)) {
+				if (node instanceof Node2) {
+					Node2<V> n = (Node2<V>) node;
+					stack[top++] = n.r;
+					node = n.l;
+				} else {
+					Node3<V> n = (Node3<V>) node;
+					stack[top++] = n.r;
+					stack[top++] = n.m;
+					node = n.l;
+				}
+			}
+			return (Leaf<V>) node;
+		}
+	}
+}
@@ -0,0 +1,591 @@
+package com.github.kdvolder.tttree;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.Iterators;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+/**
+ * A write-optimized, persistent ordered map stored in a directory: a log-structured merge tree
+ * built from a {@link TTTMap} memtable and sorted run files.
+ * <p>
+ * Updates go to the memtable. When it reaches a given size it is frozen and written to a new
+ * run file by a background thread, while updates continue on a fresh memtable. Writers only
+ * wait if the memtable fills up again before the previous one has been written. A removal is
+ * recorded as a tombstone, which hides older entries for the key until the runs are merged.
+ * <p>
+ * Runs are {@link MappedTTTree} files, so their entries are not on the heap. Each run has a
+ * bloom filter, so lookups skip most of the runs that don't have the key. Another background
+ * thread merges adjacent runs whenever one is at least half the size of the next older one,
+ * which keeps the number of runs logarithmic in the number of entries. Lookups and iteration
+ * merge the memtables with the runs, newest first, and see a consistent snapshot of the map.
+ * <p>
+ * Entries are durable once their memtable is written, which happens when it is full, or on
+ * {@link #flush} and {@link #close}. The list of runs is published by atomically replacing a
+ * manifest file, and forcing its directory, so a crash loses only the entries in memory. Values can't be null. Keys that
+ * are equal according to the ordering must have the same encoding, since the bloom filters
+ * hash the encoded keys. Reads are lock-free; updates are thread-safe.
+ */
+public final class LsmTTTMap<K, V> implements Iterable<Map.Entry<K, V>>, Closeable {
+
+	private static final int MAGIC = 0x5454544C; //"TTTL"
+	private static final int VERSION = 1;
+
+	public static final int DEFAULT_MEMTABLE_SIZE = 1 << 18;
+
+	private static final double BLOOM_FALSE_POSITIVES = 0.01;
+	private static final String MANIFEST = "MANIFEST";
+	private static final Pattern RUN_FILE = Pattern.compile("run-(\\d+)\\.(ttt|bloom)");
+
+	private static final Object TOMBSTONE = new Object();
+
+	private final Path dir;
+	private final Comparator<? super K> cmp;
+	private final Codec<K> keyCodec;
+	private final Codec<Object> runValueCodec;
+	private final Funnel<K> keyFunnel;
+	private final int memtableSize;
+
+	private final AtomicLong nextSeq;
+	private final ExecutorService flusher = Executors.newSingleThreadExecutor(daemon("LsmTTTMap flusher"));
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(daemon("LsmTTTMap compactor"));
+	private final Object manifestLock = new Object();
+
+	private volatile State<K> state;
+	private volatile Throwable failure;
+	private boolean closed = false;
+
+	private LsmTTTMap(Path dir, Comparator<? super K> cmp, Codec<K> keyCodec, Codec<V> valueCodec, int memtableSize, long nextSeq) {
+		this.dir = dir;
+		this.cmp = cmp;
+		this.keyCodec = keyCodec;
+		this.runValueCodec = new Codec<Object>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public void write(DataOutput out, Object v) throws IOException {
+				if (v==TOMBSTONE) {
+					out.writeBoolean(false);
+				} else {
+					out.writeBoolean(true);
+					valueCodec.write(out, (V) v);
+				}
+			}
+
+			@Override
+			public Object read(DataInput in) throws IOException {
+				return in.readBoolean() ? valueCodec.read(in) : TOMBSTONE;
+			}
+		};
+		this.keyFunnel = (k, sink) -> {
+			try {
+				keyCodec.write(new DataOutputStream(Funnels.asOutputStream(sink)), k);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+		this.memtableSize = memtableSize;
+		this.nextSeq = new AtomicLong(nextSeq);
+	}
+
+	////////////////////////////////////
+	// public api
+	////////////////////////////////////
+
+	/**
+	 * Open a map with keys sorted by their natural ordering, creating it if the directory
+	 * doesn't have one.
+	 */
+	public static <K extends Comparable<K>, V> LsmTTTMap<K, V> open(Path dir, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+		return open(dir, null, keyCodec, valueCodec, DEFAULT_MEMTABLE_SIZE);
+	}
+
+	/**
+	 * Open a map with keys sorted by a given comparator (or by their natural ordering if it is
+	 * null), creating it if the directory doesn't have one. An existing map must always be
+	 * opened with the same ordering.
+	 *
+	 * @param memtableSize The number of entries at which the memtable is written to a run.
+	 */
+	public static <K, V> LsmTTTMap<K, V> open(Path dir, Comparator<? super K> comparator, Codec<K> keyCodec, Codec<V> valueCodec, int memtableSize) throws IOException {
+		if (memtableSize<1) {
+			throw new IllegalArgumentException("Memtable size must be positive: "+memtableSize);
+		}
+		Files.createDirectories(dir);
+		List<Long> seqs = new ArrayList<>();
+		long nextSeq = 0;
+		Path manifest = dir.resolve(MANIFEST);
+		if (Files.exists(manifest)) {
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(manifest))) {
+				if (in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+					throw new StreamCorruptedException("Not a LsmTTTMap manifest: "+manifest);
+				}
+				nextSeq = in.readLong();
+				for (int n = in.readInt(); n > 0; n--) {
+					seqs.add(in.readLong());
+				}
+			}
+		}
+		//Remove the leftovers of runs that were being written or merged
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Matcher m = RUN_FILE.matcher(file.getFileName().toString());
+				if (m.matches() && !seqs.contains(Long.parseLong(m.group(1)))) {
+					Files.delete(file);
+				}
+			}
+		}
+		LsmTTTMap<K, V> map = new LsmTTTMap<>(dir, comparator, keyCodec, valueCodec, memtableSize, nextSeq);
+		List<Run<K>> runs = new ArrayList<>();
+		try {
+			for (long seq : seqs) {
+				BloomFilter<K> bloom;
+				try (InputStream in = Files.newInputStream(map.bloomFile(seq))) {
+					bloom = BloomFilter.readFrom(in, map.keyFunnel);
+				}
+				runs.add(new Run<>(seq, MappedTTTree.open(map.runFile(seq), comparator, keyCodec, map.runValueCodec), bloom));
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Run<K> run : runs) {
+				run.entries.close();
+			}
+			map.flusher.shutdown();
+			map.compactor.shutdown();
+			throw e;
+		}
+		map.state = new State<>(new TTTMap<>(comparator), null, runs);
+		return map;
+	}
+
+	public V get(K k) {
+		Object v = lookup(state, k);
+		return v==TOMBSTONE ? null : unchecked(v);
+	}
+
+	public boolean containsKey(K k) {
+		Object v = lookup(state, k);
+		return v!=null && v!=TOMBSTONE;
+	}
+
+	public void put(K k, V v) {
+		update(k, Objects.requireNonNull(v));
+	}
+
+	/**
+	 * Remove the entry for a given key, if there is one. This only records a tombstone; it
+	 * doesn't look for the entry.
+	 */
+	public void remove(K k) {
+		update(k, TOMBSTONE);
+	}
+
+	/**
+	 * Iterate all entries, in order, as they are when this method is called.
+	 */
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		State<K> s = state;
+		List<Iterator<? extends Map.Entry<K, Object>>> sources = new ArrayList<>();
+		sources.add(s.memtable.entrySet().iterator());
+		if (s.frozen!=null) {
+			sources.add(s.frozen.entrySet().iterator());
+		}
+		for (Run<K> run : s.runs) {
+			sources.add(run.entries.iterator());
+		}
+		Iterator<Map.Entry<K, Object>> live = Iterators.filter(new MergingIterator(sources), e -> e.getValue()!=TOMBSTONE);
+		return Iterators.transform(live, LsmTTTMap::unchecked);
+	}
+
+	/**
+	 * The number of runs the entries are currently spread over.
+	 */
+	public int runCount() {
+		return state.runs.size();
+	}
+
+	/**
+	 * Write the entries in memory to a run, and wait until that is done.
+	 */
+	public void flush() throws IOException {
+		synchronized (this) {
+			checkUsable();
+			if (!state.memtable.isEmpty()) {
+				freeze();
+			}
+			awaitFlushed();
+		}
+		checkUsable();
+	}
+
+	/**
+	 * Flush the entries in memory, wait for the background threads to finish and close the
+	 * run files. The threads are stopped and the files closed even if the flush fails, in which
+	 * case its failure is thrown afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				try {
+					flush();
+				} finally {
+					closed = true;
+				}
+			}
+		} finally {
+			//Not holding the lock, which the background threads need to finish
+			flusher.shutdown();
+			awaitTermination(flusher);
+			compactor.shutdown();
+			awaitTermination(compactor);
+			for (Run<K> run : state.runs) {
+				run.entries.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LsmTTTMap("+dir+")";
+	}
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	/**
+	 * The memtables and runs, newest first. A new state is published on every update.
+	 */
+	private static final class State<K> {
+		final TTTMap<K, Object> memtable;
+		final TTTMap<K, Object> frozen;
+		final List<Run<K>> runs;
+
+		State(TTTMap<K, Object> memtable, TTTMap<K, Object> frozen, List<Run<K>> runs) {
+			this.memtable = memtable;
+			this.frozen = frozen;
+			this.runs = runs;
+		}
+	}
+
+	private static final class Run<K> {
+		final long seq;
+		final MappedTTTree<K, Object> entries;
+		final BloomFilter<K> keys;
+
+		Run(long seq, MappedTTTree<K, Object> entries, BloomFilter<K> keys) {
+			this.seq = seq;
+			this.entries = entries;
+			this.keys = keys;
+		}
+
+		Object get(K k) {
+			return keys.mightContain(k) ? entries.get(k) : null;
+		}
+	}
+
+	/**
+	 * @return The newest value for a key, which may be a tombstone, or null if there is none.
+	 */
+	private Object lookup(State<K> s, K k) {
+		Object v = s.memtable.get(k);
+		if (v==null && s.frozen!=null) {
+			v = s.frozen.get(k);
+		}
+		for (int i = 0; v==null && i < s.runs.size(); i++) {
+			v = s.runs.get(i).get(k);
+		}
+		return v;
+	}
+
+	private synchronized void update(K k, Object v) {
+		checkUsable();
+		State<K> s = state;
+		TTTMap<K, Object> memtable = s.memtable.insert(k, v);
+		state = new State<>(memtable, s.frozen, s.runs);
+		if (memtable.size()>=memtableSize) {
+			freeze();
+		}
+	}
+
+	/**
+	 * Hand the memtable over to the flusher, after waiting for the previous one to be written.
+	 */
+	private synchronized void freeze() {
+		awaitFlushed();
+		checkUsable();
+		State<K> s = state;
+		state = new State<>(new TTTMap<>(cmp), s.memtable, s.runs);
+		flusher.execute(this::flushFrozen);
+	}
+
+	private synchronized void awaitFlushed() {
+		boolean interrupted = false;
+		while (state.frozen!=null && failure==null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void checkUsable() {
+		if (closed) {
+			throw new IllegalStateException("Closed");
+		}
+		Throwable f = failure;
+		if (f instanceof IOException) {
+			throw new UncheckedIOException("Background write failed", (IOException) f);
+		} else if (f!=null) {
+			throw new IllegalStateException("Background write failed", f);
+		}
+	}
+
+	private void flushFrozen() {
+		try {
+			TTTMap<K, Object> frozen = state.frozen;
+			Run<K> run = writeRun(frozen.entrySet().iterator(), frozen.size());
+			publish(Collections.emptyList(), run, true);
+			compactor.execute(this::compact);
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Merge adjacent runs for as long as there is a run that is at least half the size of the
+	 * next older one. Each run is then more than twice the size of the one before it.
+	 */
+	private void compact() {
+		try {
+			while (true) {
+				List<Run<K>> runs = state.runs;
+				int i = 0;
+				while (i+1 < runs.size() && runs.get(i).entries.size() < runs.get(i+1).entries.size()/2) {
+					i++;
+				}
+				if (i+1 >= runs.size()) {
+					return;
+				}
+				List<Run<K>> merged = runs.subList(i, i+2);
+				Iterator<Map.Entry<K, Object>> entries = new MergingIterator(Iterators.transform(merged.iterator(), r -> r.entries.iterator()));
+				if (i+2==runs.size()) {
+					//Nothing older left for the tombstones to hide
+					entries = Iterators.filter(entries, e -> e.getValue()!=TOMBSTONE);
+				}
+				Run<K> run = writeRun(entries, (long) merged.get(0).entries.size() + merged.get(1).entries.size());
+				publish(merged, run, false);
+				for (Run<K> old : merged) {
+					//Readers may still be using the old runs, which works since they are mapped
+					old.entries.close();
+					Files.deleteIfExists(runFile(old.seq));
+					Files.deleteIfExists(bloomFile(old.seq));
+				}
+			}
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	private synchronized void fail(Throwable e) {
+		if (failure==null) {
+			failure = e;
+		}
+		notifyAll();
+	}
+
+	private Run<K> writeRun(Iterator<? extends Map.Entry<K, Object>> entries, long expectedSize) throws IOException {
+		long seq = nextSeq.getAndIncrement();
+		BloomFilter<K> bloom = BloomFilter.create(keyFunnel, Math.max(1, expectedSize), BLOOM_FALSE_POSITIVES);
+		Path file = runFile(seq);
+		MappedTTTree.write(Iterators.transform(entries, e -> {
+			bloom.put(e.getKey());
+			return e;
+		}), file, keyCodec, runValueCodec);
+		try (OutputStream out = Files.newOutputStream(bloomFile(seq))) {
+			bloom.writeTo(out);
+		}
+		force(file);
+		force(bloomFile(seq));
+		//The manifest must not refer to a run whose files a crash could lose
+		AtomicFiles.forceDirectory(dir);
+		return new Run<>(seq, MappedTTTree.open(file, cmp, keyCodec, runValueCodec), bloom);
+	}
+
+	/**
+	 * Replace some runs by a new run, or add a run for the frozen memtable. The new list of runs
+	 * is written to the manifest before readers get to see it.
+	 */
+	private void publish(List<Run<K>> replaced, Run<K> run, boolean flushed) throws IOException {
+		synchronized (manifestLock) {
+			List<Run<K>> runs = new ArrayList<>(state.runs);
+			int i = replaced.isEmpty() ? 0 : runs.indexOf(replaced.get(0));
+			runs.removeAll(replaced);
+			runs.add(i, run);
+
+			Path tmp = dir.resolve(MANIFEST+".tmp");
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(nextSeq.get());
+				out.writeInt(runs.size());
+				for (Run<K> r : runs) {
+					out.writeLong(r.seq);
+				}
+			}
+			force(tmp);
+			AtomicFiles.replace(tmp, dir.resolve(MANIFEST));
+
+			synchronized (this) {
+				State<K> s = state;
+				state = new State<>(s.memtable, flushed ? null : s.frozen, Collections.unmodifiableList(runs));
+				notifyAll();
+			}
+		}
+	}
+
+	private Path runFile(long seq) {
+		return dir.resolve("run-"+seq+".ttt");
+	}
+
+	private Path bloomFile(long seq) {
+		return dir.resolve("run-"+seq+".bloom");
+	}
+
+	private static void force(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T unchecked(Object o) {
+		return (T) o;
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static ThreadFactory daemon(String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Merges iterators over ascending entries, of which earlier ones have newer entries. For
+	 * every key, only the entry from the newest iterator that has it is returned.
+	 */
+	private final class MergingIterator implements Iterator<Map.Entry<K, Object>> {
+
+		private final PriorityQueue<Source> heads = new PriorityQueue<>();
+
+		MergingIterator(Iterable<? extends Iterator<? extends Map.Entry<K, Object>>> sources) {
+			this(sources.iterator());
+		}
+
+		MergingIterator(Iterator<? extends Iterator<? extends Map.Entry<K, Object>>> sources) {
+			int age = 0;
+			while (sources.hasNext()) {
+				Source source = new Source(sources.next(), age++);
+				if (source.advance()) {
+					heads.add(source);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public Map.Entry<K, Object> next() {
+			Source newest = heads.poll();
+			if (newest==null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, Object> entry = newest.head;
+			//Skip the older entries for the same key
+			List<Source> advanced = new ArrayList<>();
+			advanced.add(newest);
+			while (!heads.isEmpty() && TTTree.compare(cmp, heads.peek().head.getKey(), entry.getKey())==0) {
+				advanced.add(heads.poll());
+			}
+			for (Source source : advanced) {
+				if (source.advance()) {
+					heads.add(source);
+				}
+			}
+			return entry;
+		}
+
+		private final class Source implements Comparable<Source> {
+			final Iterator<? extends Map.Entry<K, Object>> entries;
+			final int age;
+			Map.Entry<K, Object> head;
+
+			Source(Iterator<? extends Map.Entry<K, Object>> entries, int age) {
+				this.entries = entries;
+				this.age = age;
+			}
+
+			boolean advance() {
+				head = entries.hasNext() ? entries.next() : null;
+				return head!=null;
+			}
+
+			@Override
+			public int compareTo(Source other) {
+				int c = TTTree.compare(cmp, head.getKey(), other.head.getKey());
+				return c!=0 ? c : Integer.compare(age, other.age);
+			}
+		}
+	}
+}
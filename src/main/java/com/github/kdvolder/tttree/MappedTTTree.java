@@ -0,0 +1,618 @@
+package com.github.kdvolder.tttree;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * A read-only snapshot of a {@link TTTree}, stored in a file and accessed through memory
+ * mapped buffers. Opening a snapshot maps the file but reads nothing, so it is effectively
+ * instant regardless of the size of the file, and the entries never live on the Java heap.
+ * Lookups decode only the O(log(n)) keys they compare with.
+ * <p>
+ * The file consists of a header, the entries in ascending order (each a key followed by its
+ * value, written by {@link Codec}s), an index with the offset of every entry, and a sparse
+ * index on top of that. The sparse index is a static B-tree of nodes of about {@value #PAGE_SIZE}
+ * bytes. Its bottom level has the first key of every block of entries that start in the same
+ * page, and every level above it has the first key of every node of the level below, up to a
+ * single node at the top. A lookup does a binary search in one node of every level, and then
+ * in a single block of entries. So it touches O(log_B(n)) pages, where B is the number of keys
+ * in a node, rather than the O(log(n)) pages of a binary search over all entries. Files larger
+ * than 2GB are mapped as several regions.
+ * <p>
+ * The mapped buffers are released by the garbage collector, not by {@link #close}, which
+ * only closes the file. Since lookups never touch the file itself, a snapshot can still be
+ * read after it is closed (and even after the file is deleted, on systems that allow deleting
+ * mapped files).
+ */
+public final class MappedTTTree<K, V> implements Iterable<Map.Entry<K, V>>, Closeable {
+
+	private static final int MAGIC = 0x5454544D; //"TTTM"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 32;
+
+	/**
+	 * Size of the nodes of the sparse index (unless a single key is larger). A block of entries
+	 * that the sparse index points to starts in a single page, and its offsets fit in a page.
+	 */
+	static final int PAGE_SIZE = 4096;
+	private static final int OFFSETS_PER_PAGE = PAGE_SIZE/8;
+
+	/**
+	 * Size of the mapped regions. A multiple of 8, so that an index entry never straddles
+	 * two regions.
+	 */
+	static final int REGION_SIZE = 1 << 30;
+
+	private final FileChannel channel;
+	private final ByteBuffer[] regions;
+	private final Comparator<? super K> cmp;
+	private final Codec<? extends K> keyCodec;
+	private final Codec<? extends V> valueCodec;
+	private final int size;
+	private final long indexOffset;
+
+	/**
+	 * Start of every level of the sparse index, from the bottom level up, followed by the end
+	 * of the top level. Empty trees have no levels.
+	 */
+	private final long[] levels;
+
+	private MappedTTTree(FileChannel channel, ByteBuffer[] regions, Comparator<? super K> cmp, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+		this.channel = channel;
+		this.regions = regions;
+		this.cmp = cmp;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		long length = channel.size();
+		if (length<HEADER_SIZE || getInt(0)!=MAGIC) {
+			throw new StreamCorruptedException("Not a TTTree snapshot");
+		}
+		int version = getByte(4);
+		if (version!=VERSION) {
+			throw new InvalidObjectException("Unsupported snapshot version: "+version);
+		}
+		long size = getLong(8);
+		this.indexOffset = getLong(16);
+		long levelsOffset = getLong(24);
+		if (size<0 || size>Integer.MAX_VALUE || indexOffset<HEADER_SIZE || indexOffset%8!=0
+				|| levelsOffset<indexOffset+size*8 || levelsOffset%8!=0 || levelsOffset>=length || (length-levelsOffset)%8!=0) {
+			throw new StreamCorruptedException("Bad snapshot header");
+		}
+		this.size = (int) size;
+		this.levels = new long[(int) ((length-levelsOffset)/8)];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = getLong(levelsOffset+i*8);
+			if (levels[i]<(i==0 ? indexOffset+size*8 : levels[i-1]) || levels[i]>levelsOffset) {
+				throw new StreamCorruptedException("Bad sparse index");
+			}
+		}
+		if (levels[0]!=indexOffset+size*8 || (size==0)!=(levels.length==1)) {
+			throw new StreamCorruptedException("Bad sparse index");
+		}
+	}
+
+	////////////////////////////////////
+	// public api
+	////////////////////////////////////
+
+	/**
+	 * Write a snapshot of a tree to a file, replacing the file if it exists. The snapshot is
+	 * written to a temporary file next to it, which is then atomically moved into place, so
+	 * the file always holds either the old or the complete new snapshot, and snapshots already
+	 * opened from it are not affected. The entries are streamed from the tree, and the index and
+	 * the bottom level of the sparse index are buffered in temporary files as well. Only the
+	 * levels above that, which have one key per node of the level below, are built up in memory.
+	 */
+	public static <K, V> void write(TTTree<K, V> tree, Path file, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+		write(tree.iterator(), file, keyCodec, valueCodec);
+	}
+
+	/**
+	 * Like {@link #write(TTTree, Path, Codec, Codec)}, but writing entries that are
+	 * produced in ascending order of their keys by an iterator.
+	 */
+	static <K, V> void write(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, Path file, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+		try {
+			writeFile(entries, tmp, keyCodec, valueCodec);
+			AtomicFiles.replace(tmp, file);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	private static <K, V> void writeFile(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, Path file, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+		Path indexFile = file.resolveSibling(file.getFileName()+".index");
+		Path sparseFile = file.resolveSibling(file.getFileName()+".sparse");
+		try (
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			FileChannel index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+			FileChannel sparse = FileChannel.open(sparseFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE)
+		) {
+			CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			DataOutputStream out = new DataOutputStream(counter);
+			DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(index)));
+			SparseLevel bottom = new SparseLevel(new BufferedOutputStream(Channels.newOutputStream(sparse)), null);
+			ByteArrayOutputStream key = new ByteArrayOutputStream();
+			out.write(new byte[HEADER_SIZE]); //Filled in at the end
+			long count = 0;
+			long blockStart = 0;
+			while (entries.hasNext()) {
+				Map.Entry<? extends K, ? extends V> e = entries.next();
+				long offset = counter.getCount();
+				if (count==0 || offset/PAGE_SIZE!=blockStart/PAGE_SIZE || count%OFFSETS_PER_PAGE==0) {
+					//The first entry of a block
+					key.reset();
+					keyCodec.write(new DataOutputStream(key), e.getKey());
+					bottom.add(count, key.toByteArray());
+					blockStart = offset;
+				}
+				offsets.writeLong(offset);
+				keyCodec.write(out, e.getKey());
+				valueCodec.write(out, e.getValue());
+				count++;
+			}
+			pad(out, counter.getCount());
+			long indexOffset = counter.getCount();
+			out.flush();
+			offsets.flush();
+			transfer(index, count*8, channel);
+
+			//The levels of the sparse index, from the bottom up
+			List<Long> levels = new ArrayList<>();
+			long pos = indexOffset+count*8;
+			levels.add(pos);
+			if (count>0) {
+				bottom.finish(count);
+				transfer(sparse, bottom.size(), channel);
+				pos += bottom.size();
+				levels.add(pos);
+				for (SparseLevel level = bottom.parent; level!=null; level = level.parent) {
+					level.writeTo(out);
+					pos += level.size();
+					levels.add(pos);
+				}
+			}
+			pos += pad(out, pos);
+			long levelsOffset = pos;
+			for (long level : levels) {
+				out.writeLong(level);
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).put((byte) VERSION).put(new byte[3]).putLong(count).putLong(indexOffset).putLong(levelsOffset);
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Open a snapshot of a tree whose keys are sorted by their natural ordering.
+	 */
+	public static <K extends Comparable<K>, V> MappedTTTree<K, V> open(Path file, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+		return open(file, null, keyCodec, valueCodec);
+	}
+
+	/**
+	 * Open a snapshot of a tree whose keys are sorted by a given comparator (or by their natural
+	 * ordering if it is null). This must be the ordering of the tree that was written.
+	 */
+	public static <K, V> MappedTTTree<K, V> open(Path file, Comparator<? super K> comparator, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			ByteBuffer[] regions = new ByteBuffer[(int) ((length+REGION_SIZE-1)/REGION_SIZE)];
+			for (int i = 0; i < regions.length; i++) {
+				long start = (long) i*REGION_SIZE;
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length-start));
+				regions[i] = region;
+			}
+			return new MappedTTTree<>(channel, regions, comparator, keyCodec, valueCodec);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	public V get(K k) {
+		long i = indexOf(k);
+		if (i>=0) {
+			MappedInput in = new MappedInput(getLong(indexOffset+i*8));
+			readKey(in);
+			return readValue(in);
+		}
+		return null;
+	}
+
+	public boolean containsKey(K k) {
+		return indexOf(k)>=0;
+	}
+
+	/**
+	 * Iterate all entries, in order.
+	 */
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator(0, size);
+	}
+
+	/**
+	 * Iterate the entries with keys in a given range, in order. A null bound means the range
+	 * is unbounded on that side.
+	 */
+	public Iterator<Map.Entry<K, V>> iterator(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		long from = 0;
+		if (fromKey!=null) {
+			long i = indexOf(fromKey);
+			from = i>=0 ? (fromInclusive ? i : i+1) : -(i+1);
+		}
+		long to = size;
+		if (toKey!=null) {
+			long i = indexOf(toKey);
+			to = i>=0 ? (toInclusive ? i+1 : i) : -(i+1);
+		}
+		return new EntryIterator(from, Math.max(from, to));
+	}
+
+	/**
+	 * Closes the file. The mapped memory is released once the snapshot is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "MappedTTTree(size="+size+")";
+	}
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	/**
+	 * Find the index of the entry with a given key. Returns (-(insertion point) - 1) if there is
+	 * no such entry, like {@link java.util.Arrays#binarySearch}.
+	 * <p>
+	 * Starting with the top node of the sparse index, this picks the last key in a node that is
+	 * not larger than k (or the first key), which leads to a node of the level below. The bottom
+	 * level leads to the block of entries that contains k, if there is such an entry, and a
+	 * binary search over the block finds it.
+	 */
+	private long indexOf(K k) {
+		long lo = 0;
+		long hi = -1;
+		long node = 0; //relative to the start of its level
+		MappedInput in = new MappedInput(0);
+		for (int level = levels.length-1; level > 0; level--) {
+			long start = levels[level-1]+node;
+			int found = 0;
+			int l = 1;
+			int h = getInt(start)-1;
+			while (l<=h) {
+				int mid = (l+h) >>> 1;
+				record(in, start, mid, levels[level]);
+				readVarLong(in);
+				if (TTTree.compare(cmp, readKey(in), k)<=0) {
+					found = mid;
+					l = mid+1;
+				} else {
+					h = mid-1;
+				}
+			}
+			node = readVarLong(record(in, start, found, levels[level]));
+			if (level==1) {
+				lo = node;
+				hi = readVarLong(record(in, start, found+1, levels[level]))-1;
+			}
+		}
+		while (lo<=hi) {
+			long mid = (lo+hi) >>> 1;
+			K midKey = readKey(in.seek(getLong(indexOffset+mid*8), indexOffset));
+			int c = TTTree.compare(cmp, midKey, k);
+			if (c<0) {
+				lo = mid+1;
+			} else if (c>0) {
+				hi = mid-1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo+1);
+	}
+
+	/**
+	 * Position an input at a record of a node of the sparse index.
+	 */
+	private MappedInput record(MappedInput in, long node, int i, long end) {
+		return in.seek(node+getInt(node+4+i*4), end);
+	}
+
+	private long readVarLong(MappedInput in) {
+		try {
+			return Codecs.readVarLong(in.data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private K readKey(MappedInput in) {
+		try {
+			return keyCodec.read(in.data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private V readValue(MappedInput in) {
+		try {
+			return valueCodec.read(in.data);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Pad with zeroes up to a multiple of 8, so that longs never straddle two regions.
+	 *
+	 * @return The number of bytes written.
+	 */
+	private static int pad(DataOutputStream out, long pos) throws IOException {
+		int padding = (int) ((8-pos%8)%8);
+		out.write(new byte[padding]);
+		return padding;
+	}
+
+	/**
+	 * Append the first bytes of a temporary file to the current position of another file.
+	 */
+	private static void transfer(FileChannel from, long length, FileChannel to) throws IOException {
+		long copied = 0;
+		while (copied<length) {
+			copied += from.transferTo(copied, length-copied, to);
+		}
+	}
+
+	/**
+	 * A level of the sparse index under construction. It consists of nodes, each of which starts
+	 * with the number of records n, followed by the offsets of n+1 records within the node. A
+	 * record is a variable length integer, which in the bottom level is the index of an entry
+	 * and in the levels above is the position of a node in the level below, followed by the key
+	 * of that entry, or the first key of that node. The last record has only the integer, of the
+	 * record that follows the node, so the end of the last block of a node is known. A level gets
+	 * a parent (the next level up) once it has a second node.
+	 */
+	private static final class SparseLevel {
+		private final CountingOutputStream out;
+		private final ByteArrayOutputStream buffer; //null for the bottom level
+		private SparseLevel parent;
+		private byte[] firstKey; //of the level
+
+		//The node under construction
+		private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		private final List<Integer> offsets = new ArrayList<>();
+		private byte[] nodeKey;
+
+		SparseLevel(OutputStream out, ByteArrayOutputStream buffer) {
+			this.out = new CountingOutputStream(out);
+			this.buffer = buffer;
+		}
+
+		void add(long child, byte[] key) throws IOException {
+			//With room for the integers of this record and of the one after the node, and padding
+			if (!offsets.isEmpty() && nodeSize(offsets.size()+1, records.size()+key.length+23)>PAGE_SIZE) {
+				writeNode(child);
+			}
+			if (offsets.isEmpty()) {
+				nodeKey = key;
+			}
+			offsets.add(records.size());
+			Codecs.writeVarLong(new DataOutputStream(records), child);
+			records.write(key);
+		}
+
+		/**
+		 * Write the last node of this level and of all levels above it.
+		 *
+		 * @param next The child that follows the last record.
+		 */
+		void finish(long next) throws IOException {
+			writeNode(next);
+			out.flush();
+			if (parent!=null) {
+				parent.finish(size());
+			}
+		}
+
+		private void writeNode(long next) throws IOException {
+			long pos = out.getCount();
+			if (pos==0) {
+				firstKey = nodeKey;
+			} else {
+				if (parent==null) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					parent = new SparseLevel(bytes, bytes);
+					parent.add(0, firstKey);
+				}
+				parent.add(pos, nodeKey);
+			}
+			DataOutputStream node = new DataOutputStream(out);
+			int n = offsets.size();
+			int header = nodeSize(n, 0);
+			node.writeInt(n);
+			for (int offset : offsets) {
+				node.writeInt(header+offset);
+			}
+			node.writeInt(header+records.size());
+			records.writeTo(node);
+			Codecs.writeVarLong(node, next);
+			while (out.getCount()%4!=0) {
+				node.writeByte(0); //So that the ints of a node never straddle two regions
+			}
+			records.reset();
+			offsets.clear();
+		}
+
+		private static int nodeSize(int n, int recordsSize) {
+			return 4+(n+1)*4+recordsSize;
+		}
+
+		long size() {
+			return out.getCount();
+		}
+
+		void writeTo(OutputStream target) throws IOException {
+			buffer.writeTo(target);
+		}
+	}
+
+	private byte getByte(long pos) {
+		return regions[(int) (pos/REGION_SIZE)].get((int) (pos%REGION_SIZE));
+	}
+
+	private int getInt(long pos) {
+		return regions[(int) (pos/REGION_SIZE)].getInt((int) (pos%REGION_SIZE));
+	}
+
+	private long getLong(long pos) {
+		return regions[(int) (pos/REGION_SIZE)].getLong((int) (pos%REGION_SIZE));
+	}
+
+	/**
+	 * Iterates entries [from..to). Entries are stored back to back, so after the first one
+	 * the iterator just keeps decoding, without looking at the index.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		private long remaining;
+		private final MappedInput in;
+
+		EntryIterator(long from, long to) {
+			this.remaining = to-from;
+			this.in = new MappedInput(remaining>0 ? getLong(indexOffset+from*8) : 0);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining>0;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (remaining==0) {
+				throw new NoSuchElementException();
+			}
+			remaining--;
+			K k = readKey(in);
+			V v = readValue(in);
+			return new SimpleImmutableEntry<>(k, v);
+		}
+	}
+
+	/**
+	 * Reads the mapped regions from a given position onwards, up to an end. The codecs read
+	 * through {@link #data}, which doesn't buffer, so the position is always just past the last
+	 * value read. By default this reads entries, so the end is the start of the index.
+	 */
+	private final class MappedInput extends InputStream {
+
+		private long pos;
+		private long end;
+		final DataInputStream data = new DataInputStream(this);
+
+		MappedInput(long pos) {
+			this(pos, indexOffset);
+		}
+
+		MappedInput(long pos, long end) {
+			seek(pos, end);
+		}
+
+		MappedInput seek(long pos, long end) {
+			this.pos = pos;
+			this.end = end;
+			return this;
+		}
+
+		@Override
+		public int read() {
+			if (pos>=end) {
+				return -1;
+			}
+			return getByte(pos++) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len==0) {
+				return 0;
+			}
+			if (pos>=end) {
+				return -1;
+			}
+			len = (int) Math.min(len, end-pos);
+			int read = len;
+			while (len>0) {
+				ByteBuffer region = regions[(int) (pos/REGION_SIZE)].duplicate();
+				region.position((int) (pos%REGION_SIZE));
+				int n = Math.min(len, region.remaining());
+				region.get(b, off, n);
+				off += n;
+				len -= n;
+				pos += n;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, end-pos));
+			pos += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Math.max(0, end-pos), Integer.MAX_VALUE);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.github.kdvolder.tttree;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serialization proxy for {@link TTTree}, {@link TTTMap} and {@link TTTSet}. Rather than the
+ * nodes of the tree, it writes the number of entries followed by the keys and values in order
+ * (just the keys, for a set). When read back the tree is rebuilt bottom-up in O(n) time, which
+ * also makes sure that the shape of the tree is valid.
+ */
+final class SerializedForm implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final byte TREE = 0;
+	static final byte MAP = 1;
+	static final byte SET = 2;
+
+	private final byte kind;
+
+	/**
+	 * Ordering of the keys, null for natural ordering.
+	 */
+	private final Comparator<Object> cmp;
+
+	private transient TTTree<Object, Object> tree;
+
+	@SuppressWarnings("unchecked")
+	SerializedForm(byte kind, Comparator<?> cmp, TTTree<?, ?> tree) {
+		this.kind = kind;
+		this.cmp = (Comparator<Object>) cmp;
+		this.tree = (TTTree<Object, Object>) tree;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(tree.size());
+		for (Map.Entry<Object, Object> e : tree) {
+			out.writeObject(e.getKey());
+			if (kind!=SET) {
+				out.writeObject(e.getValue());
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int size = in.readInt();
+		if (size<0) {
+			throw new InvalidObjectException("Bad size: "+size);
+		}
+		List<Map.Entry<Object, Object>> entries = new ArrayList<>(Math.min(size, 1024));
+		for (int i = 0; i < size; i++) {
+			Object k = in.readObject();
+			Object v = kind!=SET ? in.readObject() : TTTSet.NULL;
+			entries.add(new SimpleImmutableEntry<>(k, v));
+		}
+		try {
+			tree = TTTree.fromSorted(cmp, entries.iterator(), null);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidObjectException(e.getMessage());
+		}
+	}
+
+	private Object readResolve() throws InvalidObjectException {
+		switch (kind) {
+		case TREE:
+			return tree;
+		case MAP:
+			return new TTTMap<>(cmp, tree);
+		case SET:
+			return new TTTSet<>(cmp, tree);
+		default:
+			throw new InvalidObjectException("Unknown kind: "+kind);
+		}
+	}
+}
@@ -1,43 +1,116 @@
 package com.github.kdvolder.tttree;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
-import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+import com.google.common.collect.Iterators;
 
 /**
  * An instance of this class wraps a {@link TTTree} adapting it to provide
- * a standard immutable {@link Map} implementation.
+ * a standard immutable {@link NavigableMap} implementation.
+ * <p>
+ * All navigation operations are implemented by a single O(log(n)) descent of the tree.
+ * Range views such as {@link #subMap}, {@link #headMap} and {@link #tailMap} are themselves
+ * {@link TTTMap}s. They are computed in O(log(n)) by splitting the tree, sharing all but
+ * O(log(n)) of its nodes. Since the maps are immutable, this is indistinguishable from a 'view'.
+ * <p>
+ * Like {@link TreeMap}, the keys are sorted by their natural ordering, or by a {@link Comparator}
+ * provided when the map is created. The comparator is kept by the map rather than by the nodes of
+ * the tree.
  * <p>
  * TODO: maybe this wrapper can be avoided if TTTree directly implements / subclasses
- * from AbstractMap. A potential drawback is that doesn't give us a good place to
- * cache the 'size' of the map (caching it in every tree node might be wasting space).
+ * from AbstractMap.
  *
  * @author Kris De Volder
  */
-public class TTTMap<K extends Comparable<K>, V> extends AbstractMap<K, V> {
+public class TTTMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V>, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private TTTree<K, V> map;
-	private int size = -1; //computed the first time it is used.
+
+	/**
+	 * Order of the keys, null for natural ordering.
+	 */
+	private final Comparator<? super K> cmp;
 
 	public TTTMap() {
-		this(TTTree.empty());
+		this(TTTree.emptyTree());
+	}
+
+	/**
+	 * Create an empty map sorted by a given comparator.
+	 */
+	public TTTMap(Comparator<? super K> comparator) {
+		this(comparator, TTTree.emptyTree());
 	}
 
 	public TTTMap(TTTree<K, V> map) {
+		this(null, map);
+	}
+
+	/**
+	 * Wrap a tree whose keys are sorted by a given comparator (or by their natural
+	 * ordering if the comparator is null).
+	 */
+	TTTMap(Comparator<? super K> comparator, TTTree<K, V> map) {
+		this.cmp = comparator;
 		this.map = map;
 	}
 
+	/**
+	 * Create a {@link TTTMap} with the same contents and the same ordering as a given sorted map.
+	 * This takes O(n) time, without the overhead of inserting the entries one by one.
+	 */
+	public static <K, V> TTTMap<K, V> copyOfSorted(SortedMap<K, ? extends V> map) {
+		Comparator<? super K> cmp = map.comparator();
+		return new TTTMap<>(cmp, TTTree.fromSorted(cmp, map.entrySet().iterator(), null));
+	}
+
 	@Override
 	public Set<Entry<K, V>> entrySet() {
-		return new AbstractSet<Entry<K,V>>() {
+		return new AbstractImmutableSet<Entry<K,V>>() {
 
 			@Override
 			public Iterator<Entry<K, V>> iterator() {
 				return map.iterator();
 			}
 
+			@Override
+			public Spliterator<Entry<K, V>> spliterator() {
+				return map.spliterator(cmp);
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (o instanceof Entry) {
+					Entry<?, ?> e = (Entry<?, ?>) o;
+					Entry<K, V> found = lookup(e.getKey());
+					return found!=null && Objects.equals(found.getValue(), e.getValue());
+				}
+				return false;
+			}
+
 			@Override
 			public boolean isEmpty() {
 				return TTTMap.this.isEmpty();
@@ -57,22 +130,239 @@ public class TTTMap<K extends Comparable<K>, V> extends AbstractMap<K, V> {
 
 	@Override
 	public int size() {
-		if (size<0) {
-			size = map.size();
+		return map.size();
+	}
+
+	@Override
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+
+			@Override
+			public Iterator<V> iterator() {
+				return Iterators.transform(map.iterator(), Entry::getValue);
+			}
+
+			@Override
+			public Spliterator<V> spliterator() {
+				return map.valueSpliterator();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return TTTMap.this.isEmpty();
+			}
+
+			@Override
+			public int size() {
+				return TTTMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public boolean containsKey(Object k) {
+		return lookup(k)!=null;
+	}
+
+	/**
+	 * Find the entry for a key of unknown type. Returns null if there is no such entry, which
+	 * includes the case where the key is of a type that can't be compared to the keys of this map.
+	 */
+	@SuppressWarnings("unchecked")
+	Entry<K, V> lookup(Object k) {
+		if (k!=null || cmp!=null) {
+			try {
+				return map.lookup(cmp, (K)k);
+			} catch (ClassCastException e) {
+				//Key of some unrelated type, so it can't be in this map.
+			}
 		}
-		return size;
+		return null;
 	}
 
+	/**
+	 * Compares with another map. When the other map is a {@link TTTMap} with the same ordering,
+	 * maps with a different size or hashCode are rejected right away. Otherwise both trees are
+	 * traversed side by side, skipping the subtrees they share, which is at most O(n) rather
+	 * than the O(n*log(n)) of the generic {@link AbstractMap#equals}.
+	 */
 	@SuppressWarnings("unchecked")
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof TTTMap && Objects.equals(cmp, ((TTTMap<?, ?>) o).cmp)) {
+			TTTMap<?, ?> other = (TTTMap<?, ?>) o;
+			if (other.map==map) {
+				return true;
+			} else if (other.size()!=size()) {
+				return false;
+			}
+			return map.equalEntries(cmp, (TTTree<K, ?>) other.map);
+		}
+		return super.equals(o);
+	}
+
+	/**
+	 * O(1), since every node of the tree keeps the sum of the hashCodes of its entries.
+	 */
+	@Override
+	public int hashCode() {
+		return map.entryHash();
+	}
+
 	@Override
 	public V get(Object k) {
-		if (k instanceof Comparable<?>) {
-			//This instanceof is not sufficient to make it safe, but
-			//is the best we can do given that all the other type info
-			//is 'erased' at runtime.
-			return map.get((K)k);
+		Entry<K, V> e = lookup(k);
+		return e==null ? null : e.getValue();
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+		return cmp;
+	}
+
+	@Override
+	public Entry<K, V> lowerEntry(K key) {
+		return map.floor(cmp, key, false);
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return keyOrNull(map.floor(cmp, key, false));
+	}
+
+	@Override
+	public Entry<K, V> floorEntry(K key) {
+		return map.floor(cmp, key, true);
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return keyOrNull(map.floor(cmp, key, true));
+	}
+
+	@Override
+	public Entry<K, V> ceilingEntry(K key) {
+		return map.ceiling(cmp, key, true);
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return keyOrNull(map.ceiling(cmp, key, true));
+	}
+
+	@Override
+	public Entry<K, V> higherEntry(K key) {
+		return map.ceiling(cmp, key, false);
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return keyOrNull(map.ceiling(cmp, key, false));
+	}
+
+	@Override
+	public Entry<K, V> firstEntry() {
+		return map.firstEntry();
+	}
+
+	@Override
+	public Entry<K, V> lastEntry() {
+		return map.lastEntry();
+	}
+
+	@Override
+	public K firstKey() {
+		return key(map.firstEntry());
+	}
+
+	@Override
+	public K lastKey() {
+		return key(map.lastEntry());
+	}
+
+	@Override
+	public Entry<K, V> pollFirstEntry() {
+		throw new UnsupportedOperationException("pollFirstEntry");
+	}
+
+	@Override
+	public Entry<K, V> pollLastEntry() {
+		throw new UnsupportedOperationException("pollLastEntry");
+	}
+
+	@Override
+	public NavigableMap<K, V> descendingMap() {
+		return new DescendingTTTMap<>(this);
+	}
+
+	@Override
+	public TTTSet<K> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public TTTSet<K> navigableKeySet() {
+		return new TTTSet<>(cmp, map);
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return navigableKeySet().descendingSet();
+	}
+
+	@Override
+	public TTTMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return wrap(map.subTree(cmp, fromKey, fromInclusive, toKey, toInclusive));
+	}
+
+	@Override
+	public TTTMap<K, V> headMap(K toKey, boolean inclusive) {
+		return wrap(map.headTree(cmp, toKey, inclusive));
+	}
+
+	@Override
+	public TTTMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		return wrap(map.tailTree(cmp, fromKey, inclusive));
+	}
+
+	@Override
+	public TTTMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public TTTMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public TTTMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/**
+	 * Iterate the entries of this map in descending order.
+	 */
+	Iterator<Entry<K, V>> descendingIterator() {
+		return map.descendingIterator();
+	}
+
+	private TTTMap<K, V> wrap(TTTree<K, V> tree) {
+		if (tree==map) {
+			return this;
 		}
-		return null;
+		return new TTTMap<>(cmp, tree);
+	}
+
+	static <K> K keyOrNull(Entry<K, ?> e) {
+		return e==null ? null : e.getKey();
+	}
+
+	static <K> K key(Entry<K, ?> e) {
+		if (e==null) {
+			throw new NoSuchElementException();
+		}
+		return e.getKey();
 	}
 
 	/**
@@ -90,11 +380,7 @@ public class TTTMap<K extends Comparable<K>, V> extends AbstractMap<K, V> {
 	 * </pre>
 	 */
 	public TTTMap<K, V> insert(K k, V v) {
-		TTTree<K, V> copy = map.put(k, v);
-		if (copy==map) {
-			return this;
-		}
-		return new TTTMap<>(copy);
+		return wrap(map.put(cmp, null, k, v));
 	}
 
 	/**
@@ -105,14 +391,139 @@ public class TTTMap<K extends Comparable<K>, V> extends AbstractMap<K, V> {
 	 * determine if the deleted key was presented in the original map.
 	 */
 	public TTTMap<K, V> delete(K k) {
-		TTTree<K, V> copy = map.remove(k);
-		if (copy==map) {
+		return wrap(map.remove(cmp, null, k));
+	}
+
+	/**
+	 * Make a copy of this map in which k is associated with the result of a function applied to
+	 * its current entry, in a single descent of the tree. See
+	 * {@link TTTree#compute(Comparator, Object, Object, BiFunction)}.
+	 */
+	TTTMap<K, V> computeEntry(K k, BiFunction<? super K, ? super Entry<K, V>, Object> f) {
+		return wrap(map.compute(cmp, null, k, f));
+	}
+
+	/**
+	 * Make a copy of this map, adding all the entries of another map. When both maps contain
+	 * the same key, their values are combined using a merger function (which is called with the
+	 * value from this map as its first argument). If the merger returns null, the key is removed.
+	 * <p>
+	 * This is implemented by {@link TTTree#union(TTTree, BiFunction)} and reuses any structure
+	 * shared by the two maps, so it is much cheaper than inserting the entries one by one. This
+	 * requires both maps to have the same ordering; if they don't, the other map is first copied
+	 * into the ordering of this map.
+	 */
+	public TTTMap<K, V> merge(TTTMap<K, V> other, BiFunction<? super V, ? super V, ? extends V> merger) {
+		TTTree<K, V> otherTree = other.treeInOrder(cmp);
+		TTTree<K, V> merged = map.union(cmp, otherTree, merger);
+		if (merged==map) {
 			return this;
+		} else if (merged==other.map) {
+			return other;
+		}
+		return new TTTMap<>(cmp, merged);
+	}
+
+	/**
+	 * Compare this map (the old version) with another map (the new version), reporting every
+	 * added, removed and changed entry to a listener, in key order.
+	 * <p>
+	 * This is implemented by {@link TTTree#diff(TTTree, DiffListener)}, which skips over the
+	 * structure shared by both maps, so comparing a map with a modified copy of itself costs
+	 * about O(c*log(n)) for c changes. If the maps have different orderings, the other map is
+	 * first copied into the ordering of this map.
+	 */
+	public void diff(TTTMap<K, V> other, DiffListener<? super K, ? super V> listener) {
+		map.diff(cmp, other.treeInOrder(cmp), listener, false, false);
+	}
+
+	/**
+	 * Get the tree of this map, in the ordering of the map.
+	 */
+	TTTree<K, V> tree() {
+		return map;
+	}
+
+	/**
+	 * Get the tree of this map, sorted by a given comparator. This is just the tree itself when
+	 * the map has the same ordering already, otherwise a re-sorted copy is made.
+	 */
+	TTTree<K, V> treeInOrder(Comparator<? super K> order) {
+		if (Objects.equals(order, cmp)) {
+			return map;
+		}
+		TTTreeBuilder<K, V> builder = new TTTreeBuilder<>(TTTree.emptyTree(), order);
+		map.forEachEntry(builder::put);
+		return builder.persistent();
+	}
+
+	/**
+	 * Make a copy of this map, with each value replaced by the result of applying a function
+	 * to it. If the function returns the identical value for every entry, the returned map is
+	 * this map. See {@link TTTree#mapValues(Function)}.
+	 */
+	@SuppressWarnings("unchecked")
+	public <W> TTTMap<K, W> mapValues(Function<? super V, ? extends W> f) {
+		TTTree<K, W> mapped = map.mapValues(f);
+		if (mapped==map) {
+			return (TTTMap<K, W>) this;
 		}
-		return new TTTMap<>(copy);
+		return new TTTMap<>(cmp, mapped);
+	}
+
+	/**
+	 * Make a copy of this map, retaining only the entries that satisfy a predicate. If all
+	 * entries are retained, the returned map is this map. See {@link TTTree#filter(BiPredicate)}.
+	 */
+	public TTTMap<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+		return wrap(map.filter(predicate));
+	}
+
+	/**
+	 * Make a copy of this map without the entries that satisfy a predicate. If no entry
+	 * is removed, the returned map is this map. See {@link TTTree#removeIf(BiPredicate)}.
+	 */
+	public TTTMap<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+		return wrap(map.removeIf(predicate));
+	}
+
+	/**
+	 * Write the entries of this map to a stream, see {@link TTTree#writeTo(OutputStream, Codec, Codec)}.
+	 * The ordering of the map is not written.
+	 */
+	public void writeTo(OutputStream out, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+		map.writeTo(out, keyCodec, valueCodec);
+	}
+
+	/**
+	 * Read a map written by {@link #writeTo}, with keys sorted by their natural ordering.
+	 */
+	public static <K extends Comparable<K>, V> TTTMap<K, V> readFrom(InputStream in, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+		return readFrom(in, null, keyCodec, valueCodec);
+	}
+
+	/**
+	 * Read a map written by {@link #writeTo}, with keys sorted by a given comparator (or by
+	 * their natural ordering if it is null). This must be the ordering of the map that was
+	 * written, since the entries are expected in that order.
+	 */
+	public static <K, V> TTTMap<K, V> readFrom(InputStream in, Comparator<? super K> comparator, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+		return new TTTMap<>(comparator, BinaryFormat.read(in, comparator, keyCodec, valueCodec, null));
 	}
 
 	public void dump() {
 		map.dump();
 	}
+
+	/**
+	 * Maps are serialized as a {@link SerializedForm}, which holds the comparator (which
+	 * must be serializable itself) and the entries.
+	 */
+	Object writeReplace() {
+		return new SerializedForm(SerializedForm.MAP, cmp, map);
+	}
+
+	private void readObject(ObjectInputStream in) throws InvalidObjectException {
+		throw new InvalidObjectException("Proxy required");
+	}
 }
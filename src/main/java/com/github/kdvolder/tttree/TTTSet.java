@@ -1,77 +1,341 @@
 package com.github.kdvolder.tttree;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.function.Predicate;
+
+import com.google.common.collect.Iterators;
 
 /**
- * A wrapper around a {@link TTTree} that implements {@link Set}. The elements in the set are the keys of
+ * A wrapper around a {@link TTTree} that implements {@link NavigableSet}. The elements in the set are the keys of
  * the TTTree. The {@link TTTSet} behaves the way one would expect from an immutable set. It also provides
  * some additional methods to make modified copies of the Set.
+ * <p>
+ * Like in {@link TTTMap}, navigation operations take O(log(n)) and range views are computed by
+ * splitting the tree. Also like {@link TTTMap}, the elements are sorted by their natural ordering
+ * or by a {@link Comparator} provided when the set is created.
  */
-public class TTTSet<E extends Comparable<E>> extends AbstractSet<E> {
+public class TTTSet<E> extends AbstractImmutableSet<E> implements NavigableSet<E>, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private static final class Null {
 		Null() {}
+
+		/**
+		 * Zero, so that the hashCode of an entry in the tree is just the hashCode of its key.
+		 */
+		@Override
+		public int hashCode() {
+			return 0;
+		}
 	}
 
-	private static final Null NULL = new Null();
+	static final Object NULL = new Null();
 
 	//TODO: we can create a more memory efficient implementation
 	// The current implementation essentialy uses a map where all the values stored are 'null' or ignored.
 	// This is the easiest way to implement TTTSet (i.e. least amount of coding effort)
 	private final TTTree<E, Object> map;
 
+	/**
+	 * Order of the elements, null for natural ordering.
+	 */
+	private final Comparator<? super E> cmp;
+
 	/**
 	 * Create an empty TTTSet
 	 */
 	public TTTSet() {
-		this(TTTree.empty());
+		this(null, TTTree.emptyTree());
+	}
+
+	/**
+	 * Create an empty TTTSet sorted by a given comparator.
+	 */
+	public TTTSet(Comparator<? super E> comparator) {
+		this(comparator, TTTree.emptyTree());
 	}
 
-	@SuppressWarnings("unchecked")
 	public TTTSet(TTTree<E, ?> map) {
-		this.map = (TTTree<E, Object>) map;
+		this(null, map);
 	}
 
 	/**
-	 * The real size is only computed if it is required as it implies counting the elements in the tree.
+	 * Create a set of the keys of a tree, which are sorted by a given comparator (or by
+	 * their natural ordering if the comparator is null).
 	 */
-	private int size = -1;
+	@SuppressWarnings("unchecked")
+	TTTSet(Comparator<? super E> comparator, TTTree<E, ?> map) {
+		this.cmp = comparator;
+		this.map = (TTTree<E, Object>) map;
+	}
 
 	@Override
 	public Iterator<E> iterator() {
 		return map.keySet().iterator();
 	}
 
+	@Override
+	public Spliterator<E> spliterator() {
+		return map.keySpliterator(cmp);
+	}
+
 	@Override
 	public int size() {
-		if (size<0) {
-			size = map.size();
+		return map.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean contains(Object o) {
+		if (o!=null || cmp!=null) {
+			try {
+				return map.lookup(cmp, (E)o)!=null;
+			} catch (ClassCastException e) {
+				//Element of some unrelated type, so it can't be in this set.
+			}
 		}
-		return size;
+		return false;
 	}
 
-	public TTTSet<E> insert(E e) {
-		TTTree<E, Object> copy = map.put(e, NULL);
-		if (copy==map) {
-			return this;
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		if (c instanceof TTTSet) {
+			if (!map.intersection(cmp, ((TTTSet<E>)c).treeInOrder(cmp)).isEmpty()) {
+				throw new UnsupportedOperationException("removeAll");
+			}
+			return false;
 		}
-		return new TTTSet<>(copy);
+		return super.removeAll(c);
 	}
 
-	public TTTSet<E> delete(E e) {
-		TTTree<E, Object> copy = map.remove(e);
-		if (copy==map) {
-			return this;
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		if (c instanceof TTTSet) {
+			if (!map.difference(cmp, ((TTTSet<E>)c).treeInOrder(cmp)).isEmpty()) {
+				throw new UnsupportedOperationException("retainAll");
+			}
+			return false;
 		}
-		return new TTTSet<>(copy);
+		return super.retainAll(c);
+	}
+
+	@Override
+	public boolean removeIf(Predicate<? super E> filter) {
+		if (retainAll(filter.negate())!=this) {
+			throw new UnsupportedOperationException("removeIf");
+		}
+		return false;
+	}
+
+	/**
+	 * Make a copy of this set, retaining only the elements that satisfy a predicate. Only the
+	 * subtrees that contain removed elements are rebuilt, see {@link TTTree#filter(BiPredicate)}.
+	 * If all elements are retained, the returned set is this set. Like {@link TTTree#removeIf},
+	 * this runs sequentially on the calling thread.
+	 */
+	public TTTSet<E> retainAll(Predicate<? super E> predicate) {
+		return wrap(map.filter((e, v) -> predicate.test(e), Integer.MAX_VALUE), null);
+	}
+
+	/**
+	 * Compares with another set. When the other set is a {@link TTTSet} with the same ordering,
+	 * sets with a different size or hashCode are rejected right away. Otherwise the keys of both trees are compared
+	 * side by side, skipping the subtrees they share, which is at most O(n) rather than the
+	 * O(n*log(n)) of the generic {@link AbstractSet#equals}.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof TTTSet && Objects.equals(cmp, ((TTTSet<?>) o).cmp)) {
+			TTTSet<?> other = (TTTSet<?>) o;
+			if (other.map==map) {
+				return true;
+			} else if (other.size()!=size()) {
+				return false;
+			}
+			return map.equalKeys(cmp, (TTTree<E, ?>) other.map);
+		}
+		return super.equals(o);
+	}
+
+	/**
+	 * O(1), since every node of the tree keeps the sum of the hashCodes of its keys. This holds
+	 * for the key set of a map as well.
+	 */
+	@Override
+	public int hashCode() {
+		return map.keyHash();
+	}
+
+	public TTTSet<E> insert(E e) {
+		return wrap(map.put(cmp, null, e, NULL), null);
+	}
+
+	public TTTSet<E> delete(E e) {
+		return wrap(map.remove(cmp, null, e), null);
+	}
+
+	/**
+	 * Write the elements of this set to a stream, in the binary format of
+	 * {@link TTTree#writeTo(OutputStream, Codec, Codec)} but without values.
+	 * The ordering of the set is not written.
+	 */
+	public void writeTo(OutputStream out, Codec<? super E> codec) throws IOException {
+		BinaryFormat.write(map, out, codec, null);
+	}
+
+	/**
+	 * Read a set written by {@link #writeTo}, with elements sorted by their natural ordering.
+	 */
+	public static <E extends Comparable<E>> TTTSet<E> readFrom(InputStream in, Codec<? extends E> codec) throws IOException {
+		return readFrom(in, null, codec);
+	}
+
+	/**
+	 * Read a set written by {@link #writeTo}, with elements sorted by a given comparator (or by
+	 * their natural ordering if it is null). This must be the ordering of the set that was
+	 * written, since the elements are expected in that order.
+	 */
+	public static <E> TTTSet<E> readFrom(InputStream in, Comparator<? super E> comparator, Codec<? extends E> codec) throws IOException {
+		return new TTTSet<>(comparator, BinaryFormat.read(in, comparator, codec, null, NULL));
 	}
 
 	public void dump() {
 		map.dump();
 	}
 
+	/**
+	 * Sets are serialized as a {@link SerializedForm}, which holds the comparator (which
+	 * must be serializable itself) and the elements.
+	 */
+	Object writeReplace() {
+		return new SerializedForm(SerializedForm.SET, cmp, map);
+	}
+
+	private void readObject(ObjectInputStream in) throws InvalidObjectException {
+		throw new InvalidObjectException("Proxy required");
+	}
+
+	@Override
+	public Comparator<? super E> comparator() {
+		return cmp;
+	}
+
+	@Override
+	public E lower(E e) {
+		return TTTMap.keyOrNull(map.floor(cmp, e, false));
+	}
+
+	@Override
+	public E floor(E e) {
+		return TTTMap.keyOrNull(map.floor(cmp, e, true));
+	}
+
+	@Override
+	public E ceiling(E e) {
+		return TTTMap.keyOrNull(map.ceiling(cmp, e, true));
+	}
+
+	@Override
+	public E higher(E e) {
+		return TTTMap.keyOrNull(map.ceiling(cmp, e, false));
+	}
+
+	@Override
+	public E first() {
+		return TTTMap.key(map.firstEntry());
+	}
+
+	@Override
+	public E last() {
+		return TTTMap.key(map.lastEntry());
+	}
+
+	@Override
+	public E pollFirst() {
+		throw new UnsupportedOperationException("pollFirst");
+	}
+
+	@Override
+	public E pollLast() {
+		throw new UnsupportedOperationException("pollLast");
+	}
+
+	@Override
+	public NavigableSet<E> descendingSet() {
+		return new DescendingTTTSet<>(this);
+	}
+
+	@Override
+	public Iterator<E> descendingIterator() {
+		return Iterators.transform(map.descendingIterator(), Map.Entry::getKey);
+	}
+
+	@Override
+	public TTTSet<E> subSet(E fromElement, boolean fromInclusive, E toElement, boolean toInclusive) {
+		return wrap(map.subTree(cmp, fromElement, fromInclusive, toElement, toInclusive), null);
+	}
+
+	@Override
+	public TTTSet<E> headSet(E toElement, boolean inclusive) {
+		return wrap(map.headTree(cmp, toElement, inclusive), null);
+	}
+
+	@Override
+	public TTTSet<E> tailSet(E fromElement, boolean inclusive) {
+		return wrap(map.tailTree(cmp, fromElement, inclusive), null);
+	}
+
+	@Override
+	public TTTSet<E> subSet(E fromElement, E toElement) {
+		return subSet(fromElement, true, toElement, false);
+	}
+
+	@Override
+	public TTTSet<E> headSet(E toElement) {
+		return headSet(toElement, false);
+	}
+
+	@Override
+	public TTTSet<E> tailSet(E fromElement) {
+		return tailSet(fromElement, true);
+	}
+
+	/**
+	 * Create a {@link TTTSet} with the same elements and the same ordering as a given sorted set.
+	 * This takes O(n) time, without the overhead of inserting the elements one by one.
+	 */
+	public static <T> TTTSet<T> copyOfSorted(SortedSet<T> elements) {
+		Comparator<? super T> cmp = elements.comparator();
+		return new TTTSet<>(cmp, TTTree.<T, Object>fromSorted(cmp, Iterators.transform(elements.iterator(),
+				e -> new SimpleImmutableEntry<>(e, NULL)
+		), null));
+	}
+
 	@SafeVarargs
 	public static <T extends Comparable<T>> TTTSet<T> of(T... elements) {
 		TTTSet<T> set = new TTTSet<>();
@@ -81,27 +345,72 @@ public class TTTSet<E extends Comparable<E>> extends AbstractSet<E> {
 		return set;
 	}
 
+	/**
+	 * Create a set containing the elements of both this and another set.
+	 * <p>
+	 * This, and the other set operations below, are implemented by {@link TTTree#union} and
+	 * friends. They take O(m*log(n/m+1)) time for sets of size m and n (m &lt;= n), and much less
+	 * when the two sets are derived from one another and share most of their structure.
+	 * If the result has the same elements as one of the sets, that set itself is returned.
+	 * <p>
+	 * The result is ordered like this set. If the other set has a different ordering, it is
+	 * first copied into the ordering of this set.
+	 */
 	public TTTSet<E> union(TTTSet<E> other) {
-		if (this.size() < other.size()) {
-			return other.union(this);
-		}
-		TTTSet<E> union = this;
-		for (E e : other) {
-			union = union.insert(e);
-		}
-		return union;
+		TTTree<E, Object> union = map.union(cmp, other.treeInOrder(cmp), null);
+		//Any set the union has the same size as, must be equal to it.
+		return wrap(union, union.size()==other.size() ? sameOrder(other) : null);
 	}
 
+	/**
+	 * Create a set containing the elements that are in both this and another set.
+	 */
 	public TTTSet<E> intersection(TTTSet<E> other) {
-		if (other.size() < this.size()) {
-			return other.intersection(this);
-		}
-		TTTSet<E> intersection = TTTSet.of();
-		for (E e : this) {
-			if (other.contains(e)) {
-				intersection = intersection.insert(e);
-			}
+		TTTree<E, Object> intersection = map.intersection(cmp, other.treeInOrder(cmp));
+		//Any set the intersection has the same size as, must be equal to it.
+		return wrap(intersection, intersection.size()==other.size() ? sameOrder(other) : null);
+	}
+
+	/**
+	 * Create a set containing the elements of this set that are not in another set.
+	 */
+	public TTTSet<E> difference(TTTSet<E> other) {
+		return wrap(map.difference(cmp, other.treeInOrder(cmp)), null);
+	}
+
+	/**
+	 * Create a set containing the elements that are in either this or another set, but not in both.
+	 */
+	public TTTSet<E> symmetricDifference(TTTSet<E> other) {
+		TTTree<E, Object> result = map.symmetricDifference(cmp, other.treeInOrder(cmp));
+		return wrap(result, result==other.map ? other : null);
+	}
+
+	/**
+	 * Get the tree of this set, sorted by a given comparator. See {@link TTTMap#treeInOrder}.
+	 */
+	private TTTree<E, Object> treeInOrder(Comparator<? super E> order) {
+		return new TTTMap<>(cmp, map).treeInOrder(order);
+	}
+
+	/**
+	 * @return The other set if it has the same ordering as this set, null otherwise.
+	 */
+	private TTTSet<E> sameOrder(TTTSet<E> other) {
+		return Objects.equals(cmp, other.cmp) ? other : null;
+	}
+
+	/**
+	 * Wrap the result of a set operation, reusing an existing set when possible.
+	 *
+	 * @param equalSet An existing set known to be equal to the result, or null.
+	 */
+	private TTTSet<E> wrap(TTTree<E, Object> result, TTTSet<E> equalSet) {
+		if (result==map) {
+			return this;
+		} else if (equalSet!=null) {
+			return equalSet;
 		}
-		return intersection;
+		return new TTTSet<>(cmp, result);
 	}
 }
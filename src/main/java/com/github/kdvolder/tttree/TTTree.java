@@ -1,14 +1,35 @@
 package com.github.kdvolder.tttree;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.AbstractSet;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
-import java.util.Stack;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import com.github.kdvolder.util.Assert;
 import com.google.common.collect.Iterators;
@@ -22,8 +43,13 @@ import com.google.common.collect.Iterators;
  * If you don't mind the 'non-standard' interface you can use TTTree directly from
  * your code. However, if you prefer something that formally implements java.util.Map
  * you can wrap it in a {@link TTTMap} adapter.
+ * <p>
+ * Trees are {@link Serializable} (provided their keys and values are), and can be written
+ * in a compact binary format with {@link #writeTo(OutputStream, Codec, Codec)}.
  */
-public abstract class TTTree<K extends Comparable<K>, V> implements Iterable<Map.Entry<K, V>> {
+public abstract class TTTree<K, V> implements Iterable<Map.Entry<K, V>>, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	////////////////////////////////////
 	// public api
@@ -34,16 +60,204 @@ public abstract class TTTree<K extends Comparable<K>, V> implements Iterable<Map
 		return EMPTY_TREE;
 	}
 
-	public abstract TTTree<K, V> put(K k, V v);
+	/**
+	 * Like {@link #empty()}, but without requiring comparable keys, for trees that are ordered
+	 * by a comparator.
+	 */
+	@SuppressWarnings("unchecked")
+	static <K, V> TTTree<K, V> emptyTree() {
+		return EMPTY_TREE;
+	}
+
+	/**
+	 * Compare two keys using a comparator, or using their natural ordering if the comparator is
+	 * null.
+	 * <p>
+	 * The methods of {@link TTTree} itself order keys by their natural ordering. All of them
+	 * are implemented by package-private variants taking an extra comparator argument, which
+	 * are used by {@link TTTMap} and {@link TTTSet} to support custom orderings. This way the
+	 * comparator is kept by the wrapper rather than in every node of the tree, and the
+	 * natural ordering needs no comparator object at all.
+	 */
+	@SuppressWarnings("unchecked")
+	static <K> int compare(Comparator<? super K> cmp, K a, K b) {
+		return cmp==null ? ((Comparable<? super K>)a).compareTo(b) : cmp.compare(a, b);
+	}
+
+	/**
+	 * Build a tree from a sequence of entries sorted in ascending order of their keys.
+	 * <p>
+	 * The tree is built bottom-up in O(n) time, allocating each node of the resulting tree
+	 * exactly once. This is much cheaper than building the same tree with n calls to
+	 * {@link #put}.
+	 *
+	 * @throws IllegalArgumentException if the entries are not sorted or contain duplicate keys.
+	 */
+	public static <K extends Comparable<K>, V> TTTree<K, V> fromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries) {
+		return fromSorted(entries, null);
+	}
+
+	/**
+	 * Like {@link #fromSorted(Iterator)} but rather than rejecting them, merges the values of
+	 * consecutive entries with the same key using a given function. The function
+	 * is called with the value seen first as its first argument.
+	 *
+	 * @throws IllegalArgumentException if the entries are not sorted.
+	 */
+	public static <K extends Comparable<K>, V> TTTree<K, V> fromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, BinaryOperator<V> merger) {
+		return fromSorted(null, entries, merger);
+	}
+
+	/**
+	 * Like {@link #fromSorted(Iterator, BinaryOperator)}, but with entries sorted by a comparator.
+	 */
+	static <K, V> TTTree<K, V> fromSorted(Comparator<? super K> cmp, Iterator<? extends Map.Entry<? extends K, ? extends V>> entries, BinaryOperator<V> merger) {
+		ArrayList<TTTree<K, V>> leafs = new ArrayList<>();
+		Leaf<K, V> last = null;
+		while (entries.hasNext()) {
+			Map.Entry<? extends K, ? extends V> e = entries.next();
+			K k = e.getKey();
+			V v = e.getValue();
+			if (last!=null) {
+				int c = compare(cmp, k, last.k);
+				if (c<0) {
+					throw new IllegalArgumentException("Entries are not sorted: "+k+" follows "+last.k);
+				} else if (c==0) {
+					if (merger==null) {
+						throw new IllegalArgumentException("Duplicate key: "+k);
+					}
+					last = new Leaf<>(last.k, merger.apply(last.v, v));
+					leafs.set(leafs.size()-1, last);
+					continue;
+				}
+			}
+			leafs.add(last = new Leaf<>(k, v));
+		}
+		return buildBalanced(leafs);
+	}
+
+	public final TTTree<K, V> put(K k, V v) {
+		return put(null, null, k, v);
+	}
+
 	public final V get(K k) {
-		Leaf<K, V> e = getEntry(k);
+		Leaf<K, V> e = lookup(null, k);
 		if (e!=null) {
 			return e.getValue();
 		}
 		return null;
 	}
 
-	public abstract TTTree<K, V> remove(K k);
+	public final TTTree<K, V> remove(K k) {
+		return remove(null, null, k);
+	}
+
+	/**
+	 * Create a copy of this tree in which k is associated with the result of a function applied
+	 * to k and its current value (or null, if there is no entry for k). If the function returns
+	 * null, the copy has no entry for k.
+	 * <p>
+	 * Like the other operations below, this looks up the key and copies the path to it in a
+	 * single descent. If the result has the same entries as this tree (i.e. the function returns
+	 * a value equal to the current one, or returns null for an absent key), then this tree
+	 * itself is returned.
+	 */
+	public final TTTree<K, V> compute(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+		return compute(null, null, k, (key, e) -> {
+			V v = f.apply(key, e==null ? null : e.getValue());
+			return v==null ? NO_ENTRY : v;
+		});
+	}
+
+	/**
+	 * Create a copy of this tree in which an absent key (or a key associated with null) is
+	 * associated with the result of a function, unless that result is null.
+	 */
+	public final TTTree<K, V> computeIfAbsent(K k, Function<? super K, ? extends V> f) {
+		return compute(null, null, k, (key, e) -> {
+			if (e!=null && e.getValue()!=null) {
+				return e.getValue();
+			}
+			V v = f.apply(key);
+			return v!=null ? v : e!=null ? null : NO_ENTRY;
+		});
+	}
+
+	/**
+	 * Create a copy of this tree in which the non-null value for a key is replaced by the result
+	 * of a function applied to the key and that value. If the function returns null, the copy has
+	 * no entry for k.
+	 */
+	public final TTTree<K, V> computeIfPresent(K k, BiFunction<? super K, ? super V, ? extends V> f) {
+		return compute(null, null, k, (key, e) -> {
+			if (e==null) {
+				return NO_ENTRY;
+			} else if (e.getValue()==null) {
+				return null;
+			}
+			V v = f.apply(key, e.getValue());
+			return v==null ? NO_ENTRY : v;
+		});
+	}
+
+	/**
+	 * Create a copy of this tree in which k is associated with a value, or, if k is already
+	 * associated with a non-null value, with the result of combining the old value and the given
+	 * value using a function. If the function returns null, the copy has no entry for k.
+	 *
+	 * @throws NullPointerException if the value is null.
+	 */
+	public final TTTree<K, V> merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> f) {
+		Objects.requireNonNull(v);
+		return compute(null, null, k, (key, e) -> {
+			if (e==null || e.getValue()==null) {
+				return v;
+			}
+			V merged = f.apply(e.getValue(), v);
+			return merged==null ? NO_ENTRY : merged;
+		});
+	}
+
+	/**
+	 * Create a copy of this tree in which an absent key (or a key associated with null)
+	 * is associated with a value. If the value is null, this tree itself is returned.
+	 */
+	public final TTTree<K, V> putIfAbsent(K k, V v) {
+		if (v==null) {
+			return this;
+		}
+		return compute(null, null, k, (key, e) -> e!=null && e.getValue()!=null ? e.getValue() : v);
+	}
+
+	/**
+	 * Create a copy of this tree in which a key is associated with a value, but only if the
+	 * tree already contains an entry for the key.
+	 */
+	public final TTTree<K, V> replace(K k, V v) {
+		return compute(null, null, k, (key, e) -> e==null ? NO_ENTRY : v);
+	}
+
+	/**
+	 * Create a copy of this tree in which a key is associated with a new value, but only if
+	 * it is currently associated with a given old value.
+	 */
+	public final TTTree<K, V> replace(K k, V oldValue, V newValue) {
+		return compute(null, null, k, (key, e) -> {
+			if (e==null) {
+				return NO_ENTRY;
+			}
+			return Objects.equals(e.getValue(), oldValue) ? newValue : e.getValue();
+		});
+	}
+
+	/**
+	 * Create a {@link TTTreeBuilder} which can be used to efficiently apply a batch of
+	 * changes to this tree. This tree itself is not affected by changes made with the
+	 * builder.
+	 */
+	public TTTreeBuilder<K, V> asTransient() {
+		return new TTTreeBuilder<>(this, null);
+	}
 
 	public boolean isEmpty() {
 		return false; // good default because most nodes aren't empty.
@@ -51,21 +265,72 @@ public abstract class TTTree<K extends Comparable<K>, V> implements Iterable<Map
 
 	@Override
 	public Iterator<Entry<K, V>> iterator() {
-		if (isEmpty()) {
-			Collections.emptyIterator();
-		}
-		return new TTTreeIterator(this);
+		return new TTTreeIterator(this, false);
+	}
+
+	private static final int VALUE_CHARACTERISTICS = Spliterator.ORDERED | Spliterator.IMMUTABLE | Spliterator.SIZED | Spliterator.SUBSIZED;
+	private static final int KEY_CHARACTERISTICS = VALUE_CHARACTERISTICS | Spliterator.SORTED | Spliterator.DISTINCT;
+	private static final int ENTRY_CHARACTERISTICS = KEY_CHARACTERISTICS | Spliterator.NONNULL;
+
+	/**
+	 * Create a spliterator over the entries, in order. The spliterator knows its exact size
+	 * and splits along the boundaries between subtrees into balanced halves, so parallel
+	 * streams over a tree scale well.
+	 */
+	@Override
+	public Spliterator<Entry<K, V>> spliterator() {
+		return spliterator(null);
 	}
 
+	/**
+	 * Like {@link #spliterator()}, but for a tree ordered by a comparator.
+	 */
+	Spliterator<Entry<K, V>> spliterator(Comparator<? super K> cmp) {
+		Comparator<Entry<K, V>> entryOrder = (a, b) -> compare(cmp, a.getKey(), b.getKey());
+		return new TTTreeSpliterator<Entry<K, V>>(this, Function.identity(), ENTRY_CHARACTERISTICS, entryOrder);
+	}
+
+	/**
+	 * Like {@link #spliterator(Comparator)} but over the keys only. Keys are only known to be
+	 * non-null for natural ordering, since a comparator may accept a null key.
+	 */
+	Spliterator<K> keySpliterator(Comparator<? super K> cmp) {
+		int characteristics = cmp==null ? KEY_CHARACTERISTICS | Spliterator.NONNULL : KEY_CHARACTERISTICS;
+		return new TTTreeSpliterator<K>(this, Leaf::getKey, characteristics, cmp);
+	}
+
+	/**
+	 * Like {@link #spliterator()} but over the values only.
+	 */
+	Spliterator<V> valueSpliterator() {
+		return new TTTreeSpliterator<V>(this, Leaf::getValue, VALUE_CHARACTERISTICS, null);
+	}
+
+	/**
+	 * Calls an action for every entry, in order. This traverses the tree recursively and
+	 * is faster than using an iterator.
+	 */
+	@Override
+	public abstract void forEach(Consumer<? super Entry<K, V>> action);
+
+	/**
+	 * Calls an action for every key-value pair, in order. Like {@link #forEach(Consumer)}
+	 * but passes key and value separately.
+	 */
+	public abstract void forEachEntry(BiConsumer<? super K, ? super V> action);
+
 	public Set<K> keySet() {
 		return new AbstractSet<K>() {
-			private Integer size;
 
 			@SuppressWarnings("unchecked")
 			@Override
 			public boolean contains(Object o) {
 				if (o instanceof Comparable) {
-					return TTTree.this.containsKey((K)o);
+					try {
+						return TTTree.this.containsKey((K)o);
+					} catch (ClassCastException e) {
+						//Key of some unrelated type, so it can't be in this tree.
+					}
 				}
 				return false;
 			}
@@ -76,598 +341,2806 @@ public abstract class TTTree<K extends Comparable<K>, V> implements Iterable<Map
 				return Iterators.transform(entries, Map.Entry::getKey);
 			}
 
+			@Override
+			public Spliterator<K> spliterator() {
+				return keySpliterator(null);
+			}
+
 			@Override
 			public int size() {
-				if (size==null) {
-					this.size = TTTree.this.size();
-				}
-				return size;
+				return TTTree.this.size();
 			}
 		};
 	}
 
 	public final boolean containsKey(K key) {
-		return getEntry(key)!=null;
+		return lookup(null, key)!=null;
+	}
+
+	/**
+	 * @return The entry for a given key, or null if there is no such entry.
+	 */
+	public final Map.Entry<K, V> getEntry(K key) {
+		return lookup(null, key);
+	}
+
+	abstract Leaf<K, V> lookup(Comparator<? super K> cmp, K key);
+
+	/**
+	 * Implementation of {@link #put(Object, Object)}. With the edit token of a
+	 * {@link TTTreeBuilder}, the builder's transient nodes are modified in place rather than
+	 * copied, and the nodes that are created are transient as well. When the token is null
+	 * nothing is ever modified in place.
+	 */
+	abstract TTTree<K, V> put(Comparator<? super K> cmp, Object edit, K k, V v);
+
+	/**
+	 * Implementation of {@link #remove(Object)}. See {@link #put(Comparator, Object, Object, Object)}
+	 * for the meaning of the edit token.
+	 */
+	abstract TTTree<K, V> remove(Comparator<? super K> cmp, Object edit, K k);
+
+	/**
+	 * Implementation of {@link #compute} and related operations. The function is called with k
+	 * and the entry for k (or null if there is none). It returns the new value for k, or
+	 * {@link #NO_ENTRY} to have no entry for k. See {@link #put(Comparator, Object, Object, Object)}
+	 * for the meaning of the edit token.
+	 */
+	abstract TTTree<K, V> compute(Comparator<? super K> cmp, Object edit, K k, BiFunction<? super K, ? super Entry<K, V>, Object> f);
+
+	/**
+	 * Result of the function passed to {@link #compute(Comparator, Object, Object, BiFunction)}
+	 * meaning 'no entry'. A null result means an entry with a null value.
+	 */
+	static final Object NO_ENTRY = new Object();
+
+	/**
+	 * The edit token of a {@link TTTreeBuilder}. Besides marking an operation as done by a
+	 * builder, it carries the change in size and hashes made by the operation from the leaf up to
+	 * the root. Every operation changes a single entry, so each transient node along its path
+	 * simply adds these to its own size and hashes, rather than summing those of its children again.
+	 */
+	static final class Edit {
+		int sizeDelta;
+		int hashDelta;
+		int keyHashDelta;
+
+		/**
+		 * Prepare for the next operation, which may not change anything at all.
+		 */
+		Edit start() {
+			sizeDelta = 0;
+			hashDelta = 0;
+			keyHashDelta = 0;
+			return this;
+		}
+	}
+
+	/**
+	 * Replace the transient nodes of a {@link TTTreeBuilder} by persistent ones, whose fields are
+	 * final. Since transient nodes only have transient parents, this visits no other nodes, and
+	 * returns this tree itself if it has none.
+	 */
+	TTTree<K, V> persistent() {
+		return this;
+	}
+
+	/**
+	 * Number of children of an internal node, and 0 for a leaf or the empty tree. This, together
+	 * with {@link #child} and {@link #key}, lets the code that rebalances the tree after an update
+	 * take apart persistent and transient nodes alike.
+	 */
+	int arity() {
+		return 0;
+	}
+
+	/**
+	 * The i-th child of an internal node. See {@link #arity()}.
+	 */
+	TTTree<K, V> child(int i) {
+		throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * The i-th separator key of an internal node. See {@link #arity()}.
+	 */
+	K key(int i) {
+		throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Number of entries in the {@link TTTree}. Every internal node keeps the
+	 * count of its subtree, so this is an O(1) operation.
+	 */
+	public abstract int size();
+
+	/**
+	 * Sum of the {@link Map.Entry#hashCode}s of all entries, which is the hashCode of a
+	 * {@link Map} with these entries. Every node stores this for its subtree, so it is O(1).
+	 */
+	abstract int entryHash();
+
+	/**
+	 * Sum of the hashCodes of all keys, which is the hashCode of a {@link Set} of the keys.
+	 * Like {@link #entryHash()}, every node stores this for its subtree, so it is O(1).
+	 */
+	abstract int keyHash();
+
+	/**
+	 * Counts the entries whose key is strictly smaller than the given key. In other
+	 * words, this is the index the key has (or would have if it was inserted) in the
+	 * sorted sequence of entries. O(log(n)).
+	 */
+	public final int rank(K k) {
+		return rank(null, k);
+	}
+
+	abstract int rank(Comparator<? super K> cmp, K k);
+
+	/**
+	 * Fetch the entry at a given index in the sorted sequence of entries. O(log(n)).
+	 *
+	 * @throws IndexOutOfBoundsException if index is not in the range [0, size())
+	 */
+	public final Map.Entry<K, V> getEntryAt(int index) {
+		if (index<0 || index>=size()) {
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size());
+		}
+		return select(index);
+	}
+
+	/**
+	 * Fetch the key at a given index in the sorted sequence of entries. O(log(n)).
+	 *
+	 * @throws IndexOutOfBoundsException if index is not in the range [0, size())
+	 */
+	public final K getKeyAt(int index) {
+		return getEntryAt(index).getKey();
+	}
+
+	/**
+	 * Iterate the entries in sorted order, starting at a given index. Positioning the
+	 * iterator is O(log(n)), so this can be used to efficiently fetch a 'page' of entries
+	 * at some offset.
+	 *
+	 * @throws IndexOutOfBoundsException if fromIndex is not in the range [0, size()]
+	 */
+	public Iterator<Entry<K, V>> iterator(int fromIndex) {
+		if (fromIndex<0 || fromIndex>size()) {
+			throw new IndexOutOfBoundsException("Index: "+fromIndex+", Size: "+size());
+		}
+		return new TTTreeIterator(this, fromIndex);
+	}
+
+	/**
+	 * @return The entry with the smallest key, or null if the tree is empty.
+	 */
+	public final Map.Entry<K, V> firstEntry() {
+		return first();
+	}
+
+	/**
+	 * @return The entry with the largest key, or null if the tree is empty.
+	 */
+	public final Map.Entry<K, V> lastEntry() {
+		return last();
+	}
+
+	/**
+	 * @return The entry with the largest key smaller than or equal to k, or null if there is no such entry.
+	 */
+	public final Map.Entry<K, V> floorEntry(K k) {
+		return floor(null, k, true);
+	}
+
+	/**
+	 * @return The entry with the largest key strictly smaller than k, or null if there is no such entry.
+	 */
+	public final Map.Entry<K, V> lowerEntry(K k) {
+		return floor(null, k, false);
+	}
+
+	/**
+	 * @return The entry with the smallest key larger than or equal to k, or null if there is no such entry.
+	 */
+	public final Map.Entry<K, V> ceilingEntry(K k) {
+		return ceiling(null, k, true);
+	}
+
+	/**
+	 * @return The entry with the smallest key strictly larger than k, or null if there is no such entry.
+	 */
+	public final Map.Entry<K, V> higherEntry(K k) {
+		return ceiling(null, k, false);
+	}
+
+	/**
+	 * Create a tree containing the entries with keys smaller than (or equal to, if inclusive is true)
+	 * a given key. This is computed by means of {@link #split} in O(log(n)) time and the
+	 * resulting tree shares most of its nodes with this tree.
+	 */
+	public TTTree<K, V> headTree(K toKey, boolean inclusive) {
+		return headTree(null, toKey, inclusive);
+	}
+
+	TTTree<K, V> headTree(Comparator<? super K> cmp, K toKey, boolean inclusive) {
+		return split(cmp, toKey, inclusive).left;
+	}
+
+	/**
+	 * Create a tree containing the entries with keys larger than (or equal to, if inclusive is true)
+	 * a given key. See also {@link #headTree}.
+	 */
+	public TTTree<K, V> tailTree(K fromKey, boolean inclusive) {
+		return tailTree(null, fromKey, inclusive);
+	}
+
+	TTTree<K, V> tailTree(Comparator<? super K> cmp, K fromKey, boolean inclusive) {
+		Split<K, V> split = split(cmp, fromKey, false);
+		if (inclusive && split.entry!=null) {
+			return join(split.entry, split.entry.k, split.right);
+		}
+		return split.right;
 	}
 
-	abstract Leaf<K, V> getEntry(K key);
+	/**
+	 * Create a tree containing the entries with keys between two given keys. See also {@link #headTree}.
+	 *
+	 * @throws IllegalArgumentException if fromKey is larger than toKey.
+	 */
+	public TTTree<K, V> subTree(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return subTree(null, fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	TTTree<K, V> subTree(Comparator<? super K> cmp, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		if (compare(cmp, fromKey, toKey)>0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		return tailTree(cmp, fromKey, fromInclusive).headTree(cmp, toKey, toInclusive);
+	}
+
+	/**
+	 * Iterate the entries in descending order.
+	 */
+	public Iterator<Entry<K, V>> descendingIterator() {
+		return new TTTreeIterator(this, true);
+	}
 
 	/**
-	 * Counts the elements in the {@link TTTree}.
+	 * Create a tree containing the entries of both this and another tree. When both trees
+	 * contain the same key, the entry from this tree is retained.
 	 * <p>
-	 * WARNING: not cached... so O(n) operation.
+	 * This, and the other 'set' operations below, use a divide-and-conquer algorithm based on
+	 * {@link #split} and {@link #join}. Combining trees of sizes m and n (m &lt;= n) takes
+	 * O(m*log(n/m+1)) time. Subtrees shared by both trees (which is typical for trees derived
+	 * from one another) are recognized as such and aren't traversed at all. When the result
+	 * has the same contents as this tree, then this tree itself is returned.
 	 */
-	abstract int size();
+	public TTTree<K, V> union(TTTree<K, V> other) {
+		return union(null, other, null);
+	}
 
 	/**
-	 * For debugging. Dump tree structure in indented format onto sysout
+	 * Create a tree containing the entries of both this and another tree. When both trees
+	 * contain the same key, the values are combined using a merger function (which is called
+	 * with the value from this tree as its first argument). If the merger returns null the
+	 * key is dropped from the result.
 	 */
-	public void dump() {
-		dump(0);
+	public TTTree<K, V> union(TTTree<K, V> other, BiFunction<? super V, ? super V, ? extends V> merger) {
+		return union(null, other, merger);
 	}
 
-	/////////////////////////////////////
-	// implementation
-	/////////////////////////////////////
+	TTTree<K, V> union(Comparator<? super K> cmp, TTTree<K, V> other, BiFunction<? super V, ? super V, ? extends V> merger) {
+		return combine(new Union<>(cmp, merger), this, other);
+	}
 
-	//Some possible optimization to consider in future:
+	/**
+	 * Create a tree containing the entries of this tree whose keys also occur in another tree.
+	 */
+	public TTTree<K, V> intersection(TTTree<K, ?> other) {
+		return intersection(null, other);
+	}
 
-	// 1) Can we avoid storing/computing 'depth' in each node?
-	// It is nice to have the depth for now to:
-	//   - execute some asserts to make sure the code doesn't break the 'equal depths' invariant
-	//   - easily determine if a tree has grown.
-	// However it should not be necessary to track the depth. All that would be needed is for a
-	// internal 'put/remove' operation to somehow return a boolean alongside the resulting tree to
-	// indicate whether the new tree's depth has changed.
+	TTTree<K, V> intersection(Comparator<? super K> cmp, TTTree<K, ?> other) {
+		return combine(new Intersection<>(cmp), this, other);
+	}
+
+	/**
+	 * Create a tree containing the entries of this tree whose keys don't occur in another tree.
+	 */
+	public TTTree<K, V> difference(TTTree<K, ?> other) {
+		return difference(null, other);
+	}
+
+	TTTree<K, V> difference(Comparator<? super K> cmp, TTTree<K, ?> other) {
+		return combine(new Difference<>(cmp), this, other);
+	}
+
+	/**
+	 * Create a tree containing the entries whose keys occur in either this or another tree,
+	 * but not in both.
+	 */
+	public TTTree<K, V> symmetricDifference(TTTree<K, V> other) {
+		return symmetricDifference(null, other);
+	}
+
+	TTTree<K, V> symmetricDifference(Comparator<? super K> cmp, TTTree<K, V> other) {
+		return combine(new SymmetricDifference<>(cmp), this, other);
+	}
+
+	/**
+	 * Compare this tree (the old version) with another tree (the new version), reporting every
+	 * added, removed and changed entry to a listener, in key order.
+	 * <p>
+	 * Both trees are walked together, and any subtree that occurs in both (as the identical
+	 * object) is skipped without looking inside. For trees derived from one another this
+	 * takes about O(c*log(n)) time, where c is the number of changes, rather than O(n).
+	 */
+	public void diff(TTTree<K, V> other, DiffListener<? super K, ? super V> listener) {
+		diff(null, other, listener, false, false);
+	}
+
+	/**
+	 * Check whether this tree has the same entries as another tree. Subtrees shared by both
+	 * trees are skipped, like in {@link #diff(TTTree, DiffListener)}.
+	 */
+	boolean equalEntries(Comparator<? super K> cmp, TTTree<K, ?> other) {
+		if (this==other) {
+			return true;
+		} else if (size()!=other.size() || entryHash()!=other.entryHash()) {
+			return false;
+		}
+		@SuppressWarnings("unchecked")
+		TTTree<K, V> o = (TTTree<K, V>) other;
+		return !diff(cmp, o, NO_DIFF_LISTENER, true, false);
+	}
+
+	/**
+	 * Like {@link #equalEntries}, but only compares the keys. This is how sets compare their
+	 * trees, since the tree of a set may be that of a map (see {@link TTTMap#keySet()}).
+	 */
+	boolean equalKeys(Comparator<? super K> cmp, TTTree<K, ?> other) {
+		if (this==other) {
+			return true;
+		} else if (size()!=other.size() || keyHash()!=other.keyHash()) {
+			return false;
+		}
+		@SuppressWarnings("unchecked")
+		TTTree<K, V> o = (TTTree<K, V>) other;
+		return !diff(cmp, o, NO_DIFF_LISTENER, true, true);
+	}
+
+	private static final DiffListener<Object, Object> NO_DIFF_LISTENER = new DiffListener<Object, Object>() {};
+
+	/**
+	 * Implementation of {@link #diff(TTTree, DiffListener)}. When 'stopAtFirst' is true this only
+	 * checks for equality: it returns at the first difference, and also treats entries whose keys
+	 * are equivalent but not equal as different. When 'keysOnly' is true, entries with the same
+	 * key are never reported as changed, whatever their values.
+	 *
+	 * @return Whether any difference was found.
+	 */
+	boolean diff(Comparator<? super K> cmp, TTTree<K, V> other, DiffListener<? super K, ? super V> listener, boolean stopAtFirst, boolean keysOnly) {
+		boolean found = false;
+		//Both stacks hold subtrees that remain to be compared, the next one (in key order) on top.
+		TTTree<K, V>[] as = diffStack(this);
+		TTTree<K, V>[] bs = diffStack(other);
+		int at = 0, bt = 0;
+		if (!isEmpty()) {
+			as[at++] = this;
+		}
+		if (!other.isEmpty()) {
+			bs[bt++] = other;
+		}
+		while (at>0 && bt>0) {
+			TTTree<K, V> a = as[at-1];
+			TTTree<K, V> b = bs[bt-1];
+			if (a==b) {
+				at--;
+				bt--;
+			} else if (a instanceof Leaf && b instanceof Leaf) {
+				Leaf<K, V> la = (Leaf<K, V>) a;
+				Leaf<K, V> lb = (Leaf<K, V>) b;
+				int c = compare(cmp, la.k, lb.k);
+				if (c<0) {
+					listener.removed(la.k, la.v);
+					found = true;
+					at--;
+				} else if (c>0) {
+					listener.added(lb.k, lb.v);
+					found = true;
+					bt--;
+				} else {
+					if (!keysOnly && !Objects.equals(la.v, lb.v) || stopAtFirst && !Objects.equals(la.k, lb.k)) {
+						listener.changed(la.k, la.v, lb.v);
+						found = true;
+					}
+					at--;
+					bt--;
+				}
+				if (found && stopAtFirst) {
+					return true;
+				}
+			} else {
+				//Shared subtrees have the same depth in both trees, so open up the deeper
+				//node (or both, if they are equally deep) until the tops can be compared.
+				int ad = a.depth();
+				int bd = b.depth();
+				if (ad>=bd) {
+					at = pushChildren(as, at-1, a);
+				}
+				if (bd>=ad) {
+					bt = pushChildren(bs, bt-1, b);
+				}
+			}
+		}
+		if (stopAtFirst) {
+			return found || at>0 || bt>0;
+		}
+		found = found || at>0 || bt>0;
+		while (at>0) {
+			as[--at].forEachEntry(listener::removed);
+		}
+		while (bt>0) {
+			bs[--bt].forEachEntry(listener::added);
+		}
+		return found;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <K, V> TTTree<K, V>[] diffStack(TTTree<K, V> tree) {
+		return new TTTree[2*tree.depth()+1];
+	}
+
+	/**
+	 * Push the children of an internal node onto a stack, rightmost first.
+	 *
+	 * @return The new size of the stack.
+	 */
+	private static <K, V> int pushChildren(TTTree<K, V>[] stack, int top, TTTree<K, V> node) {
+		if (node instanceof Node2) {
+			Node2<K, V> n = (Node2<K, V>) node;
+			stack[top++] = n.r;
+			stack[top++] = n.l;
+		} else {
+			Node3<K, V> n = (Node3<K, V>) node;
+			stack[top++] = n.r;
+			stack[top++] = n.m;
+			stack[top++] = n.l;
+		}
+		return top;
+	}
+
+	/**
+	 * Create a tree with the same keys as this tree, and values computed by applying a function
+	 * to the values of this tree. The resulting tree has exactly the same shape as this tree,
+	 * so no rebalancing is needed. Subtrees in which the function returns the identical value
+	 * for every entry are shared with this tree. If that is the case for all entries, this
+	 * tree itself is returned.
+	 * <p>
+	 * Disjoint subtrees are processed in parallel on a {@link ForkJoinPool}, see
+	 * {@link #mapValues(Function, int)}.
+	 */
+	public final <W> TTTree<K, W> mapValues(Function<? super V, ? extends W> f) {
+		return mapValues(f, DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Like {@link #mapValues(Function)}, but with an explicit threshold for parallel
+	 * execution. Subtrees with fewer entries than the threshold are processed sequentially.
+	 * Use {@link Integer#MAX_VALUE} to process the whole tree on the calling thread.
+	 */
+	public abstract <W> TTTree<K, W> mapValues(Function<? super V, ? extends W> f, int parallelThreshold);
+
+	/**
+	 * Create a tree containing only those entries of this tree that satisfy a predicate.
+	 * Subtrees in which all entries are retained are shared with this tree. If all entries
+	 * are retained, this tree itself is returned.
+	 * <p>
+	 * Disjoint subtrees are processed in parallel on a {@link ForkJoinPool}, see
+	 * {@link #filter(BiPredicate, int)}.
+	 */
+	public final TTTree<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+		return filter(predicate, DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Create a tree without the entries that satisfy a predicate. This is the complement of
+	 * {@link #filter(BiPredicate)}: only the subtrees that contain removed entries are rebuilt,
+	 * by joining what remains of their children, rather than removing the keys one at a time.
+	 * If no entry is removed, this tree itself is returned.
+	 * <p>
+	 * Unlike {@link #filter(BiPredicate)}, this runs sequentially on the calling thread, testing
+	 * the entries in key order, so the predicate need not be thread-safe. For parallel
+	 * execution, use {@link #filter(BiPredicate, int)} with the negated predicate.
+	 */
+	public final TTTree<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+		return filter(predicate.negate(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Like {@link #filter(BiPredicate)}, but with an explicit threshold for parallel execution.
+	 */
+	public abstract TTTree<K, V> filter(BiPredicate<? super K, ? super V> predicate, int parallelThreshold);
+
+	/**
+	 * Reduce the entries of this tree to a single value, in the manner of
+	 * {@link java.util.stream.Stream#reduce(Object, BiFunction, BinaryOperator)}. The
+	 * identity must be an identity for the combiner, and the combiner must be associative.
+	 * The entries are accumulated in order, so the accumulator and combiner need not be
+	 * commutative.
+	 * <p>
+	 * Disjoint subtrees are reduced in parallel on a {@link ForkJoinPool}, see
+	 * {@link #reduce(Object, BiFunction, BinaryOperator, int)}.
+	 */
+	public final <U> U reduce(U identity, BiFunction<U, ? super Entry<K, V>, U> accumulator, BinaryOperator<U> combiner) {
+		return reduce(identity, accumulator, combiner, DEFAULT_PARALLEL_THRESHOLD);
+	}
+
+	/**
+	 * Like {@link #reduce(Object, BiFunction, BinaryOperator)}, but with an explicit threshold
+	 * for parallel execution.
+	 */
+	public <U> U reduce(U identity, BiFunction<U, ? super Entry<K, V>, U> accumulator, BinaryOperator<U> combiner, int parallelThreshold) {
+		return fold(identity, accumulator);
+	}
+
+	/**
+	 * Sequentially fold the entries of this tree, in order, into a single value, starting from
+	 * an initial value.
+	 */
+	public abstract <U> U fold(U initial, BiFunction<U, ? super Entry<K, V>, U> f);
+
+	/**
+	 * Write the entries of this tree to a stream, in a versioned binary format in which the
+	 * keys and values are written by the given codecs. See {@link Codecs} for codecs of common
+	 * types. The stream is flushed but not closed.
+	 */
+	public void writeTo(OutputStream out, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+		BinaryFormat.write(this, out, keyCodec, valueCodec);
+	}
+
+	/**
+	 * Like {@link #writeTo(OutputStream, Codec, Codec)}, but writing to a channel.
+	 */
+	public void writeTo(WritableByteChannel out, Codec<? super K> keyCodec, Codec<? super V> valueCodec) throws IOException {
+		BinaryFormat.write(this, Channels.newOutputStream(out), keyCodec, valueCodec);
+	}
+
+	/**
+	 * Read a tree written by {@link #writeTo(OutputStream, Codec, Codec)}. Since the entries
+	 * are stored in order, the tree is built bottom-up in O(n) time, like {@link #fromSorted}.
+	 * Nothing beyond the end of the tree is consumed from the stream, which is not buffered
+	 * here: to read from a file, pass a {@link java.io.BufferedInputStream}.
+	 *
+	 * @throws java.io.StreamCorruptedException if the data is not a valid tree.
+	 * @throws java.io.InvalidObjectException if the data is a set or has an unsupported version.
+	 */
+	public static <K extends Comparable<K>, V> TTTree<K, V> readFrom(InputStream in, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+		return BinaryFormat.read(in, null, keyCodec, valueCodec, null);
+	}
+
+	/**
+	 * Like {@link #readFrom(InputStream, Codec, Codec)}, but reading from a channel. A seekable
+	 * channel, like a {@link java.nio.channels.FileChannel}, is read through a buffer and then
+	 * positioned at the end of the tree. Other channels are read without a buffer, often a
+	 * single byte per read, so that nothing beyond the tree is consumed.
+	 */
+	public static <K extends Comparable<K>, V> TTTree<K, V> readFrom(ReadableByteChannel in, Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) throws IOException {
+		return BinaryFormat.read(in, null, keyCodec, valueCodec, null);
+	}
+
+	/**
+	 * Trees are serialized as a {@link SerializedForm}, which holds just the entries.
+	 */
+	Object writeReplace() {
+		return new SerializedForm(SerializedForm.TREE, null, this);
+	}
+
+	private void readObject(ObjectInputStream in) throws InvalidObjectException {
+		throw new InvalidObjectException("Proxy required");
+	}
+
+	/**
+	 * For debugging. Dump tree structure in indented format onto sysout
+	 */
+	public void dump() {
+		dump(0);
+	}
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	//Some possible optimization to consider in future:
+
+	// 1) Can we avoid storing/computing 'depth' in each node?
+	// It is nice to have the depth for now to:
+	//   - execute some asserts to make sure the code doesn't break the 'equal depths' invariant
+	//   - easily determine if a tree has grown.
+	// However it should not be necessary to track the depth. All that would be needed is for a
+	// internal 'put/remove' operation to somehow return a boolean alongside the resulting tree to
+	// indicate whether the new tree's depth has changed.
+
+	// 2) Remove 'redundant' internal keys
+	//   See the method TTTreeTest.checkForRedundantInternalKeys
+
+	@Override
+	public abstract String toString();
+	abstract void dump(int indent);
+	abstract int depth();
+
+	/**
+	 * Select entry at given index. Assumes the index is within bounds.
+	 */
+	abstract Leaf<K, V> select(int index);
+
+	/**
+	 * @return The entry with the smallest key, or null if the tree is empty.
+	 */
+	abstract Leaf<K, V> first();
+
+	/**
+	 * @return The entry with the largest key, or null if the tree is empty.
+	 */
+	abstract Leaf<K, V> last();
+
+	/**
+	 * Find the entry with the largest key smaller than k (or equal to k when inclusive is true).
+	 */
+	abstract Leaf<K, V> floor(Comparator<? super K> cmp, K k, boolean inclusive);
+
+	/**
+	 * Find the entry with the smallest key larger than k (or equal to k when inclusive is true).
+	 */
+	abstract Leaf<K, V> ceiling(Comparator<? super K> cmp, K k, boolean inclusive);
+
+	void print(int indent, Object msg) {
+		for (int i = 0; i < indent; i++) {
+			System.out.print("  ");
+		}
+		System.out.println(msg);
+	}
+
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private static final TTTree EMPTY_TREE = new TTTree() {
+		private static final long serialVersionUID = 1L;
+		@Override TTTree put(Comparator cmp, Object edit, Object k, Object v) { return leaf(k, v); }
+		@Override Leaf lookup(Comparator cmp, Object key) { return null; }
+		@Override public String toString() { return "EMPTY"; }
+		@Override public boolean isEmpty() { return true; }
+		@Override public void forEach(Consumer action) {}
+		@Override public void forEachEntry(BiConsumer action) {}
+		@Override public TTTree mapValues(Function f, int parallelThreshold) { return this; }
+		@Override public TTTree filter(BiPredicate predicate, int parallelThreshold) { return this; }
+		@Override public Object fold(Object initial, BiFunction f) { return initial; }
+		@Override int depth() { return 0; }
+		@Override public int size() { return 0; }
+		@Override int entryHash() { return 0; }
+		@Override int keyHash() { return 0; }
+		@Override int rank(Comparator cmp, Object k) { return 0; }
+		@Override Leaf select(int index) { throw new IndexOutOfBoundsException(); }
+		@Override Leaf first() { return null; }
+		@Override Leaf last() { return null; }
+		@Override Leaf floor(Comparator cmp, Object k, boolean inclusive) { return null; }
+		@Override Leaf ceiling(Comparator cmp, Object k, boolean inclusive) { return null; }
+		@Override Split split(Comparator cmp, Object k, boolean inclusive) { return new Split(this, null, this); }
+		@Override void dump(int indent) {print(indent, this);}
+		@Override TTTree remove(Comparator cmp, Object edit, Object k) {return this; }
+		@Override TTTree compute(Comparator cmp, Object edit, Object k, BiFunction f) {
+			Object v = f.apply(k, null);
+			return v==NO_ENTRY ? this : leaf(k, v);
+		}
+		@Override public void accept(TTTreeVisitor visitor) { visitor.visit_empty(); }
+	};
+
+	/**
+	 * Concatenate two trees. All keys in the left tree must be smaller than all keys in the
+	 * right tree. This is an O(log(n)) operation. Most of the nodes of both trees are reused
+	 * in the resulting tree.
+	 *
+	 * @throws IllegalArgumentException if the key ranges of the trees overlap.
+	 */
+	public static <K, V> TTTree<K, V> join(TTTree<K, V> left, TTTree<K, V> right) {
+		return join(null, left, right);
+	}
+
+	/**
+	 * Like {@link #join(TTTree, TTTree)}, but for trees ordered by a comparator.
+	 */
+	static <K, V> TTTree<K, V> join(Comparator<? super K> cmp, TTTree<K, V> left, TTTree<K, V> right) {
+		if (left.isEmpty()) {
+			return right;
+		} else if (right.isEmpty()) {
+			return left;
+		}
+		K leftMax = left.last().k;
+		K rightMin = right.first().k;
+		if (compare(cmp, leftMax, rightMin)>=0) {
+			throw new IllegalArgumentException("Key ranges overlap: "+leftMax+" >= "+rightMin);
+		}
+		return join(left, leftMax, right);
+	}
+
+	/**
+	 * Split the tree at a given key. This is an O(log(n)) operation. Most of the nodes of
+	 * this tree are reused in the resulting trees.
+	 *
+	 * @return A {@link Split} containing a tree with all entries with a key smaller than k, the
+	 *        entry for k (if there is one) and a tree with all entries with a key larger than k.
+	 */
+	public final Split<K, V> split(K k) {
+		return split(null, k, false);
+	}
+
+	/**
+	 * Implementation of {@link #split(Object)}. When 'inclusive' is true, the entry for k is
+	 * not returned separately, but is included in the left tree instead.
+	 */
+	abstract Split<K, V> split(Comparator<? super K> cmp, K k, boolean inclusive);
+
+	/**
+	 * The result of {@link TTTree#split}.
+	 */
+	public static final class Split<K, V> {
+		private final TTTree<K, V> left;
+		private final Leaf<K, V> entry;
+		private final TTTree<K, V> right;
+
+		Split(TTTree<K, V> left, Leaf<K, V> entry, TTTree<K, V> right) {
+			this.left = left;
+			this.entry = entry;
+			this.right = right;
+		}
+
+		/**
+		 * @return A tree containing the entries with keys smaller than the key at which the tree was split.
+		 */
+		public TTTree<K, V> getLeft() {
+			return left;
+		}
+
+		/**
+		 * @return The entry with the key at which the tree was split, or null if there is no such entry.
+		 */
+		public Map.Entry<K, V> getEntry() {
+			return entry;
+		}
+
+		/**
+		 * @return A tree containing the entries with keys larger than the key at which the tree was split.
+		 */
+		public TTTree<K, V> getRight() {
+			return right;
+		}
+	}
+
+	/**
+	 * Concatenate two trees, separated by a key k. All keys in the left tree must be smaller
+	 * than or equal to k and all keys in the right tree must be larger than k. This is
+	 * O(difference in depth between the trees).
+	 */
+	static <K, V> TTTree<K, V> join(TTTree<K, V> left, K k, TTTree<K, V> right) {
+		if (left.isEmpty()) {
+			return right;
+		} else if (right.isEmpty()) {
+			return left;
+		} else if (left.depth()>=right.depth()) {
+			return left.appendRight(k, right);
+		} else {
+			return right.prependLeft(left, k);
+		}
+	}
+
+	/**
+	 * Attach a non-empty tree, which is not deeper than this tree, to the right of
+	 * this tree. The result may be one level deeper than this tree.
+	 */
+	TTTree<K, V> appendRight(K k, TTTree<K, V> right) {
+		Assert.isLegalState(depth()==right.depth());
+		return new Node2<>(this, k, right);
+	}
+
+	/**
+	 * Like {@link #appendRight} but attaches a tree to the left of this tree.
+	 */
+	TTTree<K, V> prependLeft(TTTree<K, V> left, K k) {
+		Assert.isLegalState(depth()==left.depth());
+		return new Node2<>(left, k, this);
+	}
+
+	/**
+	 * Defines a set operation for {@link #combine}. The operation combines two trees, which
+	 * are referred to as 'a' and 'b'.
+	 */
+	private static abstract class SetOperation<K, V, W> {
+
+		/**
+		 * The order of the keys in both trees.
+		 */
+		final Comparator<? super K> cmp;
+
+		SetOperation(Comparator<? super K> cmp) {
+			this.cmp = cmp;
+		}
+
+		/**
+		 * Compute the result directly, if one of the trees is empty or both trees are identical.
+		 * Otherwise return null.
+		 */
+		abstract TTTree<K, V> base(TTTree<K, V> a, TTTree<K, W> b);
+
+		/**
+		 * Compute the result of combining a single entry with a tree.
+		 */
+		abstract TTTree<K, V> leafA(Leaf<K, V> a, TTTree<K, W> b);
+
+		/**
+		 * Compute the result of combining a tree with a single entry.
+		 */
+		abstract TTTree<K, V> leafB(TTTree<K, V> a, Leaf<K, W> b);
+
+		/**
+		 * Whether the result of the operation is guaranteed to be a subset of 'a' (same keys
+		 * and values) whenever it has the same size as 'a'.
+		 */
+		abstract boolean resultIsSubsetOfA();
+	}
+
+	/**
+	 * Combine two trees with a set operation by a divide-and-conquer algorithm:
+	 * <ul>
+	 *   <li>When a and b have aligned roots (i.e. same separator keys) then their children are
+	 *       combined pairwise. This is often the case for trees derived from one another, and
+	 *       allows skipping any shared subtrees.
+	 *   <li>Otherwise the larger of the trees is 'exposed' into its children, the other tree is
+	 *       split at the separator keys of its root and the parts are combined recursively.
+	 * </ul>
+	 * The results of the recursive calls are then joined back together.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V, W> TTTree<K, V> combine(SetOperation<K, V, W> op, TTTree<K, V> a, TTTree<K, W> b) {
+		TTTree<K, V> result = op.base(a, b);
+		if (result!=null) {
+			return result;
+		} else if (a instanceof Leaf) {
+			return op.leafA((Leaf<K, V>) a, b);
+		} else if (b instanceof Leaf) {
+			return op.leafB(a, (Leaf<K, W>) b);
+		} else if (a instanceof Node2 && b instanceof Node2 && compare(op.cmp, ((Node2<K,V>)a).k, ((Node2<K,W>)b).k)==0) {
+			Node2<K, V> na = (Node2<K, V>) a;
+			Node2<K, W> nb = (Node2<K, W>) b;
+			result = join(combine(op, na.l, nb.l), na.k, combine(op, na.r, nb.r));
+		} else if (a instanceof Node3 && b instanceof Node3
+				&& compare(op.cmp, ((Node3<K,V>)a).k1, ((Node3<K,W>)b).k1)==0
+				&& compare(op.cmp, ((Node3<K,V>)a).k2, ((Node3<K,W>)b).k2)==0
+		) {
+			Node3<K, V> na = (Node3<K, V>) a;
+			Node3<K, W> nb = (Node3<K, W>) b;
+			result = join(join(
+					combine(op, na.l, nb.l), na.k1,
+					combine(op, na.m, nb.m)), na.k2,
+					combine(op, na.r, nb.r)
+			);
+		} else if (a.size()>=b.size()) {
+			if (a instanceof Node2) {
+				Node2<K, V> na = (Node2<K, V>) a;
+				Split<K, W> bs = b.split(op.cmp, na.k, true);
+				result = join(combine(op, na.l, bs.left), na.k, combine(op, na.r, bs.right));
+			} else {
+				Node3<K, V> na = (Node3<K, V>) a;
+				Split<K, W> bs1 = b.split(op.cmp, na.k1, true);
+				Split<K, W> bs2 = bs1.right.split(op.cmp, na.k2, true);
+				result = join(join(
+						combine(op, na.l, bs1.left), na.k1,
+						combine(op, na.m, bs2.left)), na.k2,
+						combine(op, na.r, bs2.right)
+				);
+			}
+		} else {
+			if (b instanceof Node2) {
+				Node2<K, W> nb = (Node2<K, W>) b;
+				Split<K, V> as = a.split(op.cmp, nb.k, true);
+				result = join(combine(op, as.left, nb.l), nb.k, combine(op, as.right, nb.r));
+			} else {
+				Node3<K, W> nb = (Node3<K, W>) b;
+				Split<K, V> as1 = a.split(op.cmp, nb.k1, true);
+				Split<K, V> as2 = as1.right.split(op.cmp, nb.k2, true);
+				result = join(join(
+						combine(op, as1.left, nb.l), nb.k1,
+						combine(op, as2.left, nb.m)), nb.k2,
+						combine(op, as2.right, nb.r)
+				);
+			}
+		}
+		if (op.resultIsSubsetOfA() && result.size()==a.size()) {
+			return a;
+		}
+		return result;
+	}
+
+	private static final class Union<K, V> extends SetOperation<K, V, V> {
+
+		private final BiFunction<? super V, ? super V, ? extends V> merger;
+
+		Union(Comparator<? super K> cmp, BiFunction<? super V, ? super V, ? extends V> merger) {
+			super(cmp);
+			this.merger = merger;
+		}
+
+		@Override
+		TTTree<K, V> base(TTTree<K, V> a, TTTree<K, V> b) {
+			if (a.isEmpty()) {
+				return b;
+			} else if (b.isEmpty() || (a==b && merger==null)) {
+				return a;
+			}
+			return null;
+		}
+
+		@Override
+		TTTree<K, V> leafA(Leaf<K, V> a, TTTree<K, V> b) {
+			Leaf<K, V> e = b.lookup(cmp, a.k);
+			if (e==null) {
+				return b.put(cmp, null, a.k, a.v);
+			}
+			return merge(b, a.k, a.v, e.v);
+		}
+
+		@Override
+		TTTree<K, V> leafB(TTTree<K, V> a, Leaf<K, V> b) {
+			Leaf<K, V> e = a.lookup(cmp, b.k);
+			if (e==null) {
+				return a.put(cmp, null, b.k, b.v);
+			}
+			return merge(a, b.k, e.v, b.v);
+		}
+
+		private TTTree<K, V> merge(TTTree<K, V> tree, K k, V va, V vb) {
+			if (merger==null) {
+				//The entry from a is retained, even when its value is null.
+				return tree.put(cmp, null, k, va);
+			}
+			V v = merger.apply(va, vb);
+			if (v==null) {
+				return tree.remove(cmp, null, k);
+			}
+			return tree.put(cmp, null, k, v);
+		}
+
+		@Override
+		boolean resultIsSubsetOfA() {
+			//Since union only adds entries to a, it can only be the same size as a when it is a.
+			//Unless a merger function changed some values.
+			return merger==null;
+		}
+	}
+
+	private static final class Intersection<K, V, W> extends SetOperation<K, V, W> {
+
+		Intersection(Comparator<? super K> cmp) {
+			super(cmp);
+		}
+
+		@Override
+		TTTree<K, V> base(TTTree<K, V> a, TTTree<K, W> b) {
+			if (a.isEmpty() || b.isEmpty()) {
+				return emptyTree();
+			} else if (a==b) {
+				return a;
+			}
+			return null;
+		}
+
+		@Override
+		TTTree<K, V> leafA(Leaf<K, V> a, TTTree<K, W> b) {
+			return b.lookup(cmp, a.k)!=null ? a : emptyTree();
+		}
+
+		@Override
+		TTTree<K, V> leafB(TTTree<K, V> a, Leaf<K, W> b) {
+			Leaf<K, V> e = a.lookup(cmp, b.k);
+			return e!=null ? e : emptyTree();
+		}
+
+		@Override
+		boolean resultIsSubsetOfA() {
+			return true;
+		}
+	}
+
+	private static final class Difference<K, V, W> extends SetOperation<K, V, W> {
+
+		Difference(Comparator<? super K> cmp) {
+			super(cmp);
+		}
+
+		@Override
+		TTTree<K, V> base(TTTree<K, V> a, TTTree<K, W> b) {
+			if (a.isEmpty() || b.isEmpty()) {
+				return a;
+			} else if (a==b) {
+				return emptyTree();
+			}
+			return null;
+		}
+
+		@Override
+		TTTree<K, V> leafA(Leaf<K, V> a, TTTree<K, W> b) {
+			return b.lookup(cmp, a.k)!=null ? emptyTree() : a;
+		}
+
+		@Override
+		TTTree<K, V> leafB(TTTree<K, V> a, Leaf<K, W> b) {
+			return a.remove(cmp, null, b.k);
+		}
+
+		@Override
+		boolean resultIsSubsetOfA() {
+			return true;
+		}
+	}
+
+	private static final class SymmetricDifference<K, V> extends SetOperation<K, V, V> {
+
+		SymmetricDifference(Comparator<? super K> cmp) {
+			super(cmp);
+		}
+
+		@Override
+		TTTree<K, V> base(TTTree<K, V> a, TTTree<K, V> b) {
+			if (a.isEmpty()) {
+				return b;
+			} else if (b.isEmpty()) {
+				return a;
+			} else if (a==b) {
+				return emptyTree();
+			}
+			return null;
+		}
+
+		@Override
+		TTTree<K, V> leafA(Leaf<K, V> a, TTTree<K, V> b) {
+			return b.lookup(cmp, a.k)!=null ? b.remove(cmp, null, a.k) : b.put(cmp, null, a.k, a.v);
+		}
+
+		@Override
+		TTTree<K, V> leafB(TTTree<K, V> a, Leaf<K, V> b) {
+			return a.lookup(cmp, b.k)!=null ? a.remove(cmp, null, b.k) : a.put(cmp, null, b.k, b.v);
+		}
+
+		@Override
+		boolean resultIsSubsetOfA() {
+			return false;
+		}
+	}
+
+	/**
+	 * Build a balanced tree from a list of sorted, equal depth subtrees. Each level is
+	 * built by grouping the nodes of the level below into Node3 (and, where the count
+	 * doesn't divide by three, at most two Node2). The list is reused to hold the nodes
+	 * of each level, so the only allocations are the nodes themselves.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K, V> TTTree<K, V> buildBalanced(List<TTTree<K, V>> nodes) {
+		int n = nodes.size();
+		if (n==0) {
+			return emptyTree();
+		}
+		Object[] maxKeys = new Object[n];
+		for (int i = 0; i < n; i++) {
+			maxKeys[i] = ((Leaf<K, V>)nodes.get(i)).k;
+		}
+		while (n>1) {
+			int read = 0;
+			int write = 0;
+			while (read<n) {
+				int remaining = n-read;
+				if (remaining==2 || remaining==4) {
+					nodes.set(write, new Node2<>(
+							nodes.get(read), (K)maxKeys[read],
+							nodes.get(read+1)
+					));
+					maxKeys[write++] = maxKeys[read+1];
+					read += 2;
+				} else {
+					nodes.set(write, new Node3<>(
+							nodes.get(read), (K)maxKeys[read],
+							nodes.get(read+1), (K)maxKeys[read+1],
+							nodes.get(read+2)
+					));
+					maxKeys[write++] = maxKeys[read+2];
+					read += 3;
+				}
+			}
+			n = write;
+		}
+		return nodes.get(0);
+	}
+
+	/**
+	 * Create a LEAF node which contains a single key -> value pair.
+	 */
+	static <K, V> TTTree<K, V> leaf(K k, V v) {
+		return new Leaf<>(k, v);
+	}
+
+	/**
+	 * Create a 2-node for an update operation: a persistent node, or a transient one if the
+	 * operation is done by a {@link TTTreeBuilder}, i.e. when there is an edit token.
+	 */
+	static <K, V> TTTree<K, V> node2(Object edit, TTTree<K, V> l, K k, TTTree<K, V> r) {
+		return edit==null ? new Node2<>(l, k, r) : new TransientNode2<>(l, k, r);
+	}
+
+	/**
+	 * Like {@link #node2(Object, TTTree, Object, TTTree)} but creates a 3-node.
+	 */
+	static <K, V> TTTree<K, V> node3(Object edit, TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
+		return edit==null ? new Node3<>(l, k1, m, k2, r) : new TransientNode3<>(l, k1, m, k2, r);
+	}
+
+	/**
+	 * Create a binary node from two subtrees of the same depth, with the largest key of the left
+	 * subtree as separator. This is for restoring trees that were saved node by node, see
+	 * {@link TTTreeDeltaReader}.
+	 */
+	static <K, V> TTTree<K, V> node(TTTree<K, V> l, TTTree<K, V> r) {
+		return new Node2<>(l, l.last().k, r);
+	}
+
+	/**
+	 * Like {@link #node(TTTree, TTTree)}, but creating a ternary node.
+	 */
+	static <K, V> TTTree<K, V> node(TTTree<K, V> l, TTTree<K, V> m, TTTree<K, V> r) {
+		return new Node3<>(l, l.last().k, m, m.last().k, r);
+	}
+
+	/**
+	 * Default size from which {@link #mapValues}, {@link #filter} and {@link #reduce} start
+	 * processing subtrees in parallel.
+	 */
+	private static final int DEFAULT_PARALLEL_THRESHOLD = 8192;
+
+	/**
+	 * Adapts a computation to a {@link ForkJoinTask}, so that it can run in parallel with
+	 * other work. If the current thread is not part of a {@link ForkJoinPool}, the task runs
+	 * in the common pool.
+	 */
+	private static final class Fork<T> extends RecursiveTask<T> {
+		private static final long serialVersionUID = 1L;
+
+		private final Supplier<T> computation;
+
+		private Fork(Supplier<T> computation) {
+			this.computation = computation;
+		}
+
+		static <T> Fork<T> fork(Supplier<T> computation) {
+			Fork<T> task = new Fork<>(computation);
+			task.fork();
+			return task;
+		}
+
+		@Override
+		protected T compute() {
+			return computation.get();
+		}
+	}
+
+	private static class Leaf<K, V> extends TTTree<K, V> implements Map.Entry<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final K k;
+		private final V v;
+
+		Leaf(K k, V v) {
+			super();
+			this.k = k;
+			this.v = v;
+		}
+
+		@Override
+		Leaf<K, V> lookup(Comparator<? super K> cmp, K key) {
+			if (compare(cmp, key, k)==0) {
+				return this;
+			}
+			return null;
+		}
+
+		@Override
+		TTTree<K, V> put(Comparator<? super K> cmp, Object edit, K ik, V iv) {
+			int compare = compare(cmp, ik, k);
+			if (compare==0) {
+				// ik == k
+				if (Objects.equals(v, iv)) {
+					return this;
+				}
+				return replaced(edit, leaf(ik, iv));
+			} else {
+				TTTree<K, V> newLeaf = inserted(edit, leaf(ik, iv));
+				if (compare<0) {
+					// ik < k
+					return node2(edit, newLeaf, ik, this);
+				} else {
+					// ik > k
+					return node2(edit, this, k, newLeaf);
+				}
+			}
+		}
+
+		@Override
+		TTTree<K, V> remove(Comparator<? super K> cmp, Object edit, K fk) {
+			if (compare(cmp, fk, k)==0) {
+				return removed(edit);
+			}
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		TTTree<K, V> compute(Comparator<? super K> cmp, Object edit, K ik, BiFunction<? super K, ? super Entry<K, V>, Object> f) {
+			int compare = compare(cmp, ik, k);
+			if (compare==0) {
+				Object iv = f.apply(ik, this);
+				if (iv==NO_ENTRY) {
+					return removed(edit);
+				} else if (Objects.equals(v, iv)) {
+					return this;
+				}
+				return replaced(edit, leaf(ik, (V) iv));
+			}
+			Object iv = f.apply(ik, null);
+			if (iv==NO_ENTRY) {
+				return this;
+			}
+			TTTree<K, V> newLeaf = inserted(edit, leaf(ik, (V) iv));
+			if (compare<0) {
+				return node2(edit, newLeaf, ik, this);
+			} else {
+				return node2(edit, this, k, newLeaf);
+			}
+		}
+
+		@Override
+		protected int depth() {
+			return 1;
+		}
+
+		@Override
+		void dump(int indent) {
+			print(indent, k + " = " +v);
+		}
+
+		@Override
+		public K getKey() {
+			return k;
+		}
+
+		@Override
+		public V getValue() {
+			return v;
+		}
+
+		@Override
+		public V setValue(V value) {
+			throw new UnsupportedOperationException("setValue");
+		}
+
+		@Override
+		public void forEach(Consumer<? super Entry<K, V>> action) {
+			action.accept(this);
+		}
+
+		@Override
+		public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+			action.accept(k, v);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <W> TTTree<K, W> mapValues(Function<? super V, ? extends W> f, int parallelThreshold) {
+			W w = f.apply(v);
+			if (w==v) {
+				return (TTTree<K, W>) this;
+			}
+			return new Leaf<>(k, w);
+		}
+
+		@Override
+		public TTTree<K, V> filter(BiPredicate<? super K, ? super V> predicate, int parallelThreshold) {
+			return predicate.test(k, v) ? this : emptyTree();
+		}
+
+		@Override
+		public <U> U fold(U initial, BiFunction<U, ? super Entry<K, V>, U> f) {
+			return f.apply(initial, this);
+		}
+
+		@Override
+		public int size() {
+			return 1;
+		}
+
+		@Override
+		int entryHash() {
+			return hashCode();
+		}
+
+		@Override
+		int keyHash() {
+			return Objects.hashCode(k);
+		}
+
+		@Override
+		int rank(Comparator<? super K> cmp, K fk) {
+			return compare(cmp, fk, k)>0 ? 1 : 0;
+		}
+
+		@Override
+		Leaf<K, V> select(int index) {
+			return this;
+		}
+
+		@Override
+		Leaf<K, V> first() {
+			return this;
+		}
+
+		@Override
+		Leaf<K, V> last() {
+			return this;
+		}
+
+		@Override
+		Leaf<K, V> floor(Comparator<? super K> cmp, K fk, boolean inclusive) {
+			int c = compare(cmp, k, fk);
+			return c<0 || (inclusive && c==0) ? this : null;
+		}
+
+		@Override
+		Leaf<K, V> ceiling(Comparator<? super K> cmp, K fk, boolean inclusive) {
+			int c = compare(cmp, k, fk);
+			return c>0 || (inclusive && c==0) ? this : null;
+		}
+
+		@Override
+		Split<K, V> split(Comparator<? super K> cmp, K fk, boolean inclusive) {
+			int c = compare(cmp, fk, k);
+			if (c<0) {
+				return new Split<>(emptyTree(), null, this);
+			} else if (c==0 && !inclusive) {
+				return new Split<>(emptyTree(), this, emptyTree());
+			} else {
+				return new Split<>(this, null, emptyTree());
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "["+k+" = "+v+"]";
+		}
+
+		/**
+		 * Record in the edit token, if there is one, that this entry has been replaced.
+		 */
+		private TTTree<K, V> replaced(Object edit, TTTree<K, V> newLeaf) {
+			if (edit!=null) {
+				Edit e = (Edit) edit;
+				e.hashDelta = newLeaf.entryHash() - entryHash();
+				e.keyHashDelta = newLeaf.keyHash() - keyHash();
+			}
+			return newLeaf;
+		}
+
+		/**
+		 * Record in the edit token, if there is one, that a new entry has been inserted.
+		 */
+		private static <K, V> TTTree<K, V> inserted(Object edit, TTTree<K, V> newLeaf) {
+			if (edit!=null) {
+				Edit e = (Edit) edit;
+				e.sizeDelta = 1;
+				e.hashDelta = newLeaf.entryHash();
+				e.keyHashDelta = newLeaf.keyHash();
+			}
+			return newLeaf;
+		}
+
+		/**
+		 * Record in the edit token, if there is one, that this entry has been removed.
+		 */
+		private TTTree<K, V> removed(Object edit) {
+			if (edit!=null) {
+				Edit e = (Edit) edit;
+				e.sizeDelta = -1;
+				e.hashDelta = -entryHash();
+				e.keyHashDelta = -keyHash();
+			}
+			return emptyTree();
+		}
+
+		/**
+		 * As specified by {@link Map.Entry#equals}.
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Map.Entry) {
+				Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+				return Objects.equals(k, e.getKey()) && Objects.equals(v, e.getValue());
+			}
+			return false;
+		}
+
+		/**
+		 * As specified by {@link Map.Entry#hashCode}.
+		 */
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(k) ^ Objects.hashCode(v);
+		}
+
+		@Override
+		public void accept(TTTreeVisitor<K, V> visitor) {
+			visitor.visit_leaf(k, v);
+		}
+	};
+
+	private static class Node2<K, V> extends TTTree<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final TTTree<K, V> l;
+		private final K k;
+		private final TTTree<K, V> r;
+		private final int depth;
+		private final int size;
+		private final int hash;
+		private final int keyHash;
+
+		Node2(TTTree<K, V> l, K k, TTTree<K, V> r) {
+			Assert.isLegalState(l.depth()==r.depth());
+			this.depth = l.depth()+1;
+			this.size = l.size() + r.size();
+			this.hash = l.entryHash() + r.entryHash();
+			this.keyHash = l.keyHash() + r.keyHash();
+			this.l = l;
+			this.k = k;
+			this.r = r;
+		}
+
+		@Override
+		TTTree<K, V> put(Comparator<? super K> cmp, Object edit, K ik, V iv) {
+			int c = compare(cmp, ik, k);
+			if (c<=0) {
+				//ik <= k
+				return withL(edit, l.put(cmp, edit, ik, iv));
+			} else {
+				//ik > k
+				return withR(edit, r.put(cmp, edit, ik, iv));
+			}
+		}
+
+		@Override
+		TTTree<K, V> remove(Comparator<? super K> cmp, Object edit, K fk) {
+			int c = compare(cmp, fk, k);
+			if (c<=0) {
+				// fk <= k
+				return withL(edit, l.remove(cmp, edit, fk));
+			} else {
+				// fk > k
+				return withR(edit, r.remove(cmp, edit, fk));
+			}
+		}
+
+		@Override
+		TTTree<K, V> compute(Comparator<? super K> cmp, Object edit, K ck, BiFunction<? super K, ? super Entry<K, V>, Object> f) {
+			if (compare(cmp, ck, k)<=0) {
+				return withL(edit, l.compute(cmp, edit, ck, f));
+			} else {
+				return withR(edit, r.compute(cmp, edit, ck, f));
+			}
+		}
+
+		/**
+		 * Create a copy of this node with its left child replaced. The new child is
+		 * the result of an update operation on the old one, so it may be one level
+		 * higher or lower than the old child.
+		 */
+		private TTTree<K, V> withL(Object edit, TTTree<K, V> l) {
+			if (l==this.l) {
+				return this; //Avoid needless copying if tree is unchanged
+			}
+			return rebuildL(edit, depth-1, l, k, r);
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the right child.
+		 */
+		private TTTree<K, V> withR(Object edit, TTTree<K, V> r) {
+			if (r==this.r) {
+				return this; //Avoid needless copying if tree is unchanged
+			}
+			return rebuildR(edit, depth-1, l, k, r);
+		}
+
+		/**
+		 * Create a 2-node from two children, the left one of which replaces a child of the given
+		 * depth. It is the result of an update operation on that child, so it may be one level
+		 * higher or lower. This is shared with {@link TransientNode2}, so other nodes are taken
+		 * apart with {@link #child} and {@link #key}, which work for both kinds of node.
+		 */
+		static <K, V> TTTree<K, V> rebuildL(Object edit, int depth, TTTree<K, V> l, K k, TTTree<K, V> r) {
+			if (l.depth()==depth) {
+				return node2(edit, l, k, r);
+			} else if (l.depth()>depth) {
+				//Since the tree has just grown its root must be a 2-node
+				return node3(edit, l.child(0), l.key(0), l.child(1), k, r);
+			} else {
+				//l.depth shrunk
+				if (r.arity()==2) {
+					return node3(edit, l, k, r.child(0), r.key(0), r.child(1));
+				} else if (r.arity()==3) {
+					return node2(edit,
+							node2(edit, l, k, r.child(0)),
+							r.key(0),
+							node2(edit, r.child(1), r.key(1), r.child(2))
+					);
+				} else {
+					Assert.isLegalState(r instanceof Leaf);
+					Assert.isLegalState(l.isEmpty());
+					return r;
+				}
+			}
+		}
+
+		/**
+		 * Like {@link #rebuildL} but the right child replaces a child of the given depth.
+		 */
+		static <K, V> TTTree<K, V> rebuildR(Object edit, int depth, TTTree<K, V> l, K k, TTTree<K, V> r) {
+			if (r.depth()==depth) {
+				return node2(edit, l, k, r);
+			} else if (r.depth()>depth) {
+				//Since the tree has just grown its root must be a 2-node
+				return node3(edit, l, k, r.child(0), r.key(0), r.child(1));
+			} else {
+				//r.depth shrunk
+				if (l.arity()==2) {
+					return node3(edit, l.child(0), l.key(0), l.child(1), k, r);
+				} else if (l.arity()==3) {
+					return node2(edit,
+							node2(edit, l.child(0), l.key(0), l.child(1)),
+							l.key(1),
+							node2(edit, l.child(2), k, r)
+					);
+				} else {
+					Assert.isLegalState(l instanceof Leaf);
+					Assert.isLegalState(r.isEmpty());
+					return l;
+				}
+			}
+		}
+
+		@Override
+		int arity() {
+			return 2;
+		}
+
+		@Override
+		TTTree<K, V> child(int i) {
+			return i==0 ? l : r;
+		}
+
+		@Override
+		K key(int i) {
+			return k;
+		}
+
+		@Override
+		Leaf<K,V> lookup(Comparator<? super K> cmp, K fk) {
+			int c = compare(cmp, fk, k);
+			if (c<=0) {
+				// fk <= k
+				return l.lookup(cmp, fk);
+			} else {
+				// fk > k
+				return r.lookup(cmp, fk);
+			}
+		}
+
+		@Override
+		protected int depth() {
+			return depth;
+		}
+
+		@Override
+		void dump(int indent) {
+			l.dump(indent+1);
+			print(indent, k);
+			r.dump(indent+1);
+		}
+		@Override
+		public void forEach(Consumer<? super Entry<K, V>> action) {
+			l.forEach(action);
+			r.forEach(action);
+		}
+
+		@Override
+		public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+			l.forEachEntry(action);
+			r.forEachEntry(action);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <W> TTTree<K, W> mapValues(Function<? super V, ? extends W> f, int parallelThreshold) {
+			TTTree<K, W> nl, nr;
+			if (size>=parallelThreshold) {
+				Fork<TTTree<K, W>> left = Fork.fork(() -> l.mapValues(f, parallelThreshold));
+				nr = r.mapValues(f, parallelThreshold);
+				nl = left.join();
+			} else {
+				nl = l.mapValues(f, parallelThreshold);
+				nr = r.mapValues(f, parallelThreshold);
+			}
+			if (nl==l && nr==r) {
+				return (TTTree<K, W>) this;
+			}
+			return new Node2<>(nl, k, nr);
+		}
+
+		@Override
+		public TTTree<K, V> filter(BiPredicate<? super K, ? super V> predicate, int parallelThreshold) {
+			TTTree<K, V> nl, nr;
+			if (size>=parallelThreshold) {
+				Fork<TTTree<K, V>> left = Fork.fork(() -> l.filter(predicate, parallelThreshold));
+				nr = r.filter(predicate, parallelThreshold);
+				nl = left.join();
+			} else {
+				nl = l.filter(predicate, parallelThreshold);
+				nr = r.filter(predicate, parallelThreshold);
+			}
+			if (nl==l && nr==r) {
+				return this;
+			}
+			return join(nl, k, nr);
+		}
+
+		@Override
+		public <U> U reduce(U identity, BiFunction<U, ? super Entry<K, V>, U> accumulator, BinaryOperator<U> combiner, int parallelThreshold) {
+			if (size<parallelThreshold) {
+				return fold(identity, accumulator);
+			}
+			Fork<U> left = Fork.fork(() -> l.reduce(identity, accumulator, combiner, parallelThreshold));
+			U right = r.reduce(identity, accumulator, combiner, parallelThreshold);
+			return combiner.apply(left.join(), right);
+		}
+
+		@Override
+		public <U> U fold(U initial, BiFunction<U, ? super Entry<K, V>, U> f) {
+			return r.fold(l.fold(initial, f), f);
+		}
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		int entryHash() {
+			return hash;
+		}
+
+		@Override
+		int keyHash() {
+			return keyHash;
+		}
+
+		@Override
+		int rank(Comparator<? super K> cmp, K fk) {
+			if (compare(cmp, fk, k)<=0) {
+				return l.rank(cmp, fk);
+			} else {
+				return l.size() + r.rank(cmp, fk);
+			}
+		}
+
+		@Override
+		Leaf<K, V> select(int index) {
+			int ls = l.size();
+			if (index<ls) {
+				return l.select(index);
+			} else {
+				return r.select(index-ls);
+			}
+		}
+
+		@Override
+		Leaf<K, V> first() {
+			return l.first();
+		}
+
+		@Override
+		Leaf<K, V> last() {
+			return r.last();
+		}
+
+		@Override
+		Leaf<K, V> floor(Comparator<? super K> cmp, K fk, boolean inclusive) {
+			if (compare(cmp, fk, k)<=0) {
+				//All keys in r are larger than fk
+				return l.floor(cmp, fk, inclusive);
+			} else {
+				Leaf<K, V> found = r.floor(cmp, fk, inclusive);
+				return found!=null ? found : l.last();
+			}
+		}
+
+		@Override
+		Leaf<K, V> ceiling(Comparator<? super K> cmp, K fk, boolean inclusive) {
+			if (compare(cmp, fk, k)<=0) {
+				Leaf<K, V> found = l.ceiling(cmp, fk, inclusive);
+				return found!=null ? found : r.first();
+			} else {
+				//All keys in l are smaller than fk
+				return r.ceiling(cmp, fk, inclusive);
+			}
+		}
+
+		@Override
+		Split<K, V> split(Comparator<? super K> cmp, K fk, boolean inclusive) {
+			if (compare(cmp, fk, k)<=0) {
+				Split<K, V> split = l.split(cmp, fk, inclusive);
+				return new Split<>(split.left, split.entry, join(split.right, k, r));
+			} else {
+				Split<K, V> split = r.split(cmp, fk, inclusive);
+				return new Split<>(join(l, k, split.left), split.entry, split.right);
+			}
+		}
+
+		@Override
+		TTTree<K, V> appendRight(K k, TTTree<K, V> right) {
+			if (depth==right.depth()) {
+				return super.appendRight(k, right);
+			}
+			return withR(null, r.appendRight(k, right));
+		}
+
+		@Override
+		TTTree<K, V> prependLeft(TTTree<K, V> left, K k) {
+			if (depth==left.depth()) {
+				return super.prependLeft(left, k);
+			}
+			return withL(null, l.prependLeft(left, k));
+		}
+
+		@Override
+		public String toString() {
+			return "Node2["+depth+"]("+k+")";
+		}
+		@Override
+		public void accept(TTTreeVisitor<K, V> visitor) {
+			visitor.visit_2node(l, k, r);
+		}
+
+	}
+
+	private static class Node3<K, V> extends TTTree<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int depth;
+		private final int size;
+		private final int hash;
+		private final int keyHash;
+
+		final TTTree<K, V> l;
+		final K k1;
+		final TTTree<K, V> m;
+		final K k2;
+		final TTTree<K, V> r;
+
+		public Node3(TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
+			Assert.isLegalState(l.depth()==m.depth());
+			Assert.isLegalState(l.depth()==r.depth());
+			this.depth = l.depth()+1;
+			this.size = l.size() + m.size() + r.size();
+			this.hash = l.entryHash() + m.entryHash() + r.entryHash();
+			this.keyHash = l.keyHash() + m.keyHash() + r.keyHash();
+			this.l = l;
+			this.k1 = k1;
+			this.m = m;
+			this.k2 = k2;
+			this.r = r;
+		}
+
+		@Override
+		TTTree<K, V> put(Comparator<? super K> cmp, Object edit, K k, V v) {
+			int c = compare(cmp, k, k1);
+			if (c<=0) {
+				//k <= k1
+				return withL(edit, l.put(cmp, edit, k, v));
+			} else {
+				// k1 < k
+				c = compare(cmp, k, k2);
+				if (c<=0) {
+					//k1 < k <= k2
+					return withM(edit, m.put(cmp, edit, k, v));
+				} else {
+					//k2 < k
+					return withR(edit, r.put(cmp, edit, k, v));
+				}
+			}
+		}
+
+		@Override
+		TTTree<K, V> remove(Comparator<? super K> cmp, Object edit, K fk) {
+			int c = compare(cmp, fk, k1);
+			if (c<=0) {
+				//fk <= k1
+				return withL(edit, l.remove(cmp, edit, fk));
+			} else {
+				//k1 < fk
+				c = compare(cmp, fk, k2);
+				if (c<=0) {
+					//k1 < fk <= k2
+					return withM(edit, m.remove(cmp, edit, fk));
+				} else {
+					//k2 < fk
+					return withR(edit, r.remove(cmp, edit, fk));
+				}
+			}
+		}
+
+		@Override
+		TTTree<K, V> compute(Comparator<? super K> cmp, Object edit, K ck, BiFunction<? super K, ? super Entry<K, V>, Object> f) {
+			if (compare(cmp, ck, k1)<=0) {
+				return withL(edit, l.compute(cmp, edit, ck, f));
+			} else if (compare(cmp, ck, k2)<=0) {
+				return withM(edit, m.compute(cmp, edit, ck, f));
+			} else {
+				return withR(edit, r.compute(cmp, edit, ck, f));
+			}
+		}
+
+		/**
+		 * Create a copy of this node with its left child replaced. The new child is
+		 * the result of an update operation on the old one, so it may be one level
+		 * higher or lower than the old child.
+		 */
+		private TTTree<K, V> withL(Object edit, TTTree<K, V> l) {
+			return l==this.l ? this : rebuildL(edit, depth-1, l, k1, m, k2, r);
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the middle child.
+		 */
+		private TTTree<K, V> withM(Object edit, TTTree<K, V> m) {
+			return m==this.m ? this : rebuildM(edit, depth-1, l, k1, m, k2, r);
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the right child.
+		 */
+		private TTTree<K, V> withR(Object edit, TTTree<K, V> r) {
+			return r==this.r ? this : rebuildR(edit, depth-1, l, k1, m, k2, r);
+		}
+
+		/**
+		 * Create a 3-node from three children, the left one of which replaces a child of the
+		 * given depth. See {@link Node2#rebuildL}.
+		 */
+		static <K, V> TTTree<K, V> rebuildL(Object edit, int depth, TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
+			if (l.depth()==depth) {
+				return node3(edit, l, k1, m, k2, r);
+			} else if (l.depth()>depth) {
+				//The tree has just grown
+				//split ourself into a new Node2.
+				return node2(edit,
+						l,
+						k1,
+						node2(edit, m, k2, r)
+				);
+			} else {
+				//shrunk l
+				if (l.isEmpty()) {
+					return node2(edit, m, k2, r);
+				} else if (m.arity()==2) {
+					return node2(edit,
+						node3(edit, l, k1, m.child(0), m.key(0), m.child(1)),
+						k2,
+						r
+					);
+				} else { //m is a 3-node
+					return node3(edit,
+						node2(edit, l, k1, m.child(0)),
+						m.key(0),
+						node2(edit, m.child(1), m.key(1), m.child(2)),
+						k2,
+						r
+					);
+				}
+			}
+		}
+
+		/**
+		 * Like {@link #rebuildL} but the middle child replaces a child of the given depth.
+		 */
+		static <K, V> TTTree<K, V> rebuildM(Object edit, int depth, TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
+			if (m.depth()==depth) {
+				return node3(edit, l, k1, m, k2, r);
+			} else if (m.depth()>depth) {
+				//Since the tree has just grown its root *must* be a 2-node
+				return node2(edit,
+						node2(edit, l, k1, m.child(0)),
+						m.key(0),
+						node2(edit, m.child(1), k2, r)
+				);
+			} else {
+				//shrunk
+				if (m.isEmpty()) {
+					return node2(edit, l, k1, r);
+				} else if (l.arity()==2) {
+					return node2(edit,
+						node3(edit, l.child(0), l.key(0), l.child(1), k1, m),
+						k2,
+						r
+					);
+				} else { //l is a 3-node
+					return node3(edit,
+						node2(edit, l.child(0), l.key(0), l.child(1)),
+						l.key(1),
+						node2(edit, l.child(2), k1, m),
+						k2,
+						r
+					);
+				}
+			}
+		}
+
+		/**
+		 * Like {@link #rebuildL} but the right child replaces a child of the given depth.
+		 */
+		static <K, V> TTTree<K, V> rebuildR(Object edit, int depth, TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
+			if (r.depth()==depth) {
+				return node3(edit, l, k1, m, k2, r);
+			} else if (r.depth()>depth) {
+				//The tree has just grown
+				//split ourself into a new Node2.
+				return node2(edit,
+						node2(edit, l, k1, m),
+						k2,
+						r
+				);
+			} else {
+				//shrunk
+				if (r.isEmpty()) {
+					return node2(edit, l, k1, m);
+				} else if (m.arity()==2) {
+					return node2(edit,
+						l,
+						k1,
+						node3(edit, m.child(0), m.key(0), m.child(1), k2, r)
+					);
+				} else { //m is a 3-node
+					return node3(edit,
+						l,
+						k1,
+						node2(edit, m.child(0), m.key(0), m.child(1)),
+						m.key(1),
+						node2(edit, m.child(2), k2, r)
+					);
+				}
+			}
+		}
+
+		@Override
+		int arity() {
+			return 3;
+		}
+
+		@Override
+		TTTree<K, V> child(int i) {
+			return i==0 ? l : i==1 ? m : r;
+		}
+
+		@Override
+		K key(int i) {
+			return i==0 ? k1 : k2;
+		}
+
+		@Override
+		Leaf<K, V> lookup(Comparator<? super K> cmp, K k) {
+			int c = compare(cmp, k, k1);
+			if (c<=0) {
+				//k <= k1
+				return l.lookup(cmp, k);
+			} else {
+				// k1 < k
+				c = compare(cmp, k, k2);
+				if (c<=0) {
+					//k1 < k <= k2
+					return m.lookup(cmp, k);
+				} else {
+					//k2 < k
+					return r.lookup(cmp, k);
+				}
+			}
+		}
+
+		@Override
+		protected int depth() {
+			return depth;
+		}
+
+		@Override
+		void dump(int indent) {
+			l.dump(indent+1);
+			print(indent, k1);
+			m.dump(indent+1);
+			print(indent, k2);
+			r.dump(indent+1);
+		}
+
+		@Override
+		public void forEach(Consumer<? super Entry<K, V>> action) {
+			l.forEach(action);
+			m.forEach(action);
+			r.forEach(action);
+		}
+
+		@Override
+		public void forEachEntry(BiConsumer<? super K, ? super V> action) {
+			l.forEachEntry(action);
+			m.forEachEntry(action);
+			r.forEachEntry(action);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <W> TTTree<K, W> mapValues(Function<? super V, ? extends W> f, int parallelThreshold) {
+			TTTree<K, W> nl, nm, nr;
+			if (size>=parallelThreshold) {
+				Fork<TTTree<K, W>> left = Fork.fork(() -> l.mapValues(f, parallelThreshold));
+				Fork<TTTree<K, W>> middle = Fork.fork(() -> m.mapValues(f, parallelThreshold));
+				nr = r.mapValues(f, parallelThreshold);
+				nm = middle.join();
+				nl = left.join();
+			} else {
+				nl = l.mapValues(f, parallelThreshold);
+				nm = m.mapValues(f, parallelThreshold);
+				nr = r.mapValues(f, parallelThreshold);
+			}
+			if (nl==l && nm==m && nr==r) {
+				return (TTTree<K, W>) this;
+			}
+			return new Node3<>(nl, k1, nm, k2, nr);
+		}
+
+		@Override
+		public TTTree<K, V> filter(BiPredicate<? super K, ? super V> predicate, int parallelThreshold) {
+			TTTree<K, V> nl, nm, nr;
+			if (size>=parallelThreshold) {
+				Fork<TTTree<K, V>> left = Fork.fork(() -> l.filter(predicate, parallelThreshold));
+				Fork<TTTree<K, V>> middle = Fork.fork(() -> m.filter(predicate, parallelThreshold));
+				nr = r.filter(predicate, parallelThreshold);
+				nm = middle.join();
+				nl = left.join();
+			} else {
+				nl = l.filter(predicate, parallelThreshold);
+				nm = m.filter(predicate, parallelThreshold);
+				nr = r.filter(predicate, parallelThreshold);
+			}
+			if (nl==l && nm==m && nr==r) {
+				return this;
+			}
+			return join(join(nl, k1, nm), k2, nr);
+		}
+
+		@Override
+		public <U> U reduce(U identity, BiFunction<U, ? super Entry<K, V>, U> accumulator, BinaryOperator<U> combiner, int parallelThreshold) {
+			if (size<parallelThreshold) {
+				return fold(identity, accumulator);
+			}
+			Fork<U> left = Fork.fork(() -> l.reduce(identity, accumulator, combiner, parallelThreshold));
+			Fork<U> middle = Fork.fork(() -> m.reduce(identity, accumulator, combiner, parallelThreshold));
+			U right = r.reduce(identity, accumulator, combiner, parallelThreshold);
+			return combiner.apply(combiner.apply(left.join(), middle.join()), right);
+		}
+
+		@Override
+		public <U> U fold(U initial, BiFunction<U, ? super Entry<K, V>, U> f) {
+			return r.fold(m.fold(l.fold(initial, f), f), f);
+		}
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		int entryHash() {
+			return hash;
+		}
+
+		@Override
+		int keyHash() {
+			return keyHash;
+		}
+
+		@Override
+		int rank(Comparator<? super K> cmp, K k) {
+			if (compare(cmp, k, k1)<=0) {
+				return l.rank(cmp, k);
+			} else if (compare(cmp, k, k2)<=0) {
+				return l.size() + m.rank(cmp, k);
+			} else {
+				return l.size() + m.size() + r.rank(cmp, k);
+			}
+		}
+
+		@Override
+		Leaf<K, V> select(int index) {
+			int ls = l.size();
+			if (index<ls) {
+				return l.select(index);
+			}
+			index -= ls;
+			int ms = m.size();
+			if (index<ms) {
+				return m.select(index);
+			}
+			return r.select(index-ms);
+		}
+
+		@Override
+		Leaf<K, V> first() {
+			return l.first();
+		}
+
+		@Override
+		Leaf<K, V> last() {
+			return r.last();
+		}
+
+		@Override
+		Leaf<K, V> floor(Comparator<? super K> cmp, K k, boolean inclusive) {
+			Leaf<K, V> found;
+			if (compare(cmp, k, k1)<=0) {
+				return l.floor(cmp, k, inclusive);
+			} else if (compare(cmp, k, k2)<=0) {
+				found = m.floor(cmp, k, inclusive);
+				return found!=null ? found : l.last();
+			} else {
+				found = r.floor(cmp, k, inclusive);
+				return found!=null ? found : m.last();
+			}
+		}
+
+		@Override
+		Leaf<K, V> ceiling(Comparator<? super K> cmp, K k, boolean inclusive) {
+			Leaf<K, V> found;
+			if (compare(cmp, k, k1)<=0) {
+				found = l.ceiling(cmp, k, inclusive);
+				return found!=null ? found : m.first();
+			} else if (compare(cmp, k, k2)<=0) {
+				found = m.ceiling(cmp, k, inclusive);
+				return found!=null ? found : r.first();
+			} else {
+				return r.ceiling(cmp, k, inclusive);
+			}
+		}
+
+		@Override
+		Split<K, V> split(Comparator<? super K> cmp, K k, boolean inclusive) {
+			if (compare(cmp, k, k1)<=0) {
+				Split<K, V> split = l.split(cmp, k, inclusive);
+				return new Split<>(split.left, split.entry, join(join(split.right, k1, m), k2, r));
+			} else if (compare(cmp, k, k2)<=0) {
+				Split<K, V> split = m.split(cmp, k, inclusive);
+				return new Split<>(join(l, k1, split.left), split.entry, join(split.right, k2, r));
+			} else {
+				Split<K, V> split = r.split(cmp, k, inclusive);
+				return new Split<>(join(join(l, k1, m), k2, split.left), split.entry, split.right);
+			}
+		}
+
+		@Override
+		TTTree<K, V> appendRight(K k, TTTree<K, V> right) {
+			if (depth==right.depth()) {
+				return super.appendRight(k, right);
+			}
+			return withR(null, r.appendRight(k, right));
+		}
+
+		@Override
+		TTTree<K, V> prependLeft(TTTree<K, V> left, K k) {
+			if (depth==left.depth()) {
+				return super.prependLeft(left, k);
+			}
+			return withL(null, l.prependLeft(left, k));
+		}
+
+		@Override
+		public String toString() {
+			return "Node3["+depth+"]("+k1+", "+k2+")";
+		}
+
+		@Override
+		public void accept(TTTreeVisitor<K, V> visitor) {
+			visitor.visit_3node(l, k1, m, k2, r);
+		}
+	}
+
+	/**
+	 * Base of the internal nodes created by a {@link TTTreeBuilder}. The builder updates these in
+	 * place, so unlike those of {@link Node2} and {@link Node3}, their children, size and hashes
+	 * aren't final. They are never seen outside of the builder, since
+	 * {@link TTTreeBuilder#persistent()} replaces them by persistent nodes. So they only support
+	 * the operations of a builder.
+	 */
+	private static abstract class TransientNode<K, V> extends TTTree<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		final int depth;
+		private int size;
+		private int hash;
+		private int keyHash;
+
+		TransientNode(int depth, int size, int hash, int keyHash) {
+			this.depth = depth;
+			this.size = size;
+			this.hash = hash;
+			this.keyHash = keyHash;
+		}
+
+		/**
+		 * Account for a change in a child, which has been made in place or has replaced the
+		 * child by a new subtree of the same depth.
+		 */
+		TTTree<K, V> updated(Object edit) {
+			Edit e = (Edit) edit;
+			size += e.sizeDelta;
+			hash += e.hashDelta;
+			keyHash += e.keyHashDelta;
+			return this;
+		}
+
+		@Override
+		abstract TTTree<K, V> persistent();
+
+		@Override
+		int depth() {
+			return depth;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		int entryHash() {
+			return hash;
+		}
 
-	// 2) Remove 'redundant' internal keys
-	//   See the method TTTreeTest.checkForRedundantInternalKeys
+		@Override
+		int keyHash() {
+			return keyHash;
+		}
 
-	@Override
-	public abstract String toString();
-	protected static final TTTree<?,?>[] NO_CHILDREN = {};
-	abstract void dump(int indent);
-	abstract TTTree<K, V>[] getChildren();
-	abstract int depth();
+		@Override
+		void dump(int indent) {
+			print(indent, this);
+		}
 
-	void print(int indent, Object msg) {
-		for (int i = 0; i < indent; i++) {
-			System.out.print("  ");
+		private static UnsupportedOperationException unsupported() {
+			return new UnsupportedOperationException("Transient node of a TTTreeBuilder");
 		}
-		System.out.println(msg);
-	}
 
-	@SuppressWarnings({"rawtypes", "unchecked"})
-	private static final TTTree EMPTY_TREE = new TTTree() {
-		@Override public TTTree put(Comparable k, Object v) { return leaf(k, v); }
-		@Override Leaf getEntry(Comparable key) { return null; }
-		@Override public String toString() { return "EMPTY"; }
-		@Override public boolean isEmpty() { return true; }
-		@Override TTTree[] getChildren() { return NO_CHILDREN; }
-		@Override int depth() { return 0; }
-		@Override int size() { return 0; }
-		@Override void dump(int indent) {print(indent, this);}
-		@Override public TTTree remove(Comparable k) {return this; }
-		@Override public void accept(TTTreeVisitor visitor) { visitor.visit_empty(); }
-	};
+		@Override public void forEach(Consumer<? super Entry<K, V>> action) { throw unsupported(); }
+		@Override public void forEachEntry(BiConsumer<? super K, ? super V> action) { throw unsupported(); }
+		@Override public <W> TTTree<K, W> mapValues(Function<? super V, ? extends W> f, int parallelThreshold) { throw unsupported(); }
+		@Override public TTTree<K, V> filter(BiPredicate<? super K, ? super V> predicate, int parallelThreshold) { throw unsupported(); }
+		@Override public <U> U fold(U initial, BiFunction<U, ? super Entry<K, V>, U> f) { throw unsupported(); }
+		@Override int rank(Comparator<? super K> cmp, K k) { throw unsupported(); }
+		@Override Leaf<K, V> select(int index) { throw unsupported(); }
+		@Override Leaf<K, V> first() { throw unsupported(); }
+		@Override Leaf<K, V> last() { throw unsupported(); }
+		@Override Leaf<K, V> floor(Comparator<? super K> cmp, K k, boolean inclusive) { throw unsupported(); }
+		@Override Leaf<K, V> ceiling(Comparator<? super K> cmp, K k, boolean inclusive) { throw unsupported(); }
+		@Override Split<K, V> split(Comparator<? super K> cmp, K k, boolean inclusive) { throw unsupported(); }
+		@Override public void accept(TTTreeVisitor<K, V> visitor) { throw unsupported(); }
+	}
 
 	/**
-	 * Create a LEAF node which contains a single key -> value pair.
+	 * A 2-node of a {@link TTTreeBuilder}. See {@link TransientNode}.
 	 */
-	private static <K extends Comparable<K>, V> TTTree<K, V> leaf(K k, V v) {
-		return new Leaf<>(k, v);
-	}
+	private static final class TransientNode2<K, V> extends TransientNode<K, V> {
 
-	private static class Leaf<K extends Comparable<K>, V> extends TTTree<K, V> implements Map.Entry<K, V> {
+		private static final long serialVersionUID = 1L;
 
+		private TTTree<K, V> l;
 		private final K k;
-		private final V v;
+		private TTTree<K, V> r;
 
-		Leaf(K k, V v) {
-			super();
+		TransientNode2(TTTree<K, V> l, K k, TTTree<K, V> r) {
+			super(l.depth()+1, l.size() + r.size(), l.entryHash() + r.entryHash(), l.keyHash() + r.keyHash());
+			Assert.isLegalState(l.depth()==r.depth());
+			this.l = l;
 			this.k = k;
-			this.v = v;
+			this.r = r;
 		}
 
 		@Override
-		Leaf<K, V> getEntry(K key) {
-			if (key.equals(k)) {
-				return this;
+		TTTree<K, V> put(Comparator<? super K> cmp, Object edit, K ik, V iv) {
+			if (compare(cmp, ik, k)<=0) {
+				return withL(edit, l.put(cmp, edit, ik, iv));
+			} else {
+				return withR(edit, r.put(cmp, edit, ik, iv));
 			}
-			return null;
 		}
 
 		@Override
-		public TTTree<K, V> put(K ik, V iv) {
-			int compare = ik.compareTo(k);
-			if (compare==0) {
-				// ik == k
-				if (Objects.equals(v, iv)) {
-					return this;
-				}
-				return leaf(ik, iv);
+		TTTree<K, V> remove(Comparator<? super K> cmp, Object edit, K fk) {
+			if (compare(cmp, fk, k)<=0) {
+				return withL(edit, l.remove(cmp, edit, fk));
 			} else {
-				TTTree<K, V> newLeaf = leaf(ik, iv);
-				if (compare<0) {
-					// ik < k
-					return new Node2<>(newLeaf, ik, this);
-				} else {
-					// ik > k
-					return new Node2<>(this, k, newLeaf);
-				}
+				return withR(edit, r.remove(cmp, edit, fk));
 			}
 		}
 
 		@Override
-		public TTTree<K, V> remove(K fk) {
-			if (fk.equals(k)) {
-				return empty();
+		TTTree<K, V> compute(Comparator<? super K> cmp, Object edit, K ck, BiFunction<? super K, ? super Entry<K, V>, Object> f) {
+			if (compare(cmp, ck, k)<=0) {
+				return withL(edit, l.compute(cmp, edit, ck, f));
+			} else {
+				return withR(edit, r.compute(cmp, edit, ck, f));
 			}
-			return this;
 		}
 
-		@Override
-		protected int depth() {
-			return 1;
+		/**
+		 * Replace the left child by the result of an update operation on it, in place if its
+		 * depth didn't change.
+		 */
+		private TTTree<K, V> withL(Object edit, TTTree<K, V> l) {
+			if (l!=this.l && l.depth()!=depth-1) {
+				return Node2.rebuildL(edit, depth-1, l, k, r);
+			}
+			//The child may also have been modified in place
+			this.l = l;
+			return updated(edit);
 		}
 
-		@Override
-		void dump(int indent) {
-			print(indent, k + " = " +v);
+		/**
+		 * Like {@link #withL} but replaces the right child.
+		 */
+		private TTTree<K, V> withR(Object edit, TTTree<K, V> r) {
+			if (r!=this.r && r.depth()!=depth-1) {
+				return Node2.rebuildR(edit, depth-1, l, k, r);
+			}
+			this.r = r;
+			return updated(edit);
 		}
 
 		@Override
-		public K getKey() {
-			return k;
+		Leaf<K, V> lookup(Comparator<? super K> cmp, K fk) {
+			return compare(cmp, fk, k)<=0 ? l.lookup(cmp, fk) : r.lookup(cmp, fk);
 		}
 
 		@Override
-		public V getValue() {
-			return v;
+		TTTree<K, V> persistent() {
+			return new Node2<>(l.persistent(), k, r.persistent());
 		}
 
 		@Override
-		public V setValue(V value) {
-			throw new UnsupportedOperationException("setValue");
+		int arity() {
+			return 2;
 		}
 
-		@SuppressWarnings("unchecked")
 		@Override
-		TTTree<K, V>[] getChildren() {
-			return (TTTree<K, V>[]) NO_CHILDREN;
+		TTTree<K, V> child(int i) {
+			return i==0 ? l : r;
 		}
 
 		@Override
-		int size() {
-			return 1;
+		K key(int i) {
+			return k;
 		}
 
 		@Override
 		public String toString() {
-			return "["+k+" = "+v+"]";
+			return "TransientNode2["+depth+"]("+k+")";
 		}
+	}
 
-		@Override
-		public void accept(TTTreeVisitor<K, V> visitor) {
-			visitor.visit_leaf(k, v);
-		}
-	};
+	/**
+	 * A 3-node of a {@link TTTreeBuilder}. See {@link TransientNode}.
+	 */
+	private static final class TransientNode3<K, V> extends TransientNode<K, V> {
 
-	private static class Node2<K extends Comparable<K>, V> extends TTTree<K, V> {
-		private final TTTree<K, V> l;
-		private final K k;
-		private final TTTree<K, V> r;
-		private int depth;
+		private static final long serialVersionUID = 1L;
 
-		Node2(TTTree<K, V> l, K k, TTTree<K, V> r) {
+		private TTTree<K, V> l;
+		private final K k1;
+		private TTTree<K, V> m;
+		private final K k2;
+		private TTTree<K, V> r;
+
+		TransientNode3(TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
+			super(l.depth()+1, l.size() + m.size() + r.size(),
+					l.entryHash() + m.entryHash() + r.entryHash(),
+					l.keyHash() + m.keyHash() + r.keyHash());
+			Assert.isLegalState(l.depth()==m.depth());
 			Assert.isLegalState(l.depth()==r.depth());
-			this.depth = l.depth()+1;
 			this.l = l;
-			this.k = k;
+			this.k1 = k1;
+			this.m = m;
+			this.k2 = k2;
 			this.r = r;
 		}
+
 		@Override
-		public TTTree<K, V> put(K ik, V iv) {
-			int c = ik.compareTo(k);
-			if (c<=0) {
-				//ik <= k
-				TTTree<K, V> new_l = l.put(ik, iv);
-				if (new_l==l) {
-					return this;
-				} else if (new_l.depth()>l.depth()) {
-					//Since the tree has just grown its root must be Node2
-					K lk = ((Node2<K,V>)new_l).k;
-					TTTree<K, V> ll = ((Node2<K,V>)new_l).l;
-					TTTree<K, V> lr = ((Node2<K,V>)new_l).r;
-					return new Node3<>(ll, lk, lr, k, r);
-				} else {
-					//Tree remained same size
-					return new Node2<>(new_l,k,r);
-				}
+		TTTree<K, V> put(Comparator<? super K> cmp, Object edit, K k, V v) {
+			if (compare(cmp, k, k1)<=0) {
+				return withL(edit, l.put(cmp, edit, k, v));
+			} else if (compare(cmp, k, k2)<=0) {
+				return withM(edit, m.put(cmp, edit, k, v));
 			} else {
-				//ik > k
-				TTTree<K, V> new_r = r.put(ik, iv);
-				if (new_r==r) {
-					return this;
-				} else if (new_r.depth()>r.depth()) {
-					//Since the tree has just grown its root must be Node2
-					K rk = ((Node2<K,V>)new_r).k;
-					TTTree<K, V> rl = ((Node2<K,V>)new_r).l;
-					TTTree<K, V> rr = ((Node2<K,V>)new_r).r;
-					return new Node3<>(l, k, rl, rk, rr);
-				} else {
-					//Tree remained same size
-					return new Node2<>(l,k,new_r);
-				}
+				return withR(edit, r.put(cmp, edit, k, v));
 			}
 		}
 
 		@Override
-		public TTTree<K, V> remove(K fk) {
-			int c = fk.compareTo(k);
-			if (c<=0) {
-				// fk <= k
-				TTTree<K, V> l = this.l.remove(fk);
-				if (this.l==l) {
-					return this; //Avoid needless copying if tree is unchanged
-				} else if (this.l.depth()==l.depth()) {
-					return new Node2<>(l, k, r);
-				} else {
-					//l.depth shrunk
-					if (r instanceof Node2) {
-						Node2<K,V> r = (Node2<K, V>) this.r;
-						return new Node3<>(l, k, r.l, r.k, r.r);
-					} else if (r instanceof Node3) {
-						Node3<K,V> r = (Node3<K, V>) this.r;
-						return new Node2<>(
-								new Node2<>(l, k, r.l),
-								r.k1,
-								new Node2<>(r.m, r.k2, r.r)
-						);
-					} else {
-						Assert.isLegalState(r instanceof Leaf);
-						Assert.isLegalState(l.isEmpty());
-						return r;
-					}
-				}
+		TTTree<K, V> remove(Comparator<? super K> cmp, Object edit, K fk) {
+			if (compare(cmp, fk, k1)<=0) {
+				return withL(edit, l.remove(cmp, edit, fk));
+			} else if (compare(cmp, fk, k2)<=0) {
+				return withM(edit, m.remove(cmp, edit, fk));
 			} else {
-				// fk > k
-				TTTree<K, V> r = this.r.remove(fk);
-				if (this.r==r) {
-					return this; //Avoid needless copying if tree is unchanged
-				} else if (this.r.depth()==r.depth()) {
-					return new Node2<>(l, k, r);
-				} else {
-					//r.depth shrunk
-					if (l instanceof Node2) {
-						Node2<K,V> l = (Node2<K, V>) this.l;
-						return new Node3<>(l.l, l.k, l.r, k, r);
-					} else if (l instanceof Node3) {
-						Node3<K,V> l = (Node3<K, V>) this.l;
-						return new Node2<>(
-								new Node2<>(l.l, l.k1, l.m),
-								l.k2,
-								new Node2<>(l.r, k, r)
-						);
-					} else {
-						Assert.isLegalState(l instanceof Leaf);
-						Assert.isLegalState(r.isEmpty());
-						return l;
-					}
-				}
+				return withR(edit, r.remove(cmp, edit, fk));
 			}
 		}
 
 		@Override
-		public Leaf<K,V> getEntry(K fk) {
-			int c = fk.compareTo(k);
-			if (c<=0) {
-				// fk <= k
-				return l.getEntry(fk);
+		TTTree<K, V> compute(Comparator<? super K> cmp, Object edit, K ck, BiFunction<? super K, ? super Entry<K, V>, Object> f) {
+			if (compare(cmp, ck, k1)<=0) {
+				return withL(edit, l.compute(cmp, edit, ck, f));
+			} else if (compare(cmp, ck, k2)<=0) {
+				return withM(edit, m.compute(cmp, edit, ck, f));
 			} else {
-				// fk > k
-				return r.getEntry(fk);
+				return withR(edit, r.compute(cmp, edit, ck, f));
 			}
 		}
 
-		@Override
-		protected int depth() {
-			return depth;
+		/**
+		 * See {@link TransientNode2#withL}.
+		 */
+		private TTTree<K, V> withL(Object edit, TTTree<K, V> l) {
+			if (l!=this.l && l.depth()!=depth-1) {
+				return Node3.rebuildL(edit, depth-1, l, k1, m, k2, r);
+			}
+			this.l = l;
+			return updated(edit);
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the middle child.
+		 */
+		private TTTree<K, V> withM(Object edit, TTTree<K, V> m) {
+			if (m!=this.m && m.depth()!=depth-1) {
+				return Node3.rebuildM(edit, depth-1, l, k1, m, k2, r);
+			}
+			this.m = m;
+			return updated(edit);
+		}
+
+		/**
+		 * Like {@link #withL} but replaces the right child.
+		 */
+		private TTTree<K, V> withR(Object edit, TTTree<K, V> r) {
+			if (r!=this.r && r.depth()!=depth-1) {
+				return Node3.rebuildR(edit, depth-1, l, k1, m, k2, r);
+			}
+			this.r = r;
+			return updated(edit);
 		}
 
 		@Override
-		void dump(int indent) {
-			l.dump(indent+1);
-			print(indent, k);
-			r.dump(indent+1);
+		Leaf<K, V> lookup(Comparator<? super K> cmp, K k) {
+			if (compare(cmp, k, k1)<=0) {
+				return l.lookup(cmp, k);
+			} else if (compare(cmp, k, k2)<=0) {
+				return m.lookup(cmp, k);
+			} else {
+				return r.lookup(cmp, k);
+			}
 		}
-		@SuppressWarnings("unchecked")
+
 		@Override
-		TTTree<K, V>[] getChildren() {
-			return new TTTree[] {l, r};
+		TTTree<K, V> persistent() {
+			return new Node3<>(l.persistent(), k1, m.persistent(), k2, r.persistent());
 		}
+
 		@Override
-		int size() {
-			return l.size() + r.size();
+		int arity() {
+			return 3;
 		}
 
 		@Override
-		public String toString() {
-			return "Node2["+depth+"]("+k+")";
+		TTTree<K, V> child(int i) {
+			return i==0 ? l : i==1 ? m : r;
 		}
+
 		@Override
-		public void accept(TTTreeVisitor<K, V> visitor) {
-			visitor.visit_2node(l, k, r);
+		K key(int i) {
+			return i==0 ? k1 : k2;
 		}
 
+		@Override
+		public String toString() {
+			return "TransientNode3["+depth+"]("+k1+", "+k2+")";
+		}
 	}
 
-	private static class Node3<K extends Comparable<K>, V> extends TTTree<K, V> {
-
-		private int depth;
+	/**
+	 * Iterates the entries of a tree in order (or in reverse order). The iterator keeps a stack
+	 * of subtrees that remain to be visited. Descending towards the next leaf pushes at most two
+	 * siblings per level, so the stack is a plain array sized from the depth of the tree, and
+	 * iterating allocates nothing beyond the iterator itself.
+	 */
+	private class TTTreeIterator implements Iterator<Entry<K, V>> {
 
-		final TTTree<K, V> l;
-		final K k1;
-		final TTTree<K, V> m;
-		final K k2;
-		final TTTree<K, V> r;
+		private final TTTree<K, V>[] stack;
+		private int top = 0; //number of subtrees on the stack
+		private final boolean reverse;
+
+		/**
+		 * Create an iterator that returns the entries in descending order if 'reverse' is true.
+		 */
+		TTTreeIterator(TTTree<K, V> tree, boolean reverse) {
+			this.stack = newStack(tree);
+			this.reverse = reverse;
+			if (!tree.isEmpty()) {
+				stack[top++] = tree;
+			}
+		}
 
-		public Node3(TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
-			Assert.isLegalState(l.depth()==m.depth());
-			Assert.isLegalState(l.depth()==r.depth());
-			this.depth = l.depth()+1;
-			this.l = l;
-			this.k1 = k1;
-			this.m = m;
-			this.k2 = k2;
-			this.r = r;
+		/**
+		 * Create an iterator over a sequence of subtrees, visited in the given order.
+		 */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		TTTreeIterator(TTTree<K, V>[] forest, int lo, int hi) {
+			int depth = 0;
+			for (int i = lo; i < hi; i++) {
+				depth = Math.max(depth, forest[i].depth());
+			}
+			this.stack = new TTTree[hi-lo+2*depth];
+			this.reverse = false;
+			for (int i = hi-1; i >= lo; i--) {
+				stack[top++] = forest[i];
+			}
 		}
 
-		@Override
-		public TTTree<K, V> put(K k, V v) {
-			int c = k.compareTo(k1);
-			if (c<=0) {
-				//k <= k1
-				final TTTree<K, V> l = this.l.put(k, v);
-				if (l==this.l) {
-					return this;
-				} else if (l.depth()>this.l.depth()) {
-					//The tree has just grown
-					//split ourself into a new Node2.
-					return new Node2<>(
-							l,
-							k1,
-							new Node2<>(m, k2, r)
-					);
-				} else {
-					//Tree remained same size
-					return new Node3<>(l, k1, m, k2, r);
-				}
-			} else {
-				// k1 < k
-				c = k.compareTo(k2);
-				if (c<=0) {
-					//k1 < k <= k2
-					final TTTree<K, V> m = this.m.put(k, v);
-					if (m.depth()>this.m.depth()) {
-						//Since the tree has just grown its root *must* be Node2
-						K mk = ((Node2<K,V>)m).k;
-						TTTree<K, V> ml = ((Node2<K,V>)m).l;
-						TTTree<K, V> mr = ((Node2<K,V>)m).r;
-						return new Node2<>(
-								new Node2<>(l, k1, ml),
-								mk,
-								new Node2<>(mr, k2, r)
-						);
-					} else if (m==this.m) {
-						return this;
+		/**
+		 * Create an iterator positioned at a given index. This descends the tree
+		 * towards the entry at the index, pushing only the subtrees to the right
+		 * of the path onto the stack.
+		 */
+		TTTreeIterator(TTTree<K, V> tree, int index) {
+			this.stack = newStack(tree);
+			this.reverse = false;
+			TTTree<K, V> node = tree;
+			while (index<node.size()) {
+				if (node instanceof Leaf) {
+					stack[top++] = node;
+					return;
+				} else if (node instanceof Node2) {
+					Node2<K, V> n = (Node2<K, V>) node;
+					if (index<n.l.size()) {
+						stack[top++] = n.r;
+						node = n.l;
 					} else {
-						//Tree remained same size
-						return new Node3<>(l, k1, m, k2, r);
+						index -= n.l.size();
+						node = n.r;
 					}
 				} else {
-					//k2 < k
-					final TTTree<K, V> r = this.r.put(k, v);
-					if (r.depth()>this.r.depth()) {
-						//The tree has just grown
-						//split ourself into a new Node2.
-						return new Node2<>(
-								new Node2<>(l, k1, m),
-								k2,
-								r
-						);
-					} else if (r==this.r) {
-						return this;
+					Node3<K, V> n = (Node3<K, V>) node;
+					if (index<n.l.size()) {
+						stack[top++] = n.r;
+						stack[top++] = n.m;
+						node = n.l;
+					} else if ((index -= n.l.size())<n.m.size()) {
+						stack[top++] = n.r;
+						node = n.m;
 					} else {
-						//Tree remained same size
-						return new Node3<>(l, k1, m, k2, r);
+						index -= n.m.size();
+						node = n.r;
 					}
 				}
 			}
 		}
 
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private TTTree<K, V>[] newStack(TTTree<K, V> tree) {
+			return new TTTree[2*tree.depth()+1];
+		}
+
 		@Override
-		public TTTree<K, V> remove(K fk) {
-			int c = fk.compareTo(k1);
-			if (c<=0) {
-				//fk <= k1
-				TTTree<K, V> l = this.l.remove(fk);
-				if (l==this.l) {
-					return this;
-				} else if (l.depth()==this.l.depth()) {
-					return new Node3<>(l, k1 ,m, k2, r);
-				} else {
-					//shrunk l
-					if (l.isEmpty()) {
-						return new Node2<>(m, k2, r);
-					} else if (m instanceof Node2) {
-						Node2<K, V> m = (Node2<K, V>) this.m;
-						return new Node2<>(
-							new Node3<>(l, k1, m.l, m.k, m.r),
-							k2,
-							r
-						);
-					} else { //m instanceof Node3
-						Node3<K, V> m = (Node3<K, V>) this.m;
-						return new Node3<>(
-							new Node2<>(l, k1, m.l),
-							m.k1,
-							new Node2<>(m.m, m.k2, m.r),
-							k2,
-							r
-						);
-					}
-				}
-			} else {
-				//k1 < fk
-				c = fk.compareTo(k2);
-				if (c<=0) {
-					//k1 < fk <= k2
-					TTTree<K, V> m = this.m.remove(fk);
-					if (m==this.m) {
-						return this;
-					} else if (m.depth()==this.m.depth()) {
-						return new Node3<>(l, k1, m, k2, r);
+		public boolean hasNext() {
+			return top>0;
+		}
+
+		@Override
+		public Entry<K, V> next() {
+			if (top==0) {
+				throw new NoSuchElementException();
+			}
+			TTTree<K, V> node = stack[--top];
+			stack[top] = null;
+			while (!(node instanceof Leaf)) {
+				if (node instanceof Node2) {
+					Node2<K, V> n = (Node2<K, V>) node;
+					if (reverse) {
+						stack[top++] = n.l;
+						node = n.r;
 					} else {
-						//shrunk
-						if (m.isEmpty()) {
-							return new Node2<>(l, k1, r);
-						} else if (l instanceof Node2) {
-							Node2<K,V> l = (Node2<K, V>) this.l;
-							return new Node2<>(
-								new Node3<>(l.l, l.k, l.r, k1, m),
-								k2,
-								r
-							);
-						} else { //l instanceof Node3
-							Node3<K,V> l = (Node3<K, V>) this.l;
-							return new Node3<>(
-								new Node2<>(l.l, l.k1, l.m),
-								l.k2,
-								new Node2<>(l.r, k1, m),
-								k2,
-								r
-							);
-						}
+						stack[top++] = n.r;
+						node = n.l;
 					}
 				} else {
-					//k2 < fk
-					TTTree<K, V> r = this.r.remove(fk);
-					if (r==this.r) {
-						return this;
-					} else if (r.depth()==this.r.depth()) {
-						return new Node3<>(l, k1, m, k2, r);
+					Node3<K, V> n = (Node3<K, V>) node;
+					if (reverse) {
+						stack[top++] = n.l;
+						stack[top++] = n.m;
+						node = n.r;
 					} else {
-						//shrunk
-						if (r.isEmpty()) {
-							return new Node2<>(l, k1, m);
-						} else if (m instanceof Node2) {
-							Node2<K,V> m = (Node2<K,V>)this.m;
-							return new Node2<>(
-								l,
-								k1,
-								new Node3<>(m.l, m.k, m.r, k2, r)
-							);
-						} else { //m instanceof Node3
-							Node3<K,V> m = (Node3<K, V>) this.m;
-							return new Node3<>(
-								l,
-								k1,
-								new Node2<>(m.l, m.k1, m.m),
-								m.k2,
-								new Node2<>(m.r, k2, r)
-							);
-						}
+						stack[top++] = n.r;
+						stack[top++] = n.m;
+						node = n.l;
 					}
 				}
 			}
+			return (Leaf<K, V>) node;
 		}
 
+		/**
+		 * Visits the remaining subtrees recursively, rather than one entry at a time.
+		 */
 		@Override
-		public Leaf<K, V> getEntry(K k) {
-			int c = k.compareTo(k1);
-			if (c<=0) {
-				//k <= k1
-				return l.getEntry(k);
-			} else {
-				// k1 < k
-				c = k.compareTo(k2);
-				if (c<=0) {
-					//k1 < k <= k2
-					return m.getEntry(k);
-				} else {
-					//k2 < k
-					return r.getEntry(k);
-				}
+		public void forEachRemaining(Consumer<? super Entry<K, V>> action) {
+			if (reverse) {
+				Iterator.super.forEachRemaining(action);
+				return;
+			}
+			while (top>0) {
+				TTTree<K, V> node = stack[--top];
+				stack[top] = null;
+				node.forEach(action);
 			}
 		}
+	}
 
-		@Override
-		protected int depth() {
-			return depth;
-		}
+	/**
+	 * Spliterator over the entries of a tree, mapped to elements of type T. The spliterator
+	 * holds a sequence of disjoint subtrees, in key order. Splitting hands out a prefix of
+	 * these subtrees that holds about half of the entries; when only a single subtree is left,
+	 * it is first replaced by its children. Since every subtree knows its size, both halves
+	 * know their exact size.
+	 * <p>
+	 * Once traversal has started the spliterator no longer splits.
+	 */
+	private class TTTreeSpliterator<T> implements Spliterator<T> {
 
-		@Override
-		void dump(int indent) {
-			l.dump(indent+1);
-			print(indent, k1);
-			m.dump(indent+1);
-			print(indent, k2);
-			r.dump(indent+1);
+		private TTTree<K, V>[] forest;
+		private int lo, hi; //forest[lo..hi) are the subtrees that remain to be visited
+		private long size;
+
+		private final Function<? super Leaf<K, V>, ? extends T> mapper;
+		private final int characteristics;
+		private final Comparator<? super T> comparator;
+
+		private TTTreeIterator iterator = null; //set once traversal has started
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		TTTreeSpliterator(TTTree<K, V> tree, Function<? super Leaf<K, V>, ? extends T> mapper, int characteristics, Comparator<? super T> comparator) {
+			this(new TTTree[] { tree }, 0, tree.isEmpty() ? 0 : 1, mapper, characteristics, comparator);
 		}
 
-		@SuppressWarnings("unchecked")
-		@Override
-		TTTree<K, V>[] getChildren() {
-			return new TTTree[] {l, m, r};
+		private TTTreeSpliterator(TTTree<K, V>[] forest, int lo, int hi, Function<? super Leaf<K, V>, ? extends T> mapper, int characteristics, Comparator<? super T> comparator) {
+			this.forest = forest;
+			this.lo = lo;
+			this.hi = hi;
+			this.mapper = mapper;
+			this.characteristics = characteristics;
+			this.comparator = comparator;
+			for (int i = lo; i < hi; i++) {
+				size += forest[i].size();
+			}
 		}
+
 		@Override
-		int size() {
-			return l.size() + m.size() + r.size();
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (iterator==null) {
+				iterator = new TTTreeIterator(forest, lo, hi);
+				lo = hi;
+			}
+			if (iterator.hasNext()) {
+				size--;
+				action.accept(mapper.apply((Leaf<K, V>) iterator.next()));
+				return true;
+			}
+			return false;
 		}
 
 		@Override
-		public String toString() {
-			return "Node3["+depth+"]("+k1+", "+k2+")";
+		public void forEachRemaining(Consumer<? super T> action) {
+			Consumer<Entry<K, V>> leafAction = e -> action.accept(mapper.apply((Leaf<K, V>) e));
+			if (iterator!=null) {
+				iterator.forEachRemaining(leafAction);
+			} else {
+				for (int i = lo; i < hi; i++) {
+					forest[i].forEach(leafAction);
+				}
+				lo = hi;
+			}
+			size = 0;
 		}
 
+		@SuppressWarnings({"unchecked", "rawtypes"})
 		@Override
-		public void accept(TTTreeVisitor<K, V> visitor) {
-			visitor.visit_3node(l, k1, m, k2, r);
+		public Spliterator<T> trySplit() {
+			if (iterator!=null) {
+				return null;
+			}
+			if (hi-lo==1) {
+				TTTree<K, V> node = forest[lo];
+				if (node instanceof Node2) {
+					Node2<K, V> n = (Node2<K, V>) node;
+					setForest(new TTTree[] { n.l, n.r });
+				} else if (node instanceof Node3) {
+					Node3<K, V> n = (Node3<K, V>) node;
+					setForest(new TTTree[] { n.l, n.m, n.r });
+				} else {
+					return null;
+				}
+			} else if (hi-lo==0) {
+				return null;
+			}
+			//Pick the prefix whose size is closest to half, leaving at least one subtree for each side.
+			long half = size/2;
+			long prefixSize = forest[lo].size();
+			int mid = lo+1;
+			while (mid<hi-1 && Math.abs(prefixSize+forest[mid].size()-half) < Math.abs(prefixSize-half)) {
+				prefixSize += forest[mid++].size();
+			}
+			TTTreeSpliterator<T> prefix = new TTTreeSpliterator<>(forest, lo, mid, mapper, characteristics, comparator);
+			lo = mid;
+			size -= prefixSize;
+			return prefix;
 		}
-	}
-
-	private class TTTreeIterator implements Iterator<Entry<K, V>> {
 
-		Stack<TTTree<K, V>> stack = new Stack<>();
+		private void setForest(TTTree<K, V>[] children) {
+			forest = children;
+			lo = 0;
+			hi = children.length;
+		}
 
-		TTTreeIterator(TTTree<K, V> tree) {
-			if (!tree.isEmpty())
-			stack.push(tree);
+		@Override
+		public long estimateSize() {
+			return size;
 		}
 
 		@Override
-		public boolean hasNext() {
-			return !stack.isEmpty();
+		public int characteristics() {
+			return characteristics;
 		}
 
 		@Override
-		public Entry<K, V> next() {
-			while(!stack.isEmpty()) {
-				TTTree<K,V> node = stack.pop();
-				if (node instanceof Leaf) {
-					return (Leaf<K,V>)node;
-				} else {
-					TTTree<K, V>[] children = node.getChildren();
-					for (int i = children.length-1; i >= 0; i--) {
-						TTTree<K, V> c = children[i];
-						if (!c.isEmpty()) {
-							stack.push(children[i]);
-						}
-					}
-				}
+		public Comparator<? super T> getComparator() {
+			if (hasCharacteristics(SORTED)) {
+				return comparator;
 			}
-			throw new NoSuchElementException();
+			throw new IllegalStateException();
 		}
 	}
 
@@ -0,0 +1,111 @@
+package com.github.kdvolder.tttree;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * A 'transient' version of a {@link TTTree}, used to efficiently apply a batch of changes.
+ * <p>
+ * A persistent {@link TTTree} copies all nodes along the path from the root to the
+ * changed leaf for every single put or remove. When a batch of changes is applied,
+ * most of these copies are immediately discarded again by the next change. A builder
+ * avoids this waste. The nodes it creates itself are transient: since no one else can
+ * see them yet, it simply modifies them in place on subsequent changes. Nodes of the
+ * tree the builder was created from are never modified, they are copied when needed,
+ * just as {@link TTTree#put} would.
+ * <p>
+ * Use {@link TTTree#asTransient()} to create a builder, and {@link #persistent()} to
+ * obtain the resulting tree once all changes have been applied. For example:
+ * <pre>
+ *    TTTreeBuilder&lt;String, Integer&gt; builder = tree.asTransient();
+ *    for (String word : words) {
+ *       builder.put(word, word.length());
+ *    }
+ *    tree = builder.persistent();
+ * </pre>
+ * A builder is not thread-safe. It can no longer be used after calling
+ * {@link #persistent()}.
+ */
+public final class TTTreeBuilder<K, V> {
+
+	private TTTree<K, V> tree;
+
+	/**
+	 * Order of the keys, null for natural ordering.
+	 */
+	private final Comparator<? super K> cmp;
+
+	/**
+	 * Edit token passed to every update, so that it creates transient nodes and updates them
+	 * in place. Set to null when the builder is frozen.
+	 */
+	private TTTree.Edit edit = new TTTree.Edit();
+
+	TTTreeBuilder(TTTree<K, V> tree, Comparator<? super K> cmp) {
+		this.tree = tree;
+		this.cmp = cmp;
+	}
+
+	public TTTreeBuilder<K, V> put(K k, V v) {
+		tree = tree.put(cmp, ensureEditable().start(), k, v);
+		return this;
+	}
+
+	public TTTreeBuilder<K, V> remove(K k) {
+		tree = tree.remove(cmp, ensureEditable().start(), k);
+		return this;
+	}
+
+	/**
+	 * Associate k with the result of a function applied to its current entry, in a single
+	 * descent of the tree. See {@link TTTree#compute(Comparator, Object, Object, BiFunction)}.
+	 */
+	TTTreeBuilder<K, V> computeEntry(K k, BiFunction<? super K, ? super Map.Entry<K, V>, Object> f) {
+		tree = tree.compute(cmp, ensureEditable().start(), k, f);
+		return this;
+	}
+
+	public V get(K k) {
+		ensureEditable();
+		Map.Entry<K, V> e = tree.lookup(cmp, k);
+		return e==null ? null : e.getValue();
+	}
+
+	public boolean containsKey(K k) {
+		ensureEditable();
+		return tree.lookup(cmp, k)!=null;
+	}
+
+	public int size() {
+		ensureEditable();
+		return tree.size();
+	}
+
+	public boolean isEmpty() {
+		ensureEditable();
+		return tree.isEmpty();
+	}
+
+	/**
+	 * Freeze the builder and return the resulting tree. If no changes were made, the returned
+	 * tree is identical (in the sense of '==') to the tree this builder was created from.
+	 * <p>
+	 * The transient nodes of the builder are replaced by persistent ones, whose fields are
+	 * final like those of any other tree. This takes time proportional to the number of nodes
+	 * the builder created, which is at most the number of nodes it would have copied without
+	 * updating them in place.
+	 */
+	public TTTree<K, V> persistent() {
+		ensureEditable();
+		edit = null;
+		return tree.persistent();
+	}
+
+	private TTTree.Edit ensureEditable() {
+		if (edit==null) {
+			throw new IllegalStateException("Builder used after persistent() was called");
+		}
+		return edit;
+	}
+}
@@ -0,0 +1,120 @@
+package com.github.kdvolder.tttree;
+
+import static com.github.kdvolder.tttree.TTTreeDeltaWriter.*;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restores the versions of a tree saved by a {@link TTTreeDeltaWriter}. The deltas must be read
+ * in the order in which they were written, starting with the first one (the base snapshot).
+ * Each call to {@link #readDelta} returns the tree of the next version. Like the versions that
+ * were written, these trees share the nodes they have in common.
+ * <p>
+ * Since a delta may refer to any node written before, the reader keeps all nodes it has read.
+ * To bound this, start a new chain (with a new writer) from time to time.
+ * <p>
+ * Nothing beyond the end of a delta is read, so a chain of deltas can be read back from a single
+ * stream, such as a checkpoint log holding a base snapshot followed by its deltas.
+ */
+public final class TTTreeDeltaReader<K, V> {
+
+	private final Codec<? extends K> keyCodec;
+	private final Codec<? extends V> valueCodec;
+
+	/**
+	 * The nodes read so far, indexed by id.
+	 */
+	private final List<TTTree<K, V>> nodes = new ArrayList<>();
+
+	public TTTreeDeltaReader(Codec<? extends K> keyCodec, Codec<? extends V> valueCodec) {
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+	}
+
+	/**
+	 * Read the next delta from a stream. Only the bytes of the delta are consumed from the
+	 * stream, which is not buffered here: to read from a file, pass a {@link java.io.BufferedInputStream}
+	 * (and keep using it for the deltas that follow). If reading fails, the reader is left as
+	 * it was before the call.
+	 *
+	 * @return The tree of the version saved in the delta.
+	 * @throws InvalidObjectException if the delta is not the next one in the chain.
+	 */
+	public TTTree<K, V> readDelta(InputStream in) throws IOException {
+		return read(new DataInputStream(in));
+	}
+
+	private TTTree<K, V> read(DataInput in) throws IOException {
+		if (in.readInt()!=MAGIC) {
+			throw new StreamCorruptedException("Not a TTTree delta");
+		}
+		int version = in.readUnsignedByte();
+		if (version!=VERSION) {
+			throw new InvalidObjectException("Unsupported delta version: "+version);
+		}
+		long firstId = Codecs.readVarLong(in);
+		if (firstId!=nodes.size()) {
+			throw new InvalidObjectException("Delta out of order: it starts at node "+firstId+" but "+nodes.size()+" nodes were read");
+		}
+		try {
+			while (true) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+				case LEAF:
+					nodes.add(TTTree.leaf(keyCodec.read(in), valueCodec.read(in)));
+					break;
+				case NODE2: {
+					TTTree<K, V> l = child(in);
+					TTTree<K, V> r = sameDepth(l, child(in));
+					nodes.add(TTTree.node(l, r));
+					break;
+				}
+				case NODE3: {
+					TTTree<K, V> l = child(in);
+					TTTree<K, V> m = sameDepth(l, child(in));
+					TTTree<K, V> r = sameDepth(l, child(in));
+					nodes.add(TTTree.node(l, m, r));
+					break;
+				}
+				case ROOT: {
+					long root = Codecs.readVarLong(in);
+					if (root==EMPTY_ROOT) {
+						return TTTree.emptyTree();
+					} else if (root<0 || root>=nodes.size()) {
+						throw new StreamCorruptedException("Bad root: "+root);
+					}
+					return nodes.get((int) root);
+				}
+				default:
+					throw new StreamCorruptedException("Bad record: "+tag);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			nodes.subList((int) firstId, nodes.size()).clear();
+			throw e;
+		}
+	}
+
+	private TTTree<K, V> child(DataInput in) throws IOException {
+		long relative = Codecs.readVarLong(in);
+		long id = nodes.size()-relative;
+		if (relative<=0 || id<0) {
+			throw new StreamCorruptedException("Bad node reference: "+relative);
+		}
+		return nodes.get((int) id);
+	}
+
+	private TTTree<K, V> sameDepth(TTTree<K, V> first, TTTree<K, V> sibling) throws StreamCorruptedException {
+		if (first.depth()!=sibling.depth()) {
+			throw new StreamCorruptedException("Siblings of different depth");
+		}
+		return sibling;
+	}
+}
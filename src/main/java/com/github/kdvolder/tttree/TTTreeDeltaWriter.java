@@ -0,0 +1,139 @@
+package com.github.kdvolder.tttree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Saves successive versions of a tree as a chain of deltas, which can be restored with a
+ * {@link TTTreeDeltaReader}.
+ * <p>
+ * The writer gives every node it writes a sequential id, and remembers the ids of the nodes it
+ * has written. Each call to {@link #writeDelta} writes only the nodes of the tree that were not
+ * written before (children before parents), followed by the id of the root. Since a modified
+ * copy of a tree shares all but O(log(n)) nodes per change with the original, the size of a
+ * delta depends on the number of changes since the previous delta, not on the size of the tree.
+ * The first delta holds the whole tree, and serves as the base snapshot.
+ * <p>
+ * Nodes are remembered by identity, in a map with weak keys: once a node is garbage it can't
+ * occur in a later version, so the writer doesn't keep it alive. Keys and values are written
+ * by {@link Codec}s.
+ * <p>
+ * A writer is not thread-safe. If writing a delta fails, the writer can no longer be used,
+ * since the reader will not have all the nodes the writer believes were written.
+ */
+public final class TTTreeDeltaWriter<K, V> {
+
+	static final int MAGIC = 0x54545444; //"TTTD"
+	static final int VERSION = 1;
+
+	//Record tags
+	static final int LEAF = 0;
+	static final int NODE2 = 1;
+	static final int NODE3 = 2;
+	static final int ROOT = 3;
+
+	/**
+	 * Root id of an empty tree.
+	 */
+	static final long EMPTY_ROOT = -1;
+
+	private final Codec<? super K> keyCodec;
+	private final Codec<? super V> valueCodec;
+
+	private final Map<TTTree<K, V>, Long> ids = new MapMaker().weakKeys().makeMap();
+	private long nextId = 0;
+	private boolean failed = false;
+
+	public TTTreeDeltaWriter(Codec<? super K> keyCodec, Codec<? super V> valueCodec) {
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+	}
+
+	/**
+	 * Write the nodes of a tree that were not written by an earlier call of this writer,
+	 * followed by a reference to the root of the tree. The stream is flushed but not closed.
+	 *
+	 * @return The number of nodes written.
+	 * @throws IllegalStateException if an earlier call failed.
+	 */
+	public long writeDelta(TTTree<K, V> tree, OutputStream os) throws IOException {
+		if (failed) {
+			throw new IllegalStateException("An earlier delta could not be written");
+		}
+		failed = true;
+		long firstId = nextId;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		Codecs.writeVarLong(out, firstId);
+		long root = tree.isEmpty() ? EMPTY_ROOT : write(tree, out);
+		out.writeByte(ROOT);
+		Codecs.writeVarLong(out, root);
+		out.flush();
+		failed = false;
+		return nextId-firstId;
+	}
+
+	/**
+	 * Write a node, unless it was written before.
+	 *
+	 * @return The id of the node.
+	 */
+	private long write(TTTree<K, V> node, DataOutputStream out) throws IOException {
+		Long id = ids.get(node);
+		if (id!=null) {
+			return id;
+		}
+		Parts<K, V> parts = new Parts<>();
+		node.accept(parts);
+		if (parts.children==null) {
+			out.writeByte(LEAF);
+			keyCodec.write(out, parts.k);
+			valueCodec.write(out, parts.v);
+		} else {
+			long[] childIds = new long[parts.children.length];
+			for (int i = 0; i < childIds.length; i++) {
+				childIds[i] = write(parts.children[i], out);
+			}
+			out.writeByte(childIds.length==2 ? NODE2 : NODE3);
+			for (long childId : childIds) {
+				//Relative to the id of this node, which is small for recently written children
+				Codecs.writeVarLong(out, nextId-childId);
+			}
+		}
+		ids.put(node, nextId);
+		return nextId++;
+	}
+
+	/**
+	 * Takes a node apart into its children, or into its key and value for a leaf.
+	 */
+	private static final class Parts<K, V> extends TTTreeVisitor<K, V> {
+		TTTree<K, V>[] children;
+		K k;
+		V v;
+
+		@Override
+		public void visit_leaf(K k, V v) {
+			this.k = k;
+			this.v = v;
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		@Override
+		public void visit_2node(TTTree<K, V> l, K k, TTTree<K, V> r) {
+			children = new TTTree[] { l, r };
+		}
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		@Override
+		public void visit_3node(TTTree<K, V> l, K k1, TTTree<K, V> m, K k2, TTTree<K, V> r) {
+			children = new TTTree[] { l, m, r };
+		}
+	}
+}
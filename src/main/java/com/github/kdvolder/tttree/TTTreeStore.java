@@ -0,0 +1,623 @@
+package com.github.kdvolder.tttree;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * An embedded, persistent ordered key-value store: a 2-3 tree whose nodes live in a file and
+ * are loaded when they are needed, so the store can be much larger than the heap.
+ * <p>
+ * Like {@link TTTree}, the store never modifies a node. An update copies the path from the root
+ * to the changed leaf, appending the new nodes to the file. Recently used nodes are kept in a
+ * cache of bounded size, with least recently used nodes evicted first.
+ * <p>
+ * Updates become durable when they are committed. {@link #commit} forces the new nodes to disk
+ * and then publishes the new root by atomically replacing a small root file (named after the
+ * data file, with ".root" appended). When the store is opened, the root file determines its
+ * content, so a crash, or closing the store without committing, loses exactly the uncommitted
+ * updates. A crash during a commit leaves the store at either the old or the new root.
+ * <p>
+ * Since nodes are never overwritten, the nodes replaced by an update stay in the file as
+ * garbage, and the file grows with every update. An iterator sees the store as it was when the
+ * iterator was created. A store is not thread-safe.
+ */
+public final class TTTreeStore<K, V> implements Iterable<Map.Entry<K, V>>, Closeable {
+
+	private static final int MAGIC = 0x54545453; //"TTTS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	/**
+	 * New nodes are buffered in memory until they take up this many bytes, or until the
+	 * next commit.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private static final long NO_ROOT = -1;
+
+	private static final int LEAF = 0;
+	private static final int INNER = 1;
+
+	private final FileChannel channel;
+	private final Path rootFile;
+	private final Comparator<? super K> cmp;
+	private final Codec<K> keyCodec;
+	private final Codec<V> valueCodec;
+	private final Map<Long, Node<K, V>> cache;
+
+	/**
+	 * Length of the data file. New nodes at higher addresses are still in the write buffer.
+	 */
+	private long fileLength;
+	private final WriteBuffer pending = new WriteBuffer();
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+	private long root;
+	private long size;
+
+	private TTTreeStore(FileChannel channel, Path rootFile, Comparator<? super K> cmp, Codec<K> keyCodec, Codec<V> valueCodec, int cacheSize, long root, long size) throws IOException {
+		this.channel = channel;
+		this.rootFile = rootFile;
+		this.cmp = cmp;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.cache = new LinkedHashMap<Long, Node<K, V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Node<K, V>> eldest) {
+				return size()>cacheSize;
+			}
+		};
+		this.fileLength = channel.size();
+		this.root = root;
+		this.size = size;
+	}
+
+	////////////////////////////////////
+	// public api
+	////////////////////////////////////
+
+	/**
+	 * Open a store with keys sorted by their natural ordering, creating it if the file does
+	 * not exist.
+	 */
+	public static <K extends Comparable<K>, V> TTTreeStore<K, V> open(Path file, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+		return open(file, null, keyCodec, valueCodec, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Open a store with keys sorted by a given comparator (or by their natural ordering if it
+	 * is null), creating it if the file does not exist or is empty. An existing store must
+	 * always be opened with the same ordering.
+	 *
+	 * @param cacheSize The maximum number of nodes kept in memory.
+	 * @throws StreamCorruptedException if the file exists, but is not a store.
+	 */
+	public static <K, V> TTTreeStore<K, V> open(Path file, Comparator<? super K> comparator, Codec<K> keyCodec, Codec<V> valueCodec, int cacheSize) throws IOException {
+		if (cacheSize<0) {
+			throw new IllegalArgumentException("Negative cache size: "+cacheSize);
+		}
+		Path rootFile = file.resolveSibling(file.getFileName()+".root");
+		FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE);
+		try {
+			long root = NO_ROOT;
+			long size = 0;
+			long length = HEADER_SIZE;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (Files.exists(rootFile)) {
+				try (DataInputStream in = new DataInputStream(Files.newInputStream(rootFile))) {
+					checkHeader(in.readInt(), in.readInt());
+					root = in.readLong();
+					size = in.readLong();
+					length = in.readLong();
+				}
+				readFully(channel, header, 0);
+				checkHeader(header.getInt(0), header.getInt(4));
+				if (length<HEADER_SIZE || length>channel.size() || size<0 || root>=length) {
+					throw new StreamCorruptedException("Root file does not match the data file");
+				}
+			} else if (channel.size()!=0) {
+				//A store without commits, never overwrite any other file
+				readFully(channel, header, 0);
+				checkHeader(header.getInt(0), header.getInt(4));
+			} else {
+				//A new store
+				header.putInt(MAGIC).putInt(VERSION).flip();
+				while (header.hasRemaining()) {
+					channel.write(header, header.position());
+				}
+				//Make sure the file exists before any root file refers to it
+				channel.force(true);
+				AtomicFiles.forceDirectory(rootFile.toAbsolutePath().getParent());
+			}
+			//Discard the nodes written after the last commit
+			channel.truncate(length);
+			return new TTTreeStore<>(channel, rootFile, comparator, keyCodec, valueCodec, cacheSize, root, size);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public V get(K k) throws IOException {
+		Node<K, V> leaf = lookup(k);
+		return leaf==null ? null : leaf.value;
+	}
+
+	public boolean containsKey(K k) throws IOException {
+		return lookup(k)!=null;
+	}
+
+	/**
+	 * Associate a key with a value. If the key is already associated with an equal value,
+	 * nothing is written.
+	 */
+	public void put(K k, V v) throws IOException {
+		if (root==NO_ROOT) {
+			root = write(leaf(k, v)).addr;
+			size++;
+		} else {
+			List<Ref<K>> replacement = put(root, k, v);
+			if (replacement!=null) {
+				root = replacement.size()==1 ? replacement.get(0).addr : writeInner(replacement).addr;
+			}
+		}
+	}
+
+	/**
+	 * Remove the entry for a given key.
+	 *
+	 * @return Whether there was such an entry.
+	 */
+	public boolean remove(K k) throws IOException {
+		Removal<K> removal = root==NO_ROOT ? null : remove(root, k);
+		if (removal==null) {
+			return false;
+		}
+		size--;
+		if (removal.node!=null) {
+			root = removal.node.addr;
+		} else {
+			root = removal.orphans.isEmpty() ? NO_ROOT : removal.orphans.get(0).addr;
+		}
+		return true;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Make the updates done since the last commit durable.
+	 */
+	public void commit() throws IOException {
+		flushPending();
+		channel.force(false);
+		Path tmp = rootFile.resolveSibling(rootFile.getFileName()+".tmp");
+		try (FileChannel out = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE+24);
+			buf.putInt(MAGIC).putInt(VERSION).putLong(root).putLong(size).putLong(fileLength).flip();
+			while (buf.hasRemaining()) {
+				out.write(buf);
+			}
+			out.force(true);
+		}
+		AtomicFiles.replace(tmp, rootFile);
+	}
+
+	/**
+	 * Iterate all entries, in order. Nodes are loaded as the iteration proceeds; read errors
+	 * are thrown as {@link UncheckedIOException}.
+	 */
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator(root);
+	}
+
+	/**
+	 * Closes the file. Updates that were not committed are lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "TTTreeStore(size="+size+")";
+	}
+
+	/////////////////////////////////////
+	// implementation
+	/////////////////////////////////////
+
+	/**
+	 * A node as stored in the file. A leaf holds one entry. An inner node holds the addresses
+	 * of 2 or 3 children, each with the largest key in that child.
+	 */
+	private static final class Node<K, V> {
+		final long[] children;
+		final K[] keys;
+		final V value;
+
+		Node(long[] children, K[] keys, V value) {
+			this.children = children;
+			this.keys = keys;
+			this.value = value;
+		}
+
+		boolean isLeaf() {
+			return children==null;
+		}
+
+		List<Ref<K>> refs() {
+			List<Ref<K>> refs = new ArrayList<>(4);
+			for (int i = 0; i < children.length; i++) {
+				refs.add(new Ref<>(children[i], keys[i]));
+			}
+			return refs;
+		}
+	}
+
+	/**
+	 * Refers to a node by its address, along with the largest key in it.
+	 */
+	private static final class Ref<K> {
+		final long addr;
+		final K max;
+
+		Ref(long addr, K max) {
+			this.addr = addr;
+			this.max = max;
+		}
+	}
+
+	/**
+	 * The result of removing an entry from a subtree: either the node replacing the subtree, or
+	 * the children that are left over if the subtree has become too small to be a node. The
+	 * removal of a leaf leaves no children.
+	 */
+	private static final class Removal<K> {
+		final Ref<K> node;
+		final List<Ref<K>> orphans;
+
+		Removal(Ref<K> node, List<Ref<K>> orphans) {
+			this.node = node;
+			this.orphans = orphans;
+		}
+	}
+
+	private Node<K, V> lookup(K k) throws IOException {
+		long addr = root;
+		while (addr!=NO_ROOT) {
+			Node<K, V> node = load(addr);
+			if (node.isLeaf()) {
+				return TTTree.compare(cmp, k, node.keys[0])==0 ? node : null;
+			}
+			int i = childIndex(node, k);
+			if (TTTree.compare(cmp, k, node.keys[i])>0) {
+				return null;
+			}
+			addr = node.children[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Put an entry in a subtree.
+	 *
+	 * @return The nodes replacing the subtree (two if it was split), or null if the subtree
+	 *     already has the entry.
+	 */
+	private List<Ref<K>> put(long addr, K k, V v) throws IOException {
+		Node<K, V> node = load(addr);
+		if (node.isLeaf()) {
+			int c = TTTree.compare(cmp, k, node.keys[0]);
+			if (c==0) {
+				return Objects.equals(v, node.value) ? null : Collections.singletonList(write(leaf(k, v)));
+			}
+			Ref<K> added = write(leaf(k, v));
+			size++;
+			Ref<K> existing = new Ref<>(addr, node.keys[0]);
+			return c<0 ? Arrays.asList(added, existing) : Arrays.asList(existing, added);
+		}
+		int i = childIndex(node, k);
+		List<Ref<K>> replacement = put(node.children[i], k, v);
+		if (replacement==null) {
+			return null;
+		}
+		List<Ref<K>> children = node.refs();
+		children.remove(i);
+		children.addAll(i, replacement);
+		return pack(children);
+	}
+
+	/**
+	 * Remove an entry from a subtree.
+	 *
+	 * @return null if the subtree has no entry for the key.
+	 */
+	private Removal<K> remove(long addr, K k) throws IOException {
+		Node<K, V> node = load(addr);
+		if (node.isLeaf()) {
+			if (TTTree.compare(cmp, k, node.keys[0])==0) {
+				return new Removal<>(null, Collections.emptyList());
+			}
+			return null;
+		}
+		int i = childIndex(node, k);
+		if (TTTree.compare(cmp, k, node.keys[i])>0) {
+			return null;
+		}
+		Removal<K> removal = remove(node.children[i], k);
+		if (removal==null) {
+			return null;
+		}
+		List<Ref<K>> children = node.refs();
+		if (removal.node!=null) {
+			children.set(i, removal.node);
+		} else if (removal.orphans.isEmpty()) {
+			children.remove(i);
+		} else {
+			//Give the orphans to a sibling, which then has 3 or 4 children
+			int j = i>0 ? i-1 : i+1;
+			List<Ref<K>> merged = load(children.get(j).addr).refs();
+			if (j<i) {
+				merged.addAll(removal.orphans);
+			} else {
+				merged.addAll(0, removal.orphans);
+			}
+			int first = Math.min(i, j);
+			children.remove(first);
+			children.remove(first);
+			children.addAll(first, pack(merged));
+		}
+		if (children.size()<2) {
+			return new Removal<>(null, children);
+		}
+		return new Removal<>(writeInner(children), null);
+	}
+
+	/**
+	 * Find the child that may contain a key: the first one with a largest key that is not
+	 * smaller. If there is none, this is the last child.
+	 */
+	private int childIndex(Node<K, V> node, K k) {
+		int last = node.keys.length-1;
+		for (int i = 0; i < last; i++) {
+			if (TTTree.compare(cmp, k, node.keys[i])<=0) {
+				return i;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Write the nodes for 2 to 4 children: a single node, or two nodes if there are 4.
+	 */
+	private List<Ref<K>> pack(List<Ref<K>> children) throws IOException {
+		if (children.size()<=3) {
+			return Collections.singletonList(writeInner(children));
+		}
+		return Arrays.asList(writeInner(children.subList(0, 2)), writeInner(children.subList(2, 4)));
+	}
+
+	private Node<K, V> leaf(K k, V v) {
+		@SuppressWarnings("unchecked")
+		K[] keys = (K[]) new Object[] { k };
+		return new Node<>(null, keys, v);
+	}
+
+	private Ref<K> writeInner(List<Ref<K>> children) throws IOException {
+		long[] addrs = new long[children.size()];
+		@SuppressWarnings("unchecked")
+		K[] keys = (K[]) new Object[addrs.length];
+		for (int i = 0; i < addrs.length; i++) {
+			addrs[i] = children.get(i).addr;
+			keys[i] = children.get(i).max;
+		}
+		return write(new Node<>(addrs, keys, null));
+	}
+
+	/**
+	 * Append a node to the store. Records consist of their length, followed by the node.
+	 */
+	private Ref<K> write(Node<K, V> node) throws IOException {
+		record.reset();
+		DataOutputStream out = new DataOutputStream(record);
+		if (node.isLeaf()) {
+			out.writeByte(LEAF);
+			keyCodec.write(out, node.keys[0]);
+			valueCodec.write(out, node.value);
+		} else {
+			out.writeByte(INNER);
+			out.writeByte(node.children.length);
+			for (int i = 0; i < node.children.length; i++) {
+				Codecs.writeVarLong(out, node.children[i]);
+				keyCodec.write(out, node.keys[i]);
+			}
+		}
+		long addr = fileLength+pending.size();
+		new DataOutputStream(pending).writeInt(record.size());
+		record.writeTo(pending);
+		cache.put(addr, node);
+		if (pending.size()>=WRITE_BUFFER_SIZE) {
+			flushPending();
+		}
+		return new Ref<>(addr, node.keys[node.keys.length-1]);
+	}
+
+	private void flushPending() throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(pending.array(), 0, pending.size());
+		while (buf.hasRemaining()) {
+			channel.write(buf, fileLength+buf.position());
+		}
+		fileLength += pending.size();
+		pending.reset();
+	}
+
+	private Node<K, V> load(long addr) throws IOException {
+		Node<K, V> node = cache.get(addr);
+		if (node==null) {
+			node = read(addr);
+			cache.put(addr, node);
+		}
+		return node;
+	}
+
+	private Node<K, V> read(long addr) throws IOException {
+		DataInput in;
+		if (addr>=fileLength) {
+			int pos = (int) (addr-fileLength);
+			int length = ByteBuffer.wrap(pending.array()).getInt(pos);
+			in = new DataInputStream(new ByteArrayInputStream(pending.array(), pos+4, length));
+		} else {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			readFully(channel, length, addr);
+			if (length.getInt(0)<0 || addr+4+length.getInt(0)>fileLength) {
+				throw new StreamCorruptedException("Bad node at "+addr);
+			}
+			ByteBuffer buf = ByteBuffer.allocate(length.getInt(0));
+			readFully(channel, buf, addr+4);
+			in = new DataInputStream(new ByteArrayInputStream(buf.array()));
+		}
+		int tag = in.readUnsignedByte();
+		if (tag==LEAF) {
+			return leaf(keyCodec.read(in), valueCodec.read(in));
+		} else if (tag==INNER) {
+			int n = in.readUnsignedByte();
+			if (n<2 || n>3) {
+				throw new StreamCorruptedException("Bad node at "+addr);
+			}
+			long[] children = new long[n];
+			@SuppressWarnings("unchecked")
+			K[] keys = (K[]) new Object[n];
+			for (int i = 0; i < n; i++) {
+				children[i] = Codecs.readVarLong(in);
+				keys[i] = keyCodec.read(in);
+			}
+			return new Node<>(children, keys, null);
+		}
+		throw new StreamCorruptedException("Bad node at "+addr);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, pos+buf.position())<0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static void checkHeader(int magic, int version) throws IOException {
+		if (magic!=MAGIC) {
+			throw new StreamCorruptedException("Not a TTTree store");
+		}
+		if (version!=VERSION) {
+			throw new InvalidObjectException("Unsupported store version: "+version);
+		}
+	}
+
+	/**
+	 * Gives access to the buffered bytes without copying them.
+	 */
+	private static final class WriteBuffer extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * In-order iteration, keeping the path from the root to the current leaf.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		private final ArrayDeque<Node<K, V>> path = new ArrayDeque<>();
+		private final ArrayDeque<Integer> nextChild = new ArrayDeque<>();
+		private Node<K, V> next;
+
+		EntryIterator(long root) {
+			if (root!=NO_ROOT) {
+				descend(root);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next!=null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (next==null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> entry = new SimpleImmutableEntry<>(next.keys[0], next.value);
+			next = null;
+			while (!path.isEmpty()) {
+				int i = nextChild.pop();
+				if (i<path.peek().children.length) {
+					nextChild.push(i+1);
+					descend(path.peek().children[i]);
+					break;
+				}
+				path.pop();
+			}
+			return entry;
+		}
+
+		/**
+		 * Go down to the first leaf of a subtree.
+		 */
+		private void descend(long addr) {
+			try {
+				Node<K, V> node = load(addr);
+				while (!node.isLeaf()) {
+					path.push(node);
+					nextChild.push(1);
+					node = load(node.children[0]);
+				}
+				next = node;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
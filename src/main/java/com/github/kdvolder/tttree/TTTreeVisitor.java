@@ -1,6 +1,6 @@
 package com.github.kdvolder.tttree;
 
-public class TTTreeVisitor<K extends Comparable<K>, V> {
+public class TTTreeVisitor<K, V> {
 
 	/**
 	 * Visit empty tree.
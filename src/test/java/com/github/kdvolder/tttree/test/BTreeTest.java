@@ -0,0 +1,108 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.BTree;
+
+public class BTreeTest extends RandomTestUtils {
+
+	@Test
+	public void randomPutsAndRemoves() {
+		int[][] configs = { {BTree.MIN_FANOUT, BTree.MIN_LEAF_CAPACITY}, {5, 3}, {16, 16}, {4, 64}, {64, 8} };
+		for (int[] config : configs) {
+			BTree<Integer, String> tree = BTree.empty(null, config[0], config[1]);
+			TreeMap<Integer, String> shadow = new TreeMap<>();
+			for (int i = 0; i < 5000; i++) {
+				int k = random.nextInt(1000);
+				if (random.nextInt(3)==0) {
+					BTree<Integer, String> removed = tree.remove(k);
+					assertEquals(shadow.containsKey(k), removed!=tree);
+					tree = removed;
+					shadow.remove(k);
+				} else {
+					tree = tree.put(k, ""+k);
+					shadow.put(k, ""+k);
+				}
+				assertEquals(shadow.size(), tree.size());
+			}
+			assertEquals(new ArrayList<>(shadow.entrySet()), toList(tree));
+			for (int k = -1; k <= 1000; k++) {
+				assertEquals(shadow.containsKey(k), tree.containsKey(k));
+				assertEquals(shadow.get(k), tree.get(k));
+			}
+			List<Integer> keys = new ArrayList<>();
+			tree.forEachEntry((k, v) -> keys.add(k));
+			assertEquals(new ArrayList<>(shadow.keySet()), keys);
+
+			List<Integer> present = new ArrayList<>(shadow.keySet());
+			Collections.shuffle(present, random);
+			for (Integer k : present) {
+				tree = tree.remove(k);
+				shadow.remove(k);
+				assertEquals(shadow.size(), tree.size());
+			}
+			assertTrue(tree.isEmpty());
+			assertFalse(tree.iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void persistence() {
+		BTree<Integer, String> tree = BTree.empty(8);
+		List<BTree<Integer, String>> versions = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			versions.add(tree);
+			tree = tree.put(i, ""+i);
+		}
+		for (int i = 0; i < versions.size(); i++) {
+			BTree<Integer, String> version = versions.get(i);
+			assertEquals(i, version.size());
+			assertNull(version.get(i));
+			if (i>0) {
+				assertEquals(""+(i-1), version.get(i-1));
+			}
+		}
+	}
+
+	@Test
+	public void noUnneededCopies() {
+		BTree<Integer, String> tree = BTree.<Integer, String>empty().put(1, "a").put(2, "b");
+		assertTrue(tree==tree.put(1, "a"));
+		assertTrue(tree==tree.remove(3));
+	}
+
+	@Test
+	public void comparator() {
+		BTree<String, Integer> tree = BTree.empty(String.CASE_INSENSITIVE_ORDER, 4);
+		for (String s : new String[] { "b", "A", "c", "B", "d", "E" }) {
+			tree = tree.put(s, s.length());
+		}
+		assertEquals(5, tree.size());
+		assertTrue(tree.containsKey("e"));
+		List<String> keys = new ArrayList<>();
+		tree.forEachEntry((k, v) -> keys.add(k));
+		assertEquals(Arrays.asList("A", "b", "c", "d", "E"), keys);
+		assertTrue(tree.comparator()==String.CASE_INSENSITIVE_ORDER);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void fanoutTooSmall() {
+		BTree.empty(BTree.MIN_FANOUT-1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void leafCapacityTooSmall() {
+		BTree.empty(null, BTree.DEFAULT_FANOUT, BTree.MIN_LEAF_CAPACITY-1);
+	}
+}
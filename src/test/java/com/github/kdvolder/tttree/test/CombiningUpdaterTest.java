@@ -0,0 +1,165 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.CombiningUpdater;
+import com.github.kdvolder.tttree.ConcurrentTTTMap;
+import com.google.common.collect.ImmutableList;
+
+public class CombiningUpdaterTest {
+
+	@Test
+	public void results() {
+		ConcurrentTTTMap<String, Integer> map = new ConcurrentTTTMap<>();
+		CombiningUpdater<String, Integer> updater = new CombiningUpdater<>(map);
+		assertNull(updater.put("a", 1).join());
+		assertEquals(1, updater.put("a", 2).join().intValue());
+		assertEquals(12, updater.compute("a", (k, v) -> v+10).join().intValue());
+		assertEquals(12, map.get("a").intValue());
+		assertNull(updater.compute("b", (k, v) -> null).join());
+		assertEquals(12, updater.remove("a").join().intValue());
+		assertNull(updater.remove("a").join());
+		assertTrue(map.isEmpty());
+
+		map.put("c", 3);
+		CompletableFuture<Integer> failed = updater.compute("c", (k, v) -> {
+			throw new IllegalStateException("failed");
+		});
+		try {
+			failed.join();
+			assertTrue(false);
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(3, map.get("c").intValue());
+	}
+
+	@Test
+	public void rangeView() {
+		ConcurrentTTTMap<Integer, String> map = new ConcurrentTTTMap<>();
+		CombiningUpdater<Integer, String> updater = new CombiningUpdater<>(map.subMap(10, 20));
+		assertNull(updater.put(15, "15").join());
+		assertEquals("15", map.get(15));
+		try {
+			updater.put(25, "25");
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		assertFalse(map.containsKey(25));
+	}
+
+	@Test(timeout=10000)
+	public void callbackWaitsForOtherUpdate() throws InterruptedException {
+		ConcurrentTTTMap<Integer, String> map = new ConcurrentTTTMap<>();
+		CombiningUpdater<Integer, String> updater = new CombiningUpdater<>(map);
+		CountDownLatch combining = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		Thread combiner = new Thread(() -> updater.compute(1, (k, v) -> {
+			combining.countDown();
+			awaitUninterruptibly(proceed);
+			return "1";
+		}).join());
+		combiner.start();
+		combining.await();
+
+		//Completed by the combiner, which must have given up its role by then
+		CompletableFuture<String> second = updater.put(2, "2");
+		CompletableFuture<Void> callback = second.thenRun(() -> CompletableFuture.runAsync(() -> updater.put(3, "3").join()).join());
+		proceed.countDown();
+		callback.join();
+		combiner.join();
+		assertEquals(ImmutableList.of(1, 2, 3), new ArrayList<>(map.keySet()));
+	}
+
+	@Test(timeout=30000)
+	public void combinerReturnsAfterFewBatches() throws InterruptedException {
+		ConcurrentTTTMap<Integer, String> map = new ConcurrentTTTMap<>();
+		CombiningUpdater<Integer, String> updater = new CombiningUpdater<>(map, 1);
+		CountDownLatch combining = new CountDownLatch(1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		CountDownLatch returned = new CountDownLatch(1);
+		Thread combiner = new Thread(() -> {
+			updater.compute(0, (k, v) -> {
+				combining.countDown();
+				awaitUninterruptibly(proceed);
+				return "0";
+			});
+			returned.countDown();
+		});
+		combiner.start();
+		combining.await();
+
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int i = 1; i < 20; i++) {
+			results.add(updater.put(i, Integer.toString(i)));
+		}
+		//Only applied once the combiner has returned, unless the combiner applies it itself
+		AtomicBoolean appliedAfterReturn = new AtomicBoolean();
+		results.add(updater.compute(20, (k, v) -> {
+			try {
+				appliedAfterReturn.set(returned.await(5, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			return "20";
+		}));
+		proceed.countDown();
+		results.forEach(CompletableFuture::join);
+		combiner.join();
+		assertTrue(appliedAfterReturn.get());
+		assertEquals(21, map.size());
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Test
+	public void concurrentUpdates() throws InterruptedException {
+		ConcurrentTTTMap<Integer, Long> map = new ConcurrentTTTMap<>();
+		CombiningUpdater<Integer, Long> updater = new CombiningUpdater<>(map, 64);
+		int threads = 8;
+		int updates = 10000;
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			boolean direct = t%4==0;
+			workers.add(new Thread(() -> {
+				List<CompletableFuture<Long>> results = new ArrayList<>();
+				for (int i = 0; i < updates; i++) {
+					if (direct) {
+						map.merge(i%100, 1L, Long::sum);
+					} else {
+						results.add(updater.compute(i%100, (k, v) -> v==null ? 1L : v+1));
+					}
+				}
+				results.forEach(CompletableFuture::join);
+			}));
+		}
+		workers.forEach(Thread::start);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals(100, map.size());
+		for (Long count : map.values()) {
+			assertEquals(threads*updates/100, count.longValue());
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.ConcurrentTTTMap;
+import com.github.kdvolder.tttree.TTTMap;
+
+public class ConcurrentTTTMapTest extends RandomTestUtils {
+
+	@Test
+	public void behavesLikeConcurrentSkipListMap() {
+		ConcurrentNavigableMap<Integer, String> map = new ConcurrentTTTMap<>();
+		ConcurrentNavigableMap<Integer, String> expected = new ConcurrentSkipListMap<>();
+		for (int i = 0; i < 5000; i++) {
+			int k = random.nextInt(500);
+			String v = ""+random.nextInt(5);
+			switch (random.nextInt(8)) {
+			case 0:
+				assertEquals(expected.remove(k), map.remove(k));
+				break;
+			case 1:
+				assertEquals(expected.putIfAbsent(k, v), map.putIfAbsent(k, v));
+				break;
+			case 2:
+				assertEquals(expected.remove(k, v), map.remove(k, v));
+				break;
+			case 3:
+				assertEquals(expected.replace(k, "0", v), map.replace(k, "0", v));
+				break;
+			case 4:
+				assertEquals(expected.merge(k, v, (a, b) -> a.length()>3 ? null : a+b), map.merge(k, v, (a, b) -> a.length()>3 ? null : a+b));
+				break;
+			case 5:
+				assertEquals(expected.computeIfPresent(k, (key, old) -> old.equals(v) ? null : v), map.computeIfPresent(k, (key, old) -> old.equals(v) ? null : v));
+				break;
+			default:
+				assertEquals(expected.put(k, v), map.put(k, v));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		assertEquals(expected, map);
+		assertEquals(map, expected);
+		assertEquals(expected.hashCode(), map.hashCode());
+		assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(map.entrySet()));
+		for (int k = -1; k <= 500; k++) {
+			assertEquals(expected.get(k), map.get(k));
+			assertEquals(expected.lowerKey(k), map.lowerKey(k));
+			assertEquals(expected.ceilingEntry(k), map.ceilingEntry(k));
+		}
+		assertEquals(expected.pollFirstEntry(), map.pollFirstEntry());
+		assertEquals(expected.pollLastEntry(), map.pollLastEntry());
+		assertEquals(expected, map);
+	}
+
+	@Test
+	public void views() {
+		ConcurrentTTTMap<Integer, String> map = new ConcurrentTTTMap<>();
+		ConcurrentSkipListMap<Integer, String> expected = new ConcurrentSkipListMap<>();
+		for (int k = 0; k < 100; k++) {
+			map.put(k, ""+k);
+			expected.put(k, ""+k);
+		}
+		ConcurrentNavigableMap<Integer, String> sub = map.subMap(10, true, 50, false).descendingMap().headMap(30, false);
+		ConcurrentNavigableMap<Integer, String> expectedSub = expected.subMap(10, true, 50, false).descendingMap().headMap(30, false);
+		assertEquals(new ArrayList<>(expectedSub.keySet()), new ArrayList<>(sub.keySet()));
+		assertEquals(expectedSub.firstKey(), sub.firstKey());
+		assertEquals(expectedSub.higherKey(40), sub.higherKey(40));
+		assertEquals(expectedSub.comparator().compare(1, 2), sub.comparator().compare(1, 2));
+		assertEquals(expectedSub.pollFirstEntry(), sub.pollFirstEntry());
+
+		sub.put(45, "changed");
+		assertEquals("changed", map.get(45));
+		assertNull(sub.get(5));
+		assertFalse(sub.containsKey(30));
+		assertTrue(map.containsKey(30));
+		try {
+			sub.put(5, "out of range");
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		try {
+			sub.subMap(20, 40);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			//expected: descending, so 20 comes after 40
+		}
+
+		sub.keySet().remove(40);
+		assertFalse(map.containsKey(40));
+		sub.clear();
+		assertTrue(sub.isEmpty());
+		assertEquals(100-(49-31+1), map.size());
+		assertEquals("30", map.get(30));
+		assertEquals("50", map.get(50));
+
+		map.descendingKeySet().pollFirst();
+		assertEquals(98, map.lastKey().intValue());
+	}
+
+	@Test
+	public void snapshotsAndIteration() {
+		ConcurrentTTTMap<Integer, String> map = new ConcurrentTTTMap<>();
+		for (int k = 0; k < 10; k++) {
+			map.put(k, ""+k);
+		}
+		TTTMap<Integer, String> snapshot = map.snapshot();
+		Iterator<Entry<Integer, String>> entries = map.entrySet().iterator();
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertEquals(10, snapshot.size());
+		List<Integer> keys = new ArrayList<>();
+		while (entries.hasNext()) {
+			keys.add(entries.next().getKey());
+		}
+		assertEquals(10, keys.size());
+
+		map.putAll(snapshot);
+		Iterator<Integer> it = map.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next()%2==0) {
+				it.remove();
+			}
+		}
+		assertEquals(5, map.size());
+		assertFalse(map.containsKey(4));
+		assertTrue(map.snapshot()==map.snapshot());
+	}
+
+	@Test
+	public void concurrentUpdates() throws InterruptedException {
+		ConcurrentTTTMap<Integer, Long> map = new ConcurrentTTTMap<>();
+		int threads = 8;
+		int updates = 10000;
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			workers.add(new Thread(() -> {
+				for (int i = 0; i < updates; i++) {
+					map.merge(i%100, 1L, Long::sum);
+				}
+			}));
+		}
+		workers.forEach(Thread::start);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals(100, map.size());
+		for (Long count : map.values()) {
+			assertEquals(threads*updates/100, count.longValue());
+		}
+	}
+
+	@Test(expected=NullPointerException.class)
+	public void noNullValues() {
+		new ConcurrentTTTMap<Integer, String>().put(1, null);
+	}
+}
@@ -0,0 +1,114 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.IntTTTree;
+import com.github.kdvolder.tttree.LongTTTMap;
+import com.github.kdvolder.tttree.LongTTTree;
+
+public class LongTTTreeTest extends RandomTestUtils {
+
+	@Test
+	public void randomPutsAndRemoves() {
+		LongTTTree<String> tree = LongTTTree.empty();
+		TreeMap<Long, String> shadow = new TreeMap<>();
+		for (int i = 0; i < 5000; i++) {
+			long k = random.nextInt(1000) - 500L + (random.nextBoolean() ? Long.MAX_VALUE/2 : 0);
+			if (random.nextInt(3)==0) {
+				LongTTTree<String> removed = tree.remove(k);
+				assertEquals(shadow.containsKey(k), removed!=tree);
+				tree = removed;
+				shadow.remove(k);
+			} else {
+				tree = tree.put(k, ""+k);
+				shadow.put(k, ""+k);
+			}
+			assertEquals(shadow.size(), tree.size());
+		}
+		assertEquals(shadow, new LongTTTMap<>(tree));
+		assertEquals(new ArrayList<>(shadow.entrySet()), toList(tree));
+		for (Long k : shadow.keySet()) {
+			assertTrue(tree.containsKey(k));
+			assertEquals(shadow.get(k), tree.get(k.longValue()));
+			assertEquals(shadow.get(k), tree.getEntry(k).getValue());
+		}
+		assertEquals(shadow.firstKey().longValue(), tree.firstKey());
+		assertEquals(shadow.lastKey().longValue(), tree.lastKey());
+		assertFalse(tree.containsKey(Long.MIN_VALUE));
+		assertNull(tree.get(Long.MIN_VALUE));
+
+		List<Long> keys = new ArrayList<>();
+		tree.forEachEntry((k, v) -> keys.add(k));
+		assertEquals(new ArrayList<>(shadow.keySet()), keys);
+
+		for (Long k : shadow.keySet()) {
+			tree = tree.remove(k);
+		}
+		assertTrue(tree.isEmpty());
+		assertFalse(tree.iterator().hasNext());
+	}
+
+	@Test
+	public void noUnneededCopies() {
+		LongTTTree<String> tree = LongTTTree.<String>empty().put(1, "a").put(2, "b");
+		assertTrue(tree==tree.put(1, "a"));
+		assertTrue(tree==tree.remove(3));
+		LongTTTMap<String> map = new LongTTTMap<>(tree);
+		assertTrue(map==map.insert(2, "b"));
+		assertTrue(map==map.delete(3));
+	}
+
+	@Test(expected=NoSuchElementException.class)
+	public void firstKeyOfEmptyTree() {
+		LongTTTree.empty().firstKey();
+	}
+
+	@Test
+	public void longTTTMap() {
+		LongTTTMap<String> map = new LongTTTMap<>();
+		TreeMap<Long, String> expected = new TreeMap<>();
+		for (Integer k : randomInts(300, 1000)) {
+			map = map.insert(k, ""+k);
+			expected.put((long)k, ""+k);
+		}
+		assertEquals(expected, map);
+		assertEquals(map, expected);
+		assertEquals(expected.hashCode(), map.hashCode());
+		for (long k = -5; k < 1005; k++) {
+			assertEquals(expected.containsKey(k), map.containsKey(k));
+			assertEquals(expected.get(k), map.get(k));
+			assertEquals(expected.get(k), map.get((Object)k));
+		}
+		assertFalse(map.containsKey((Object)5));
+		assertNull(map.get("5"));
+	}
+
+	@Test
+	public void intTTTree() {
+		IntTTTree<String> tree = IntTTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(1000)) {
+			tree = tree.put(k, ""+k);
+			shadow.put(k, ""+k);
+		}
+		assertEquals(shadow.size(), tree.size());
+		assertEquals(new ArrayList<>(shadow.entrySet()), toList(tree));
+		assertEquals(shadow.firstKey().intValue(), tree.firstKey());
+		assertEquals(shadow.lastKey().intValue(), tree.lastKey());
+		for (Integer k : shadow.keySet()) {
+			assertEquals(shadow.get(k), tree.get(k));
+			tree = tree.remove(k);
+		}
+		assertTrue(tree.isEmpty());
+	}
+}
@@ -0,0 +1,175 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.Codec;
+import com.github.kdvolder.tttree.Codecs;
+import com.github.kdvolder.tttree.LsmTTTMap;
+
+public class LsmTTTMapTest extends RandomTestUtils {
+
+	private Path dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("lsm");
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path f : (Iterable<Path>) files::iterator) {
+				Files.delete(f);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void randomPutsAndRemoves() throws IOException {
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		try (LsmTTTMap<Integer, String> map = LsmTTTMap.open(dir, null, Codecs.INT, Codecs.STRING, 100)) {
+			for (int i = 0; i < 20000; i++) {
+				int k = random.nextInt(5000);
+				if (random.nextInt(4)==0) {
+					map.remove(k);
+					expected.remove(k);
+				} else {
+					map.put(k, "v"+i);
+					expected.put(k, "v"+i);
+				}
+				if (i%1000==0) {
+					assertEquals(expected.get(k), map.get(k));
+				}
+			}
+			assertSameEntries(expected, map);
+			map.flush();
+			assertSameEntries(expected, map);
+		}
+		try (LsmTTTMap<Integer, String> map = LsmTTTMap.open(dir, Codecs.INT, Codecs.STRING)) {
+			assertSameEntries(expected, map);
+			//Closing waits for the merges, which keep the number of runs logarithmic
+			assertTrue(map.runCount() < 10);
+		}
+	}
+
+	@Test
+	public void tombstonesHideOlderRuns() throws IOException {
+		try (LsmTTTMap<Integer, String> map = LsmTTTMap.open(dir, null, Codecs.INT, Codecs.STRING, 1000)) {
+			for (int k = 0; k < 10; k++) {
+				map.put(k, "old");
+			}
+			map.flush();
+			map.remove(3);
+			map.put(4, "new");
+			assertNull(map.get(3));
+			assertFalse(map.containsKey(3));
+			assertEquals("new", map.get(4));
+			map.flush();
+			assertNull(map.get(3));
+			assertEquals("old", map.get(5));
+			assertFalse(map.containsKey(10));
+		}
+		try (LsmTTTMap<Integer, String> map = LsmTTTMap.open(dir, Codecs.INT, Codecs.STRING)) {
+			assertNull(map.get(3));
+			assertEquals("new", map.get(4));
+			List<Integer> keys = new ArrayList<>();
+			map.forEach(e -> keys.add(e.getKey()));
+			assertEquals(9, keys.size());
+			assertFalse(keys.contains(3));
+		}
+	}
+
+	@Test
+	public void iteratorSeesSnapshot() throws IOException {
+		try (LsmTTTMap<Integer, String> map = LsmTTTMap.open(dir, null, Codecs.INT, Codecs.STRING, 10)) {
+			for (int k = 0; k < 100; k++) {
+				map.put(k, ""+k);
+			}
+			Iterator<Entry<Integer, String>> entries = map.iterator();
+			for (int k = 0; k < 100; k++) {
+				map.remove(k);
+			}
+			map.flush();
+			int count = 0;
+			while (entries.hasNext()) {
+				assertEquals(count, entries.next().getKey().intValue());
+				count++;
+			}
+			assertEquals(100, count);
+			assertFalse(map.iterator().hasNext());
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void closed() throws IOException {
+		LsmTTTMap<Integer, String> map = LsmTTTMap.open(dir, Codecs.INT, Codecs.STRING);
+		map.close();
+		map.put(1, "a");
+	}
+
+	@Test
+	public void closeAfterFailedWrite() throws Exception {
+		Codec<String> failing = new Codec<String>() {
+			@Override
+			public void write(DataOutput out, String value) throws IOException {
+				if (value.equals("bad")) {
+					throw new IOException("Can't write "+value);
+				}
+				Codecs.STRING.write(out, value);
+			}
+
+			@Override
+			public String read(DataInput in) throws IOException {
+				return Codecs.STRING.read(in);
+			}
+		};
+		LsmTTTMap<Integer, String> map = LsmTTTMap.open(dir, null, Codecs.INT, failing, 10);
+		map.put(1, "good");
+		map.flush();
+		map.put(2, "bad");
+		try {
+			map.close();
+			assertTrue(false);
+		} catch (UncheckedIOException e) {
+			assertEquals("Can't write bad", e.getCause().getMessage());
+		}
+		//The background threads have been stopped anyway
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith("LsmTTTMap")) {
+				t.join(10000);
+				assertFalse(t.isAlive());
+			}
+		}
+		map.close();
+	}
+
+	private static void assertSameEntries(TreeMap<Integer, String> expected, LsmTTTMap<Integer, String> map) {
+		List<Entry<Integer, String>> entries = new ArrayList<>();
+		map.forEach(entries::add);
+		assertEquals(new ArrayList<>(expected.entrySet()), entries);
+		for (int k = -1; k <= 5000; k++) {
+			assertEquals(expected.get(k), map.get(k));
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.Codecs;
+import com.github.kdvolder.tttree.MappedTTTree;
+import com.github.kdvolder.tttree.TTTree;
+import com.github.kdvolder.tttree.TTTreeBuilder;
+
+public class MappedTTTreeTest extends RandomTestUtils {
+
+	private Path file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = Files.createTempFile("snapshot", ".ttt");
+	}
+
+	@After
+	public void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void lookupsAndIteration() throws IOException {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		for (Integer k : randomInts(3000, 10000)) {
+			tree = tree.put(k*2, "value"+k);
+			expected.put(k*2, "value"+k);
+		}
+		MappedTTTree.write(tree, file, Codecs.INT, Codecs.STRING);
+		try (MappedTTTree<Integer, String> mapped = MappedTTTree.open(file, Codecs.INT, Codecs.STRING)) {
+			assertEquals(expected.size(), mapped.size());
+			for (int k = -1; k <= 20001; k++) {
+				assertEquals(expected.get(k), mapped.get(k));
+				assertEquals(expected.containsKey(k), mapped.containsKey(k));
+			}
+			assertEquals(new ArrayList<>(expected.entrySet()), toList(mapped.iterator()));
+			for (int i = 0; i < 100; i++) {
+				int from = random.nextInt(20000);
+				int to = from + random.nextInt(1000);
+				boolean fromInclusive = random.nextBoolean();
+				boolean toInclusive = random.nextBoolean();
+				assertEquals(
+						new ArrayList<>(expected.subMap(from, fromInclusive, to, toInclusive).entrySet()),
+						toList(mapped.iterator(from, fromInclusive, to, toInclusive))
+				);
+			}
+			assertEquals(new ArrayList<>(expected.headMap(5000).entrySet()), toList(mapped.iterator(null, true, 5000, false)));
+			assertEquals(new ArrayList<>(expected.tailMap(5000).entrySet()), toList(mapped.iterator(5000, true, null, true)));
+			assertFalse(mapped.iterator(300, true, 200, true).hasNext());
+		}
+	}
+
+	@Test
+	public void severalLevelsOfSparseIndex() throws IOException {
+		TTTreeBuilder<Integer, String> builder = TTTree.<Integer, String>empty().asTransient();
+		for (int k = 0; k < 200000; k++) {
+			builder.put(k*2, "a somewhat longer value "+k);
+		}
+		TTTree<Integer, String> tree = builder.persistent();
+		MappedTTTree.write(tree, file, Codecs.INT, Codecs.STRING);
+		try (MappedTTTree<Integer, String> mapped = MappedTTTree.open(file, Codecs.INT, Codecs.STRING)) {
+			for (int k = -1; k <= 400001; k++) {
+				assertEquals(tree.get(k), mapped.get(k));
+			}
+			assertEquals(tree.size(), toList(mapped.iterator()).size());
+			for (int i = 0; i < 100; i++) {
+				int from = random.nextInt(400000);
+				int to = from + random.nextInt(2000);
+				Iterator<Entry<Integer, String>> entries = mapped.iterator(from, false, to, true);
+				for (int k = from/2*2+2; k <= to; k += 2) {
+					assertEquals(k, entries.next().getKey().intValue());
+				}
+				assertFalse(entries.hasNext());
+			}
+		}
+	}
+
+	@Test
+	public void replaceOpenSnapshot() throws IOException {
+		MappedTTTree.write(TTTree.<Integer, String>empty().put(1, "old"), file, Codecs.INT, Codecs.STRING);
+		try (MappedTTTree<Integer, String> old = MappedTTTree.open(file, Codecs.INT, Codecs.STRING)) {
+			MappedTTTree.write(TTTree.<Integer, String>empty().put(1, "new").put(2, "new"), file, Codecs.INT, Codecs.STRING);
+			assertEquals("old", old.get(1));
+			assertEquals(1, old.size());
+		}
+		try (MappedTTTree<Integer, String> mapped = MappedTTTree.open(file, Codecs.INT, Codecs.STRING)) {
+			assertEquals("new", mapped.get(1));
+			assertEquals(2, mapped.size());
+		}
+		try (Stream<Path> files = Files.list(file.getParent())) {
+			assertEquals(0, files.filter(f -> f.getFileName().toString().startsWith(file.getFileName()+".")).count());
+		}
+	}
+
+	@Test
+	public void emptyTree() throws IOException {
+		MappedTTTree.write(TTTree.<Integer, String>empty(), file, Codecs.INT, Codecs.STRING);
+		try (MappedTTTree<Integer, String> mapped = MappedTTTree.open(file, Codecs.INT, Codecs.STRING)) {
+			assertTrue(mapped.isEmpty());
+			assertNull(mapped.get(1));
+			assertFalse(mapped.iterator().hasNext());
+		}
+	}
+
+	@Test(expected=StreamCorruptedException.class)
+	public void notASnapshot() throws IOException {
+		Files.write(file, "Not a snapshot, but long enough for a header".getBytes());
+		MappedTTTree.open(file, Codecs.INT, Codecs.STRING);
+	}
+}
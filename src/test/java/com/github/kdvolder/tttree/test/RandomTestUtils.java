@@ -1,5 +1,9 @@
 package com.github.kdvolder.tttree.test;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.Random;
 
 public class RandomTestUtils {
@@ -25,4 +29,14 @@ public class RandomTestUtils {
 		}
 		return data;
 	}
+
+	protected static <K, V> List<Entry<K, V>> toList(Iterable<Entry<K, V>> entries) {
+		return toList(entries.iterator());
+	}
+
+	protected static <K, V> List<Entry<K, V>> toList(Iterator<Entry<K, V>> entries) {
+		List<Entry<K, V>> list = new ArrayList<>();
+		entries.forEachRemaining(list::add);
+		return list;
+	}
 }
@@ -0,0 +1,271 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.Codec;
+import com.github.kdvolder.tttree.Codecs;
+import com.github.kdvolder.tttree.TTTMap;
+import com.github.kdvolder.tttree.TTTSet;
+import com.github.kdvolder.tttree.TTTree;
+import com.github.kdvolder.tttree.TTTreeDeltaReader;
+import com.github.kdvolder.tttree.TTTreeDeltaWriter;
+import com.google.common.collect.ImmutableList;
+
+public class SerializationTest extends RandomTestUtils {
+
+	@Test
+	public void binaryTree() throws IOException {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		for (Integer k : randomInts(1000)) {
+			String v = k%10==0 ? null : ""+k;
+			tree = tree.put(k, v);
+			expected.put(k, v);
+		}
+		Codec<String> values = Codecs.nullable(Codecs.STRING);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		tree.writeTo(bytes, Codecs.INT, values);
+		TTTree<Integer, String> read = TTTree.readFrom(new ByteArrayInputStream(bytes.toByteArray()), Codecs.INT, values);
+		assertEquals(expected, new TTTMap<>(read));
+		assertEquals(expected.size(), read.size());
+
+		bytes.reset();
+		tree.writeTo(Channels.newChannel(bytes), Codecs.INT, values);
+		read = TTTree.readFrom(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), Codecs.INT, values);
+		assertEquals(expected, new TTTMap<>(read));
+
+		bytes.reset();
+		TTTree.<Integer, String>empty().writeTo(bytes, Codecs.INT, values);
+		assertTrue(TTTree.readFrom(new ByteArrayInputStream(bytes.toByteArray()), Codecs.INT, values).isEmpty());
+	}
+
+	@Test
+	public void binaryMapAndSet() throws IOException {
+		TTTMap<String, Long> map = new TTTMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (Integer k : randomInts(500, 10000)) {
+			map = map.insert((k%2==0 ? "Key" : "key")+k, k*1000000000L);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		map.writeTo(bytes, Codecs.STRING, Codecs.LONG);
+		TTTMap<String, Long> readMap = TTTMap.readFrom(new ByteArrayInputStream(bytes.toByteArray()), String.CASE_INSENSITIVE_ORDER, Codecs.STRING, Codecs.LONG);
+		assertEquals(map, readMap);
+		assertEquals(String.CASE_INSENSITIVE_ORDER, readMap.comparator());
+
+		TTTSet<Integer> set = TTTSet.copyOfSorted(new TreeSet<>(Arrays.asList(randomInts(500))));
+		bytes.reset();
+		set.writeTo(bytes, Codecs.INT);
+		TTTSet<Integer> readSet = TTTSet.readFrom(new ByteArrayInputStream(bytes.toByteArray()), Codecs.INT);
+		assertEquals(set, readSet);
+		assertTrue(readSet==readSet.insert(set.first()));
+	}
+
+	@Test
+	public void binaryTreeFollowedByOtherData() throws IOException {
+		TTTree<Integer, String> tree = TTTree.empty();
+		for (Integer k : randomInts(1000)) {
+			tree = tree.put(k, ""+k);
+		}
+		TTTSet<Integer> set = TTTSet.of(1, 2, 3);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		tree.writeTo(bytes, Codecs.INT, Codecs.STRING);
+		set.writeTo(bytes, Codecs.INT);
+		new DataOutputStream(bytes).writeInt(12345);
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(new TTTMap<>(tree), new TTTMap<>(TTTree.readFrom(in, Codecs.INT, Codecs.STRING)));
+		assertEquals(set, TTTSet.readFrom(in, Codecs.INT));
+		assertEquals(12345, in.readInt());
+
+		Path file = Files.createTempFile("trees", ".bin");
+		try {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				tree.writeTo(channel, Codecs.INT, Codecs.STRING);
+				tree.writeTo(channel, Codecs.INT, Codecs.STRING);
+			}
+			try (FileChannel channel = FileChannel.open(file)) {
+				assertEquals(new TTTMap<>(tree), new TTTMap<>(TTTree.readFrom(channel, Codecs.INT, Codecs.STRING)));
+				assertEquals(channel.size()/2, channel.position());
+				assertEquals(new TTTMap<>(tree), new TTTMap<>(TTTree.readFrom(channel, Codecs.INT, Codecs.STRING)));
+				assertEquals(channel.size(), channel.position());
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void varInts() throws IOException {
+		ImmutableList<Long> longs = ImmutableList.of(0L, 1L, -1L, 63L, -64L, 64L, Long.MAX_VALUE, Long.MIN_VALUE, (long)Integer.MIN_VALUE);
+		TTTree<Long, Integer> tree = TTTree.empty();
+		for (Long l : longs) {
+			tree = tree.put(l, (int)(l % 100000));
+		}
+		tree = tree.put(1234L, Integer.MIN_VALUE).put(4321L, Integer.MAX_VALUE);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		tree.writeTo(bytes, Codecs.LONG, Codecs.INT);
+		TTTree<Long, Integer> read = TTTree.readFrom(new ByteArrayInputStream(bytes.toByteArray()), Codecs.LONG, Codecs.INT);
+		assertEquals(new TTTMap<>(tree), new TTTMap<>(read));
+	}
+
+	@Test(expected=StreamCorruptedException.class)
+	public void unsortedData() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TTTree.<Integer, Integer>empty().put(1, 1).put(2, 2).writeTo(bytes, Codecs.INT, Codecs.INT);
+		//Swap the two keys, each of which is written as a single byte
+		byte[] data = bytes.toByteArray();
+		byte first = data[data.length-4];
+		data[data.length-4] = data[data.length-2];
+		data[data.length-2] = first;
+		TTTree.readFrom(new ByteArrayInputStream(data), Codecs.INT, Codecs.INT);
+	}
+
+	@Test(expected=StreamCorruptedException.class)
+	public void notATree() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeUTF("Hello");
+		TTTree.readFrom(new ByteArrayInputStream(bytes.toByteArray()), Codecs.INT, Codecs.INT);
+	}
+
+	@Test(expected=InvalidObjectException.class)
+	public void setIsNotAMap() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TTTSet.of(1, 2, 3).writeTo(bytes, Codecs.INT);
+		TTTMap.readFrom(new ByteArrayInputStream(bytes.toByteArray()), Codecs.INT, Codecs.INT);
+	}
+
+	@Test
+	public void javaSerialization() throws Exception {
+		TTTree<Integer, String> tree = TTTree.empty();
+		for (Integer k : randomInts(1000)) {
+			tree = tree.put(k, ""+k);
+		}
+		TTTree<Integer, String> readTree = roundTrip(tree);
+		assertEquals(new TTTMap<>(tree), new TTTMap<>(readTree));
+		for (Entry<Integer, String> e : tree) {
+			readTree = readTree.remove(e.getKey()); //Should be a well-formed tree
+		}
+		assertTrue(readTree.isEmpty());
+		assertTrue(TTTree.empty()==roundTrip(TTTree.empty()));
+
+		TTTMap<String, Integer> map = new TTTMap<String, Integer>(String.CASE_INSENSITIVE_ORDER).insert("b", 1).insert("A", 2);
+		TTTMap<String, Integer> readMap = roundTrip(map);
+		assertEquals(map, readMap);
+		assertEquals(String.CASE_INSENSITIVE_ORDER, readMap.comparator());
+		assertEquals((Integer)2, readMap.get("a"));
+
+		TTTSet<Integer> set = TTTSet.of(3, 1, 2);
+		TTTSet<Integer> readSet = roundTrip(set);
+		assertEquals(set, readSet);
+		assertTrue(readSet==readSet.insert(2));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T roundTrip(T object) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return (T) in.readObject();
+		}
+	}
+	@Test
+	public void deltaChain() throws IOException {
+		TTTreeDeltaWriter<Integer, String> writer = new TTTreeDeltaWriter<>(Codecs.INT, Codecs.STRING);
+		TTTreeDeltaReader<Integer, String> reader = new TTTreeDeltaReader<>(Codecs.INT, Codecs.STRING);
+		TTTree<Integer, String> tree = TTTree.empty();
+		for (Integer k : randomInts(2000)) {
+			tree = tree.put(k, ""+k);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long nodes = writer.writeDelta(tree, bytes);
+		assertTrue(nodes > tree.size() && nodes < 2*tree.size());
+		int baseSize = bytes.size();
+		TTTree<Integer, String> read = reader.readDelta(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(new TTTMap<>(tree), new TTTMap<>(read));
+
+		for (int version = 0; version < 20; version++) {
+			for (int i = 0; i < 5; i++) {
+				int k = random.nextInt(3000);
+				tree = random.nextBoolean() ? tree.put(k, "v"+version) : tree.remove(k);
+			}
+			bytes.reset();
+			writer.writeDelta(tree, bytes);
+			assertTrue(bytes.size() < baseSize/10);
+			TTTree<Integer, String> next = reader.readDelta(new ByteArrayInputStream(bytes.toByteArray()));
+			assertEquals(new TTTMap<>(tree), new TTTMap<>(next));
+			read = next;
+		}
+
+		bytes.reset();
+		assertEquals(0, writer.writeDelta(tree, bytes));
+		assertEquals(new TTTMap<>(tree), new TTTMap<>(reader.readDelta(new ByteArrayInputStream(bytes.toByteArray()))));
+
+		bytes.reset();
+		writer.writeDelta(TTTree.empty(), bytes);
+		assertTrue(reader.readDelta(new ByteArrayInputStream(bytes.toByteArray())).isEmpty());
+	}
+
+	@Test
+	public void deltaChainInOneStream() throws IOException {
+		TTTreeDeltaWriter<Integer, String> writer = new TTTreeDeltaWriter<>(Codecs.INT, Codecs.STRING);
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		TTTree<Integer, String> tree = TTTree.empty();
+		for (Integer k : randomInts(1000)) {
+			tree = tree.put(k, ""+k);
+		}
+		List<TTTree<Integer, String>> versions = new ArrayList<>();
+		for (int version = 0; version < 10; version++) {
+			for (int i = 0; i < 5; i++) {
+				int k = random.nextInt(1500);
+				tree = random.nextBoolean() ? tree.put(k, "v"+version) : tree.remove(k);
+			}
+			versions.add(tree);
+			writer.writeDelta(tree, log);
+		}
+		new DataOutputStream(log).writeInt(12345);
+
+		TTTreeDeltaReader<Integer, String> reader = new TTTreeDeltaReader<>(Codecs.INT, Codecs.STRING);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(log.toByteArray())));
+		for (TTTree<Integer, String> version : versions) {
+			assertEquals(new TTTMap<>(version), new TTTMap<>(reader.readDelta(in)));
+		}
+		//Whatever follows the deltas is left in the stream
+		assertEquals(12345, in.readInt());
+	}
+
+	@Test(expected=InvalidObjectException.class)
+	public void deltaOutOfOrder() throws IOException {
+		TTTreeDeltaWriter<Integer, String> writer = new TTTreeDeltaWriter<>(Codecs.INT, Codecs.STRING);
+		TTTree<Integer, String> tree = TTTree.<Integer, String>empty().put(1, "a");
+		writer.writeDelta(tree, new ByteArrayOutputStream());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writer.writeDelta(tree.put(2, "b"), bytes);
+		new TTTreeDeltaReader<>(Codecs.INT, Codecs.STRING).readDelta(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+}
@@ -1,12 +1,30 @@
 package com.github.kdvolder.tttree.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
 
 import org.junit.Test;
 
+import com.github.kdvolder.tttree.DiffListener;
 import com.github.kdvolder.tttree.TTTMap;
+import com.github.kdvolder.tttree.TTTree;
+import com.github.kdvolder.tttree.TTTreeBuilder;
+import com.google.common.collect.ImmutableList;
 
 public class TTTMapTest extends AbstractMapTestTemplate {
 
@@ -60,6 +78,266 @@ public class TTTMapTest extends AbstractMapTestTemplate {
 		}
 	}
 
+	@Test
+	public void copyOfSorted() {
+		TreeMap<Integer, String> sorted = new TreeMap<>(Comparator.reverseOrder());
+		for (Integer k : randomInts(1000, 2000)) {
+			sorted.put(k, ""+k);
+		}
+		TTTMap<Integer, String> map = TTTMap.copyOfSorted(sorted);
+		assertEquals(sorted, map);
+		assertEquals(sorted.size(), map.size());
+		assertEquals(sorted.comparator(), map.comparator());
+		assertEquals(new ArrayList<>(sorted.keySet()), new ArrayList<>(map.keySet()));
+	}
+
+	@Test
+	public void comparator() {
+		TreeMap<Integer, String> expected = new TreeMap<>(Comparator.reverseOrder());
+		TTTMap<Integer, String> map = new TTTMap<>(Comparator.reverseOrder());
+		for (Integer k : randomInts(300, 1000)) {
+			expected.put(k*2, ""+k);
+			map = map.insert(k*2, ""+k);
+		}
+		assertNavigation(expected, map);
+		assertNavigation(expected.descendingMap(), map.descendingMap());
+		for (int i = 0; i < 100; i++) {
+			int from = random.nextInt(2100)-50;
+			int to = from - random.nextInt(500);
+			assertNavigation(expected.subMap(from, true, to, false), map.subMap(from, true, to, false));
+			assertNavigation(expected.headMap(to, true), map.headMap(to, true));
+			assertNavigation(expected.tailMap(from, false), map.tailMap(from, false));
+		}
+		//Merging maps with different orderings
+		TTTMap<Integer, String> natural = TTTMap.copyOfSorted(new TreeMap<>(expected));
+		assertEquals(expected, map.merge(natural, (a, b) -> a));
+		assertEquals(expected, natural.merge(map, (a, b) -> a));
+		assertEquals(Comparator.reverseOrder(), map.merge(natural, (a, b) -> a).comparator());
+		assertEquals(natural, map);
+		for (Integer k : new ArrayList<>(expected.keySet())) {
+			map = map.delete(k);
+		}
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void keysWithoutNaturalOrdering() {
+		TTTMap<int[], String> map = new TTTMap<>(Comparator.comparingInt(a -> a[0]));
+		for (Integer k : randomInts(100, 1000)) {
+			map = map.insert(new int[] {k}, ""+k);
+		}
+		int last = Integer.MIN_VALUE;
+		for (Entry<int[], String> e : map.entrySet()) {
+			assertTrue(last < e.getKey()[0]);
+			last = e.getKey()[0];
+			assertEquals(e.getValue(), map.get(new int[] {last}));
+		}
+		assertFalse(map.containsKey("not an array"));
+	}
+
+	@Test
+	public void merge() {
+		for (int i = 0; i < 20; i++) {
+			TreeMap<Integer, Integer> a = new TreeMap<>();
+			TreeMap<Integer, Integer> b = new TreeMap<>();
+			for (Integer k : randomInts(random.nextInt(300), 500)) {
+				a.put(k, k);
+			}
+			for (Integer k : randomInts(random.nextInt(300), 500)) {
+				b.put(k, 1);
+			}
+			TreeMap<Integer, Integer> expected = new TreeMap<>(a);
+			//Note: the merger removes keys that occur in both maps when their sum is even
+			BiFunction<Integer, Integer, Integer> merger = (x, y) -> (x+y)%2==0 ? null : x+y;
+			for (Entry<Integer, Integer> e : b.entrySet()) {
+				expected.merge(e.getKey(), e.getValue(), merger);
+			}
+			TTTMap<Integer, Integer> merged = TTTMap.copyOfSorted(a).merge(TTTMap.copyOfSorted(b), merger);
+			assertEquals(expected, merged);
+			assertEquals(expected.size(), merged.size());
+		}
+	}
+
+	@Test
+	public void diffSkipsSharedStructure() {
+		int[] comparisons = { 0 };
+		Comparator<Integer> counting = (a, b) -> {
+			comparisons[0]++;
+			return Integer.compare(a, b);
+		};
+		TTTMap<Integer, String> base = new TTTMap<>(counting);
+		for (int k = 0; k < 10000; k++) {
+			base = base.insert(k, ""+k);
+		}
+		TTTMap<Integer, String> modified = base.insert(5000, "changed").delete(17).insert(20000, "new");
+
+		List<String> changes = new ArrayList<>();
+		comparisons[0] = 0;
+		base.diff(modified, new DiffListener<Integer, String>() {
+			@Override
+			public void added(Integer k, String v) {
+				changes.add("+"+k);
+			}
+			@Override
+			public void removed(Integer k, String v) {
+				changes.add("-"+k);
+			}
+			@Override
+			public void changed(Integer k, String oldValue, String newValue) {
+				changes.add("*"+k);
+			}
+		});
+		assertEquals(Arrays.asList("-17", "*5000", "+20000"), changes);
+		assertTrue("comparisons: "+comparisons[0], comparisons[0] < 200);
+	}
+
+	@Test
+	public void navigation() {
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		for (Integer k : randomInts(300, 1000)) {
+			expected.put(k*2, ""+k);
+		}
+		TTTMap<Integer, String> map = TTTMap.copyOfSorted(expected);
+		assertNavigation(expected, map);
+		assertNavigation(expected.descendingMap(), map.descendingMap());
+		assertEquals(map, map.descendingMap().descendingMap());
+		for (int i = 0; i < 100; i++) {
+			int from = random.nextInt(2100)-50;
+			int to = from + random.nextInt(500);
+			boolean fromInclusive = random.nextBoolean();
+			boolean toInclusive = random.nextBoolean();
+			assertNavigation(expected.subMap(from, fromInclusive, to, toInclusive), map.subMap(from, fromInclusive, to, toInclusive));
+			assertNavigation(expected.headMap(to, toInclusive), map.headMap(to, toInclusive));
+			assertNavigation(expected.tailMap(from, fromInclusive), map.tailMap(from, fromInclusive));
+			assertNavigation(expected.descendingMap().subMap(to, toInclusive, from, fromInclusive), map.descendingMap().subMap(to, toInclusive, from, fromInclusive));
+			assertNavigation(expected.descendingMap().headMap(from, fromInclusive), map.descendingMap().headMap(from, fromInclusive));
+		}
+	}
+
+	private void assertNavigation(NavigableMap<Integer, String> expected, NavigableMap<Integer, String> map) {
+		assertEquals(expected, map);
+		assertEquals(expected.size(), map.size());
+		assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(map.entrySet()));
+		assertEquals(new ArrayList<>(expected.navigableKeySet()), new ArrayList<>(map.navigableKeySet()));
+		assertEquals(new ArrayList<>(expected.descendingKeySet()), new ArrayList<>(map.descendingKeySet()));
+		assertEquals(expected.firstEntry(), map.firstEntry());
+		assertEquals(expected.lastEntry(), map.lastEntry());
+		if (!expected.isEmpty()) {
+			assertEquals(expected.firstKey(), map.firstKey());
+			assertEquals(expected.lastKey(), map.lastKey());
+		}
+		for (int k = -10; k < 2010; k+=3) {
+			assertEquals(expected.floorEntry(k), map.floorEntry(k));
+			assertEquals(expected.floorKey(k), map.floorKey(k));
+			assertEquals(expected.lowerEntry(k), map.lowerEntry(k));
+			assertEquals(expected.lowerKey(k), map.lowerKey(k));
+			assertEquals(expected.ceilingEntry(k), map.ceilingEntry(k));
+			assertEquals(expected.ceilingKey(k), map.ceilingKey(k));
+			assertEquals(expected.higherEntry(k), map.higherEntry(k));
+			assertEquals(expected.higherKey(k), map.higherKey(k));
+		}
+	}
+
+	@Test(expected=NoSuchElementException.class)
+	public void firstKeyOfEmptyMap() {
+		new TTTMap<Integer, String>().firstKey();
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void subMapWithInvertedBounds() {
+		new TTTMap<Integer, String>().subMap(5, 3);
+	}
+
+	@Test
+	public void treeBackedViews() {
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		for (Integer k : randomInts(300, 1000)) {
+			expected.put(k, ""+k);
+		}
+		TTTMap<Integer, String> map = TTTMap.copyOfSorted(expected);
+		for (int k = -5; k < 1005; k++) {
+			assertEquals(expected.containsKey(k), map.containsKey(k));
+			assertEquals(expected.containsKey(k), map.keySet().contains(k));
+			assertEquals(expected.containsKey(k), map.entrySet().contains(new SimpleEntry<>(k, ""+k)));
+			assertFalse(map.entrySet().contains(new SimpleEntry<>(k, "other")));
+		}
+		assertFalse(map.containsKey("not an integer"));
+		assertFalse(map.containsKey(null));
+		assertEquals(new ArrayList<>(expected.values()), new ArrayList<>(map.values()));
+		assertEquals(expected.size(), map.values().size());
+		assertEquals(expected.entrySet(), map.entrySet());
+		assertEquals(expected.keySet(), map.keySet());
+
+		//Removing entries that aren't there is allowed on immutable views
+		assertFalse(map.keySet().removeAll(ImmutableList.of(-1, -2)));
+		assertFalse(map.keySet().retainAll(expected.keySet()));
+		assertFalse(map.entrySet().remove(new SimpleEntry<>(-1, "-1")));
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void keySetIsImmutable() {
+		TTTMap<Integer, String> map = new TTTMap<Integer, String>().insert(1, "1").insert(2, "2");
+		map.keySet().removeAll(ImmutableList.of(2, 3));
+	}
+
+	@Test
+	public void equalsAndHashCode() {
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		for (Integer k : randomInts(300, 1000)) {
+			expected.put(k, ""+k);
+		}
+		TTTMap<Integer, String> map = TTTMap.copyOfSorted(expected);
+		TTTMap<Integer, String> other = new TTTMap<>();
+		for (Entry<Integer, String> e : expected.entrySet()) {
+			other = other.insert(e.getKey(), e.getValue());
+		}
+		assertEquals(map, other);
+		assertEquals(other, map);
+		assertEquals(expected, map);
+		assertEquals(map, expected);
+		assertEquals(expected.hashCode(), map.hashCode());
+		Integer someKey = expected.firstKey();
+		assertNotEquals(map, other.insert(someKey, "changed"));
+		assertNotEquals(map, other.delete(someKey));
+		assertNotEquals(map, other.delete(someKey).insert(-1, ""+someKey));
+	}
+
+	@Test
+	public void hashCodeFollowsUpdates() {
+		TTTMap<Integer, String> map = new TTTMap<>();
+		HashMap<Integer, String> expected = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			int k = random.nextInt(500);
+			if (random.nextInt(3)==0) {
+				map = map.delete(k);
+				expected.remove(k);
+			} else {
+				String v = random.nextBoolean() ? null : ""+random.nextInt(5);
+				map = map.insert(k, v);
+				expected.put(k, v);
+			}
+			assertEquals(expected.hashCode(), map.hashCode());
+		}
+		assertEquals(expected.hashCode(), map.descendingMap().hashCode());
+		TTTMap<Integer, String> merged = map.filter((k, v) -> k%2==0).merge(map.filter((k, v) -> k%2!=0), (a, b) -> a);
+		assertEquals(expected.hashCode(), merged.hashCode());
+		TTTreeBuilder<Integer, String> builder = TTTree.<Integer, String>empty().asTransient();
+		HashMap<Integer, String> built = new HashMap<>();
+		for (Integer k : randomInts(300, 1000)) {
+			builder.put(k, ""+k);
+			built.put(k, ""+k);
+		}
+		for (Integer k : randomInts(100, 1000)) {
+			builder.remove(k);
+			built.remove(k);
+		}
+		assertEquals(built.hashCode(), new TTTMap<>(builder.persistent()).hashCode());
+
+		TTTMap<String, String> caseInsensitive = new TTTMap<String, String>(String.CASE_INSENSITIVE_ORDER).insert("a", "x");
+		TTTMap<String, String> upper = new TTTMap<String, String>(String.CASE_INSENSITIVE_ORDER).insert("A", "x");
+		assertNotEquals(caseInsensitive, upper);
+	}
+
 	@Override
 	protected <K extends Comparable<K>, V> MutableMap<K, V> createEmptyMap() {
 		return MutableMap.from(new TTTMap<K,V>());
@@ -2,15 +2,25 @@ package com.github.kdvolder.tttree.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
+import com.github.kdvolder.tttree.TTTMap;
 import com.github.kdvolder.tttree.TTTSet;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 
 public class TTTSetTest extends RandomTestUtils {
 
@@ -55,6 +65,246 @@ public class TTTSetTest extends RandomTestUtils {
 		assertEquals(setb.intersection(seta), TTTSet.of("b", "d"));
 	}
 
+	@Test
+	public void difference() {
+		TTTSet<String> empty = TTTSet.of();
+
+		TTTSet<String> seta = TTTSet.of("a", "b", "c", "d");
+		TTTSet<String> setb = TTTSet.of("b", "d", "f");
+
+		assertEquals(empty.difference(empty), empty);
+		assertEquals(seta.difference(empty), seta);
+		assertEquals(empty.difference(seta), empty);
+		assertEquals(seta.difference(seta), empty);
+
+		assertEquals(seta.difference(setb), TTTSet.of("a", "c"));
+		assertEquals(setb.difference(seta), TTTSet.of("f"));
+	}
+
+	@Test
+	public void symmetricDifference() {
+		TTTSet<String> empty = TTTSet.of();
+
+		TTTSet<String> seta = TTTSet.of("a", "b", "c", "d");
+		TTTSet<String> setb = TTTSet.of("b", "d", "f");
+
+		assertEquals(empty.symmetricDifference(empty), empty);
+		assertEquals(seta.symmetricDifference(empty), seta);
+		assertEquals(empty.symmetricDifference(seta), seta);
+		assertEquals(seta.symmetricDifference(seta), empty);
+
+		assertEquals(seta.symmetricDifference(setb), TTTSet.of("a", "c", "f"));
+		assertEquals(setb.symmetricDifference(seta), TTTSet.of("a", "c", "f"));
+	}
+
+	@Test
+	public void randomSetOperations() {
+		for (int i = 0; i < 50; i++) {
+			TreeSet<Integer> a = new TreeSet<>(Arrays.asList(randomInts(random.nextInt(200), 300)));
+			TreeSet<Integer> b = new TreeSet<>(Arrays.asList(randomInts(random.nextInt(200), 300)));
+			TTTSet<Integer> ta = TTTSet.copyOfSorted(a);
+			TTTSet<Integer> tb = TTTSet.copyOfSorted(b);
+			//Also use a set derived from 'a' so that the sets share most of their structure
+			TTTSet<Integer> tc = ta;
+			TreeSet<Integer> c = new TreeSet<>(a);
+			for (Integer x : randomInts(5, 300)) {
+				tc = tc.insert(x);
+				c.add(x);
+			}
+			for (Integer x : randomInts(5, 300)) {
+				tc = tc.delete(x);
+				c.remove(x);
+			}
+			assertSetOperations(a, b, ta, tb);
+			assertSetOperations(a, c, ta, tc);
+			assertSetOperations(c, a, tc, ta);
+		}
+	}
+
+	private void assertSetOperations(Set<Integer> a, Set<Integer> b, TTTSet<Integer> ta, TTTSet<Integer> tb) {
+		assertEquals(Sets.union(a, b), ta.union(tb));
+		assertEquals(Sets.union(a, b).size(), ta.union(tb).size());
+		assertEquals(Sets.intersection(a, b), ta.intersection(tb));
+		assertEquals(Sets.intersection(a, b).size(), ta.intersection(tb).size());
+		assertEquals(Sets.difference(a, b), ta.difference(tb));
+		assertEquals(Sets.difference(a, b).size(), ta.difference(tb).size());
+		assertEquals(Sets.symmetricDifference(a, b), ta.symmetricDifference(tb));
+		assertEquals(Sets.symmetricDifference(a, b).size(), ta.symmetricDifference(tb).size());
+	}
+
+	@Test
+	public void setOperationsReuseUnchangedSets() {
+		TTTSet<Integer> big = TTTSet.of(randomInts(1000, 5000));
+		TTTSet<Integer> sub = big.delete(big.iterator().next());
+		TTTSet<Integer> empty = TTTSet.of();
+		assertTrue(big==big.union(sub));
+		assertTrue(big==sub.union(big));
+		assertTrue(big==big.union(empty));
+		assertTrue(sub==big.intersection(sub));
+		assertTrue(sub==sub.intersection(big));
+		assertTrue(big==big.difference(empty));
+		assertTrue(big==big.symmetricDifference(empty));
+	}
+
+	@Test
+	public void navigation() {
+		TreeSet<Integer> expected = new TreeSet<>();
+		for (Integer d : randomInts(300, 1000)) {
+			expected.add(d*2);
+		}
+		TTTSet<Integer> set = TTTSet.copyOfSorted(expected);
+		assertNavigation(expected, set);
+		assertNavigation(expected.descendingSet(), set.descendingSet());
+		for (int i = 0; i < 100; i++) {
+			int from = random.nextInt(2100)-50;
+			int to = from + random.nextInt(500);
+			boolean fromInclusive = random.nextBoolean();
+			boolean toInclusive = random.nextBoolean();
+			assertNavigation(expected.subSet(from, fromInclusive, to, toInclusive), set.subSet(from, fromInclusive, to, toInclusive));
+			assertNavigation(expected.headSet(to, toInclusive), set.headSet(to, toInclusive));
+			assertNavigation(expected.tailSet(from, fromInclusive), set.tailSet(from, fromInclusive));
+			assertNavigation(expected.descendingSet().subSet(to, toInclusive, from, fromInclusive), set.descendingSet().subSet(to, toInclusive, from, fromInclusive));
+			assertNavigation(expected.descendingSet().tailSet(from, fromInclusive), set.descendingSet().tailSet(from, fromInclusive));
+		}
+	}
+
+	private void assertNavigation(NavigableSet<Integer> expected, NavigableSet<Integer> set) {
+		assertEquals(expected, set);
+		assertEquals(expected.size(), set.size());
+		assertEquals(new ArrayList<>(expected), new ArrayList<>(set));
+		assertEquals(ImmutableList.copyOf(expected.descendingIterator()), ImmutableList.copyOf(set.descendingIterator()));
+		if (!expected.isEmpty()) {
+			assertEquals(expected.first(), set.first());
+			assertEquals(expected.last(), set.last());
+		}
+		for (int k = -10; k < 2010; k+=3) {
+			assertEquals(expected.floor(k), set.floor(k));
+			assertEquals(expected.lower(k), set.lower(k));
+			assertEquals(expected.ceiling(k), set.ceiling(k));
+			assertEquals(expected.higher(k), set.higher(k));
+		}
+	}
+
+	@Test
+	public void treeBackedContains() {
+		TreeSet<Integer> expected = new TreeSet<>(Arrays.asList(randomInts(300, 1000)));
+		TTTSet<Integer> set = TTTSet.copyOfSorted(expected);
+		for (int d = -5; d < 1005; d++) {
+			assertEquals(expected.contains(d), set.contains(d));
+			assertEquals(expected.contains(d), set.descendingSet().contains(d));
+		}
+		assertFalse(set.contains("not an integer"));
+		assertFalse(set.contains(null));
+		assertFalse(set.removeAll(TTTSet.of(-1, -2)));
+		assertFalse(set.retainAll(set.insert(-1)));
+		assertFalse(set.remove(-1));
+	}
+
+	@Test
+	public void parallelStream() {
+		TreeSet<Integer> expected = new TreeSet<>(Arrays.asList(randomInts(5000, 100000)));
+		TTTSet<Integer> set = TTTSet.copyOfSorted(expected);
+		assertEquals(new ArrayList<>(expected), set.parallelStream().collect(Collectors.toList()));
+		assertEquals(expected.stream().mapToLong(i -> i).sum(), set.parallelStream().mapToLong(i -> i).sum());
+		assertEquals(expected.size(), set.parallelStream().filter(i -> true).count());
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void retainAllIsUnsupported() {
+		TTTSet.of(1, 2, 3).retainAll(TTTSet.of(1, 2));
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void removeIfIsUnsupported() {
+		TTTSet<Integer> set = TTTSet.of(1, 2, 3);
+		assertFalse(set.removeIf(e -> e>3));
+		set.removeIf(e -> e==2);
+	}
+
+	@Test
+	public void retainAllWithPredicate() {
+		TreeSet<Integer> expected = new TreeSet<>(Arrays.asList(randomInts(1000, 3000)));
+		TTTSet<Integer> set = TTTSet.copyOfSorted(expected);
+		assertTrue(set==set.retainAll(e -> e>=0));
+		TTTSet<Integer> even = set.retainAll(e -> e%2==0);
+		expected.removeIf(e -> e%2!=0);
+		assertEquals(expected, even);
+		assertEquals(expected.size(), even.size());
+		assertTrue(set.retainAll(e -> false).isEmpty());
+	}
+
+	@Test
+	public void equalsAndHashCode() {
+		TreeSet<Integer> expected = new TreeSet<>(Arrays.asList(randomInts(300, 1000)));
+		TTTSet<Integer> set = TTTSet.copyOfSorted(expected);
+		TTTSet<Integer> other = TTTSet.of(expected.toArray(new Integer[expected.size()]));
+		assertEquals(set, other);
+		assertEquals(expected, set);
+		assertEquals(set, expected);
+		assertEquals(expected.hashCode(), set.hashCode());
+		assertNotEquals(set, other.delete(expected.first()).insert(-1));
+		TTTSet<Integer> union = set.union(TTTSet.of(-1, -2));
+		expected.addAll(Arrays.asList(-1, -2));
+		assertEquals(expected.hashCode(), union.hashCode());
+		assertEquals(expected.hashCode(), union.descendingSet().hashCode());
+	}
+
+	@Test
+	public void keySetEqualsAndHashCode() {
+		TTTMap<String, Integer> map = new TTTMap<String, Integer>().insert("a", 1).insert("b", 2);
+		TTTSet<String> set = TTTSet.of("a", "b");
+		assertEquals(ImmutableSet.of("a", "b").hashCode(), map.keySet().hashCode());
+		assertEquals(set, map.keySet());
+		assertEquals(map.keySet(), set);
+		assertEquals(map.keySet(), map.insert("a", 3).keySet());
+		assertNotEquals(map.keySet(), TTTSet.of("a", "c"));
+		assertEquals(ImmutableSet.of("a", "b", "c").hashCode(), map.keySet().insert("c").hashCode());
+	}
+
+	@Test
+	public void copyOfSorted() {
+		TreeSet<Integer> sorted = new TreeSet<>(Comparator.reverseOrder());
+		for (Integer d : randomInts(1000, 2000)) {
+			sorted.add(d);
+		}
+		TTTSet<Integer> set = TTTSet.copyOfSorted(sorted);
+		assertEquals(sorted, set);
+		assertEquals(sorted.size(), set.size());
+		assertEquals(new ArrayList<>(sorted), new ArrayList<>(set));
+		assertEquals(sorted.comparator(), set.comparator());
+	}
+
+	@Test
+	public void comparator() {
+		TreeSet<String> expected = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+		TTTSet<String> set = new TTTSet<>(String.CASE_INSENSITIVE_ORDER);
+		for (String s : ImmutableList.of("b", "A", "c", "B", "a", "D")) {
+			expected.add(s);
+			set = set.insert(s);
+		}
+		assertEquals(new ArrayList<>(expected), new ArrayList<>(set));
+		assertTrue(set.contains("d"));
+		assertEquals("c", set.higher("B"));
+		assertEquals(new ArrayList<>(expected.headSet("C")), new ArrayList<>(set.headSet("C")));
+
+		//Set operations with a set in a different order
+		TTTSet<String> natural = TTTSet.of("a", "e", "D");
+		TTTSet<String> union = set.union(natural);
+		assertEquals(String.CASE_INSENSITIVE_ORDER, union.comparator());
+		assertEquals(ImmutableList.of("b", "c", "D", "e"), new ArrayList<>(union).subList(1, 5));
+		assertEquals(ImmutableList.of("b", "c"), new ArrayList<>(set.difference(natural)));
+		//In the natural order of the other set, "a" and "A" are different elements
+		assertEquals(ImmutableList.of("a", "e"), new ArrayList<>(natural.difference(set)));
+	}
+
+	@Test
+	public void nullElementWithComparator() {
+		TTTSet<String> set = new TTTSet<String>(Comparator.nullsFirst(Comparator.naturalOrder())).insert("a").insert(null);
+		assertFalse(set.spliterator().hasCharacteristics(Spliterator.NONNULL));
+		assertEquals(Arrays.asList(null, "a"), set.stream().collect(Collectors.toList()));
+		assertTrue(TTTSet.of("a").spliterator().hasCharacteristics(Spliterator.NONNULL));
+	}
+
 	@Test
 	public void emptySet() {
 		MutableSet<String> set = createEmptySet();
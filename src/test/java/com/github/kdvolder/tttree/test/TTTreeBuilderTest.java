@@ -0,0 +1,113 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.TTTMap;
+import com.github.kdvolder.tttree.TTTree;
+import com.github.kdvolder.tttree.TTTreeBuilder;
+
+public class TTTreeBuilderTest extends RandomTestUtils {
+
+	@Test
+	public void randomBatches() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (int batch = 0; batch < 20; batch++) {
+			Map<Integer, String> before = new TreeMap<>(shadow);
+			TTTree<Integer, String> treeBefore = tree;
+
+			TTTreeBuilder<Integer, String> builder = tree.asTransient();
+			for (int i = 0; i < 200; i++) {
+				int key = random.nextInt(500);
+				if (random.nextInt(3)==0) {
+					builder.remove(key);
+					shadow.remove(key);
+				} else {
+					String val = ""+random.nextInt(500);
+					builder.put(key, val);
+					shadow.put(key, val);
+				}
+				assertEquals(shadow.size(), builder.size());
+				assertEquals(shadow.get(key), builder.get(key));
+			}
+			tree = builder.persistent();
+
+			assertEquals(shadow, new TTTMap<>(tree));
+			assertEquals(shadow.size(), tree.size());
+			assertEquals(shadow.hashCode(), new TTTMap<>(tree).hashCode());
+			assertEquals(shadow.keySet().hashCode(), new TTTMap<>(tree).keySet().hashCode());
+			//The tree the builder started from must not have been affected
+			assertEquals(before, new TTTMap<>(treeBefore));
+			assertEquals(before.size(), treeBefore.size());
+		}
+	}
+
+	@Test
+	public void persistentTreeIsNotAffectedByLaterBuilders() {
+		TTTreeBuilder<Integer, String> builder = TTTree.<Integer, String>empty().asTransient();
+		for (int i = 0; i < 100; i++) {
+			builder.put(i, ""+i);
+		}
+		TTTree<Integer, String> tree = builder.persistent();
+		TTTree<Integer, String> copy = tree.put(1000, "1000");
+
+		TTTreeBuilder<Integer, String> other = tree.asTransient();
+		for (int i = 0; i < 100; i+=2) {
+			other.remove(i);
+		}
+		assertEquals(50, other.persistent().size());
+		assertEquals(100, tree.size());
+		assertEquals(101, copy.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(""+i, tree.get(i));
+			assertEquals(""+i, copy.get(i));
+		}
+	}
+
+	@Test
+	public void noChangesReturnsSameTree() {
+		TTTree<Integer, String> tree = TTTree.<Integer, String>empty().put(1, "1").put(2, "2").put(3, "3");
+		TTTreeBuilder<Integer, String> builder = tree.asTransient();
+		builder.put(2, "2");
+		builder.remove(4);
+		assertTrue(tree==builder.persistent());
+	}
+
+	@Test
+	public void removeAllAndRefill() {
+		TTTreeBuilder<Integer, String> builder = TTTree.<Integer, String>empty().asTransient();
+		Integer[] keys = randomInts(2000);
+		for (Integer k : keys) {
+			builder.put(k, ""+k);
+		}
+		for (Integer k : keys) {
+			builder.remove(k);
+		}
+		assertTrue(builder.isEmpty());
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(2000, 1000)) {
+			builder.put(k, ""+k);
+			shadow.put(k, ""+k);
+		}
+		TTTree<Integer, String> tree = builder.persistent();
+		//All nodes of the result must be persistent ones, which support every operation
+		assertEquals(shadow, new TTTMap<>(tree));
+		assertEquals(shadow.headMap(500), new TTTMap<>(tree.split(500).getLeft()));
+		assertEquals(shadow.firstKey(), tree.getEntryAt(0).getKey());
+		assertEquals(shadow, new TTTMap<>(tree.filter((k, v) -> true)));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void cannotUseAfterPersistent() {
+		TTTreeBuilder<Integer, String> builder = TTTree.<Integer, String>empty().asTransient();
+		builder.put(1, "1");
+		builder.persistent();
+		builder.put(2, "2");
+	}
+}
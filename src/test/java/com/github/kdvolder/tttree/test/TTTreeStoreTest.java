@@ -0,0 +1,153 @@
+package com.github.kdvolder.tttree.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.Codecs;
+import com.github.kdvolder.tttree.TTTreeStore;
+
+public class TTTreeStoreTest extends RandomTestUtils {
+
+	private Path dir;
+	private Path file;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("store");
+		file = dir.resolve("data.ttt");
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path f : (Iterable<Path>) files::iterator) {
+				Files.delete(f);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void randomPutsAndRemoves() throws IOException {
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		//A tiny cache, so that most nodes are read back from the file
+		try (TTTreeStore<Integer, String> store = TTTreeStore.open(file, null, Codecs.INT, Codecs.STRING, 16)) {
+			for (int i = 0; i < 5000; i++) {
+				int k = random.nextInt(1000);
+				if (random.nextInt(3)==0) {
+					assertEquals(expected.containsKey(k), store.remove(k));
+					expected.remove(k);
+				} else {
+					store.put(k, "v"+i);
+					expected.put(k, "v"+i);
+				}
+				assertEquals(expected.size(), store.size());
+			}
+			assertEquals(new ArrayList<>(expected.entrySet()), toList(store));
+			for (int k = -1; k <= 1000; k++) {
+				assertEquals(expected.get(k), store.get(k));
+				assertEquals(expected.containsKey(k), store.containsKey(k));
+			}
+			List<Integer> keys = new ArrayList<>(expected.keySet());
+			Collections.shuffle(keys, random);
+			for (Integer k : keys) {
+				assertTrue(store.remove(k));
+			}
+			assertTrue(store.isEmpty());
+			assertFalse(store.iterator().hasNext());
+			assertFalse(store.remove(1));
+		}
+	}
+
+	@Test
+	public void commitAndReopen() throws IOException {
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		try (TTTreeStore<Integer, String> store = TTTreeStore.open(file, Codecs.INT, Codecs.STRING)) {
+			assertTrue(store.isEmpty());
+			for (Integer k : randomInts(2000)) {
+				store.put(k, ""+k);
+				expected.put(k, ""+k);
+			}
+			store.commit();
+			//Not committed, so lost when the store is closed
+			store.put(-1, "lost");
+			store.remove(expected.firstKey());
+		}
+		try (TTTreeStore<Integer, String> store = TTTreeStore.open(file, null, Codecs.INT, Codecs.STRING, 100)) {
+			assertEquals(expected.size(), store.size());
+			assertEquals(new ArrayList<>(expected.entrySet()), toList(store));
+			assertNull(store.get(-1));
+			store.put(-1, "kept");
+			store.commit();
+		}
+		try (TTTreeStore<Integer, String> store = TTTreeStore.open(file, Codecs.INT, Codecs.STRING)) {
+			assertEquals("kept", store.get(-1));
+			assertEquals(expected.size()+1, store.size());
+		}
+	}
+
+	@Test
+	public void reopenWithoutCommit() throws IOException {
+		try (TTTreeStore<Integer, String> store = TTTreeStore.open(file, Codecs.INT, Codecs.STRING)) {
+			for (Integer k : randomInts(2000)) {
+				store.put(k, ""+k);
+			}
+		}
+		try (TTTreeStore<Integer, String> store = TTTreeStore.open(file, Codecs.INT, Codecs.STRING)) {
+			assertTrue(store.isEmpty());
+		}
+	}
+
+	@Test
+	public void otherFileIsNotOverwritten() throws IOException {
+		byte[] data = "Some other data, which is not a store".getBytes(StandardCharsets.UTF_8);
+		Files.write(file, data);
+		try {
+			TTTreeStore.open(file, Codecs.INT, Codecs.STRING).close();
+			assertTrue(false);
+		} catch (StreamCorruptedException e) {
+			//expected
+		}
+		assertArrayEquals(data, Files.readAllBytes(file));
+	}
+
+	@Test
+	public void iteratorSeesSnapshot() throws IOException {
+		try (TTTreeStore<Integer, String> store = TTTreeStore.open(file, Codecs.INT, Codecs.STRING)) {
+			for (int k = 0; k < 100; k++) {
+				store.put(k, ""+k);
+			}
+			Iterator<Entry<Integer, String>> entries = store.iterator();
+			for (int k = 0; k < 100; k += 2) {
+				store.remove(k);
+			}
+			int count = 0;
+			while (entries.hasNext()) {
+				assertEquals(count, entries.next().getKey().intValue());
+				count++;
+			}
+			assertEquals(100, count);
+			assertEquals(50, store.size());
+		}
+	}
+}
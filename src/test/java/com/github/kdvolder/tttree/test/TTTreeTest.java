@@ -1,6 +1,41 @@
 package com.github.kdvolder.tttree.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.TypeVariable;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Spliterator;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+
+import com.github.kdvolder.tttree.BTree;
+import com.github.kdvolder.tttree.DiffListener;
+import com.github.kdvolder.tttree.LsmTTTMap;
+import com.github.kdvolder.tttree.MappedTTTree;
+import com.github.kdvolder.tttree.TTTMap;
+import com.github.kdvolder.tttree.TTTSet;
 import com.github.kdvolder.tttree.TTTree;
+import com.github.kdvolder.tttree.TTTree.Split;
+import com.github.kdvolder.tttree.TTTreeBuilder;
+import com.github.kdvolder.tttree.TTTreeStore;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 public class TTTreeTest extends AbstractMapTestTemplate {
 
@@ -8,4 +43,495 @@ public class TTTreeTest extends AbstractMapTestTemplate {
 	protected <K extends Comparable<K>, V> MutableMap<K, V> createEmptyMap() {
 		return MutableMap.<K,V>from(TTTree.empty());
 	}
+
+	@Test
+	public void sizeRankAndSelect() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(500, 1000)) {
+			tree = tree.put(k, ""+k);
+			shadow.put(k, ""+k);
+			assertEquals(shadow.size(), tree.size());
+		}
+		List<Integer> keys = new ArrayList<>(shadow.keySet());
+		for (int i = 0; i < keys.size(); i++) {
+			Integer k = keys.get(i);
+			assertEquals(i, tree.rank(k));
+			assertEquals(k, tree.getKeyAt(i));
+			assertEquals(k, tree.getEntryAt(i).getKey());
+			assertEquals(shadow.get(k), tree.getEntryAt(i).getValue());
+		}
+		for (int k = -1; k <= 1001; k++) {
+			assertEquals(shadow.headMap(k).size(), tree.rank(k));
+		}
+		for (Integer k : keys) {
+			tree = tree.remove(k);
+			shadow.remove(k);
+			assertEquals(shadow.size(), tree.size());
+		}
+		assertEquals(0, tree.size());
+		assertEquals(0, tree.rank(5));
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void getEntryAtOutOfBounds() {
+		TTTree<Integer, String> tree = TTTree.<Integer, String>empty().put(1, "1");
+		tree.getEntryAt(1);
+	}
+
+	@Test
+	public void indexedIterator() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(300, 1000)) {
+			tree = tree.put(k, ""+k);
+			shadow.put(k, ""+k);
+		}
+		List<Integer> keys = new ArrayList<>(shadow.keySet());
+		for (int from = 0; from <= keys.size(); from++) {
+			Iterator<Entry<Integer, String>> iter = tree.iterator(from);
+			for (int i = from; i < keys.size(); i++) {
+				assertEquals(keys.get(i), iter.next().getKey());
+			}
+			assertFalse(iter.hasNext());
+		}
+		assertFalse(TTTree.<Integer,String>empty().iterator(0).hasNext());
+	}
+
+	@Test
+	public void iteration() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(500, 1000)) {
+			tree = tree.put(k, ""+k);
+			shadow.put(k, ""+k);
+		}
+		List<Entry<Integer, String>> expected = new ArrayList<>(shadow.entrySet());
+
+		List<Entry<Integer, String>> actual = new ArrayList<>();
+		tree.forEach(actual::add);
+		assertEquals(expected, actual);
+
+		actual.clear();
+		tree.forEachEntry((k, v) -> actual.add(new SimpleEntry<>(k, v)));
+		assertEquals(expected, actual);
+
+		for (int skip = 0; skip <= expected.size(); skip += 7) {
+			Iterator<Entry<Integer, String>> iter = tree.iterator();
+			actual.clear();
+			for (int i = 0; i < skip; i++) {
+				actual.add(iter.next());
+			}
+			iter.forEachRemaining(actual::add);
+			assertEquals(expected, actual);
+			assertFalse(iter.hasNext());
+		}
+
+		actual.clear();
+		tree.descendingIterator().forEachRemaining(actual::add);
+		assertEquals(new ArrayList<>(shadow.descendingMap().entrySet()), actual);
+	}
+
+	@Test
+	public void spliterator() {
+		for (int n = 0; n < 300; n += 13) {
+			TTTree<Integer, String> tree = TTTree.empty();
+			List<Entry<Integer, String>> expected = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				tree = tree.put(i, ""+i);
+				expected.add(new SimpleEntry<>(i, ""+i));
+			}
+			Spliterator<Entry<Integer, String>> split = tree.spliterator();
+			assertTrue(split.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.SORTED | Spliterator.DISTINCT));
+			List<Entry<Integer, String>> actual = new ArrayList<>();
+			collectSplits(split, actual);
+			assertEquals(expected, actual);
+
+			assertEquals(expected, StreamSupport.stream(tree.spliterator(), true).collect(Collectors.toList()));
+			assertEquals(n*(n-1)/2, StreamSupport.stream(tree.spliterator(), true).mapToInt(Entry::getKey).sum());
+		}
+	}
+
+	/**
+	 * Split a spliterator recursively, checking that the parts have the exact sizes they claim
+	 * and are balanced.
+	 */
+	private static <T> void collectSplits(Spliterator<T> split, List<T> collector) {
+		long size = split.estimateSize();
+		Spliterator<T> prefix = split.trySplit();
+		if (prefix==null) {
+			assertTrue(size<=1);
+			split.forEachRemaining(collector::add);
+		} else {
+			assertEquals(size, prefix.estimateSize()+split.estimateSize());
+			assertTrue(prefix.estimateSize() > 0 && split.estimateSize() > 0);
+			assertTrue(Math.max(prefix.estimateSize(), split.estimateSize()) <= 3 * Math.min(prefix.estimateSize(), split.estimateSize()) + 2);
+			collectSplits(prefix, collector);
+			collectSplits(split, collector);
+		}
+	}
+
+	@Test
+	public void bulkOperations() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(3000, 10000)) {
+			tree = tree.put(k, ""+k);
+			shadow.put(k, ""+k);
+		}
+		for (int threshold : new int[] {1, 100, Integer.MAX_VALUE}) {
+			TreeMap<Integer, Integer> expectedLengths = new TreeMap<>();
+			shadow.forEach((k, v) -> expectedLengths.put(k, v.length()));
+			assertEquals(expectedLengths, new TTTMap<>(tree.mapValues(String::length, threshold)));
+			assertTrue(tree==tree.mapValues(v -> v, threshold));
+
+			TreeMap<Integer, String> expectedOdd = new TreeMap<>();
+			shadow.forEach((k, v) -> { if (k%2==1) expectedOdd.put(k, v); });
+			TTTree<Integer, String> odd = tree.filter((k, v) -> k%2==1, threshold);
+			assertEquals(expectedOdd, new TTTMap<>(odd));
+			assertEquals(expectedOdd.size(), odd.size());
+			for (Integer k : shadow.keySet()) {
+				odd = odd.put(k, "x"); //Should still be a well-formed tree
+			}
+			assertEquals(shadow.size(), odd.size());
+			assertTrue(tree==tree.filter((k, v) -> true, threshold));
+			assertTrue(tree.filter((k, v) -> false, threshold).isEmpty());
+
+			String expectedConcat = String.join("", shadow.values());
+			assertEquals(expectedConcat, tree.reduce("", (s, e) -> s+e.getValue(), String::concat, threshold));
+			assertEquals(expectedConcat, tree.fold("", (s, e) -> s+e.getValue()));
+			long expectedSum = shadow.keySet().stream().mapToLong(k -> k).sum();
+			assertEquals((Long)expectedSum, tree.reduce(0L, (sum, e) -> sum+e.getKey(), Long::sum, threshold));
+		}
+		assertEquals((Integer)0, TTTree.<Integer, String>empty().reduce(0, (sum, e) -> sum+e.getKey(), Integer::sum));
+	}
+
+	@Test
+	public void readModifyWrite() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (int i = 0; i < 5000; i++) {
+			int k = random.nextInt(60);
+			String v = random.nextInt(10)==0 ? null : ""+random.nextInt(3);
+			TreeMap<Integer, String> before = new TreeMap<>(shadow);
+			TTTree<Integer, String> previous = tree;
+			switch (random.nextInt(8)) {
+			case 0:
+				tree = tree.compute(k, (key, old) -> v);
+				shadow.compute(k, (key, old) -> v);
+				break;
+			case 1:
+				tree = tree.computeIfAbsent(k, key -> v);
+				shadow.computeIfAbsent(k, key -> v);
+				break;
+			case 2:
+				tree = tree.computeIfPresent(k, (key, old) -> v==null ? null : old+v);
+				shadow.computeIfPresent(k, (key, old) -> v==null ? null : old+v);
+				break;
+			case 3:
+				tree = tree.merge(k, "m", (old, value) -> old.length()>3 ? null : old+value);
+				shadow.merge(k, "m", (old, value) -> old.length()>3 ? null : old+value);
+				break;
+			case 4:
+				tree = tree.putIfAbsent(k, v);
+				if (v!=null) {
+					shadow.putIfAbsent(k, v);
+				}
+				break;
+			case 5:
+				tree = tree.replace(k, v);
+				shadow.replace(k, v);
+				break;
+			case 6:
+				tree = tree.replace(k, "1", v);
+				shadow.replace(k, "1", v);
+				break;
+			default:
+				tree = tree.put(k, v);
+				shadow.put(k, v);
+			}
+			assertEquals(shadow, new TTTMap<>(tree));
+			assertEquals(shadow.size(), tree.size());
+			assertEquals(before.equals(shadow), tree==previous);
+		}
+	}
+
+	@Test
+	public void nullValues() {
+		TTTree<Integer, String> tree = TTTree.<Integer, String>empty().put(1, "1").put(2, null);
+		assertTrue(tree==tree.putIfAbsent(3, null));
+		assertTrue(tree==tree.putIfAbsent(2, null));
+		assertEquals("2", tree.putIfAbsent(2, "2").get(2));
+		try {
+			tree.merge(1, null, (old, value) -> old);
+			assertTrue(false);
+		} catch (NullPointerException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void setOperationsWithNullValues() {
+		TTTree<Integer, String> a = TTTree.<Integer, String>empty().put(1, null).put(2, "x");
+		TTTree<Integer, String> b = TTTree.<Integer, String>empty().put(1, "y").put(3, "z");
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		expected.put(1, null);
+		expected.put(2, "x");
+		expected.put(3, "z");
+		assertEquals(expected, new TTTMap<>(a.union(b)));
+		expected.put(1, "y");
+		expected.put(2, null);
+		assertEquals(expected, new TTTMap<>(b.union(a.put(2, null))));
+		assertTrue(a==a.union(a.remove(2)));
+
+		TreeMap<Integer, String> common = new TreeMap<>();
+		common.put(1, null);
+		assertEquals(common, new TTTMap<>(a.intersection(b)));
+		common.put(1, "y");
+		assertEquals(common, new TTTMap<>(b.intersection(a)));
+
+		TTTSet<Integer> keys = new TTTMap<Integer, String>().insert(1, null).insert(2, "a").keySet();
+		assertEquals(ImmutableSet.of(1, 2, 5), keys.union(TTTSet.of(1, 5)));
+		assertEquals(ImmutableSet.of(1), keys.intersection(TTTSet.of(1, 5)));
+	}
+
+	@Test
+	public void removeIf() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(3000, 10000)) {
+			tree = tree.put(k, ""+k);
+			shadow.put(k, ""+k);
+		}
+		assertTrue(tree==tree.removeIf((k, v) -> k<0));
+		TTTree<Integer, String> pruned = tree.removeIf((k, v) -> k%7==0 || v.endsWith("3"));
+		shadow.entrySet().removeIf(e -> e.getKey()%7==0 || e.getValue().endsWith("3"));
+		assertEquals(shadow, new TTTMap<>(pruned));
+		assertEquals(shadow.size(), pruned.size());
+
+		//Removing a single matching entry
+		Integer someKey = shadow.firstKey();
+		TTTree<Integer, String> one = pruned.removeIf((k, v) -> k.equals(someKey));
+		List<String> changes = new ArrayList<>();
+		pruned.diff(one, new DiffListener<Integer, String>() {
+			@Override
+			public void removed(Integer k, String v) {
+				changes.add("-"+k);
+			}
+		});
+		assertEquals(ImmutableList.of("-"+someKey), changes);
+		assertTrue(pruned.removeIf((k, v) -> true).isEmpty());
+	}
+
+	@Test
+	public void removeIfRunsOnCallingThread() {
+		TTTreeBuilder<Integer, String> builder = TTTree.<Integer, String>empty().asTransient();
+		for (int k = 0; k < 100000; k++) {
+			builder.put(k, ""+k);
+		}
+		TTTree<Integer, String> tree = builder.persistent();
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		TTTree<Integer, String> pruned = tree.removeIf((k, v) -> {
+			threads.add(Thread.currentThread());
+			return k%2==0;
+		});
+		assertEquals(50000, pruned.size());
+		new TTTMap<>(tree).removeIf((k, v) -> threads.add(Thread.currentThread()));
+		TTTSet.copyOfSorted(new TTTMap<>(tree).navigableKeySet()).retainAll(k -> threads.add(Thread.currentThread()));
+		assertEquals(ImmutableSet.of(Thread.currentThread()), threads);
+	}
+
+	@Test
+	public void diff() {
+		TTTree<Integer, String> base = TTTree.empty();
+		TreeMap<Integer, String> baseShadow = new TreeMap<>();
+		for (Integer k : randomInts(2000, 5000)) {
+			base = base.put(k, ""+k);
+			baseShadow.put(k, ""+k);
+		}
+		for (int changes : new int[] { 0, 1, 10, 300 }) {
+			TTTree<Integer, String> tree = base;
+			TreeMap<Integer, String> shadow = new TreeMap<>(baseShadow);
+			for (int i = 0; i < changes; i++) {
+				int k = random.nextInt(5000);
+				if (random.nextBoolean()) {
+					tree = tree.remove(k);
+					shadow.remove(k);
+				} else {
+					String v = random.nextBoolean() ? ""+k : "changed";
+					tree = tree.put(k, v);
+					shadow.put(k, v);
+				}
+			}
+			List<String> expected = new ArrayList<>();
+			for (int k = 0; k < 5000; k++) {
+				String oldValue = baseShadow.get(k);
+				String newValue = shadow.get(k);
+				if (oldValue==null && newValue!=null) {
+					expected.add("+"+k+"="+newValue);
+				} else if (oldValue!=null && newValue==null) {
+					expected.add("-"+k+"="+oldValue);
+				} else if (oldValue!=null && !oldValue.equals(newValue)) {
+					expected.add("*"+k+"="+oldValue+"->"+newValue);
+				}
+			}
+			List<String> actual = new ArrayList<>();
+			base.diff(tree, new DiffListener<Integer, String>() {
+				@Override
+				public void added(Integer k, String v) {
+					actual.add("+"+k+"="+v);
+				}
+				@Override
+				public void removed(Integer k, String v) {
+					actual.add("-"+k+"="+v);
+				}
+				@Override
+				public void changed(Integer k, String oldValue, String newValue) {
+					actual.add("*"+k+"="+oldValue+"->"+newValue);
+				}
+			});
+			assertEquals(expected, actual);
+
+			List<Integer> removed = new ArrayList<>();
+			tree.diff(TTTree.empty(), new DiffListener<Integer, String>() {
+				@Override
+				public void removed(Integer k, String v) {
+					removed.add(k);
+				}
+			});
+			assertEquals(new ArrayList<>(shadow.keySet()), removed);
+		}
+	}
+
+	@Test
+	public void fromSorted() {
+		for (int n = 0; n < 100; n++) {
+			TreeMap<Integer, String> shadow = new TreeMap<>();
+			for (int i = 0; i < n; i++) {
+				shadow.put(i*2, ""+i);
+			}
+			TTTree<Integer, String> tree = TTTree.fromSorted(shadow.entrySet().iterator());
+			assertEquals(n, tree.size());
+			assertEquals(shadow, new TTTMap<>(tree));
+			//The tree should be usable as any other tree
+			for (int i = 0; i <= n; i++) {
+				tree = tree.put(i*2+1, "odd");
+			}
+			for (int i = 0; i < n; i++) {
+				tree = tree.remove(i*2);
+			}
+			assertEquals(n+1, tree.size());
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void fromSortedRejectsDuplicates() {
+		TTTree.fromSorted(ImmutableList.of(
+				new SimpleEntry<>(1, "a"),
+				new SimpleEntry<>(1, "b")
+		).iterator());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void fromSortedRejectsUnsorted() {
+		TTTree.fromSorted(ImmutableList.of(
+				new SimpleEntry<>(2, "a"),
+				new SimpleEntry<>(1, "b")
+		).iterator());
+	}
+
+	@Test
+	public void fromSortedMergesDuplicates() {
+		TTTree<Integer, String> tree = TTTree.fromSorted(ImmutableList.of(
+				new SimpleEntry<>(1, "a"),
+				new SimpleEntry<>(1, "b"),
+				new SimpleEntry<>(2, "c"),
+				new SimpleEntry<>(2, "d"),
+				new SimpleEntry<>(2, "e")
+		).iterator(), String::concat);
+		assertEquals(2, tree.size());
+		assertEquals("ab", tree.get(1));
+		assertEquals("cde", tree.get(2));
+	}
+
+	@Test
+	public void naturalOrderFactoriesRequireComparableKeys() {
+		ImmutableSet<String> factories = ImmutableSet.of("empty", "fromSorted", "readFrom", "open");
+		int checked = 0;
+		for (Class<?> c : ImmutableList.of(TTTree.class, TTTMap.class, TTTSet.class, BTree.class,
+				MappedTTTree.class, TTTreeStore.class, LsmTTTMap.class)) {
+			for (Method m : c.getMethods()) {
+				if (Modifier.isStatic(m.getModifiers()) && factories.contains(m.getName())
+						&& !Arrays.asList(m.getParameterTypes()).contains(Comparator.class)) {
+					TypeVariable<Method> k = m.getTypeParameters()[0];
+					assertEquals(m.toString(), "java.lang.Comparable<"+k.getName()+">", k.getBounds()[0].getTypeName());
+					checked++;
+				}
+			}
+		}
+		assertTrue(checked>=10);
+	}
+
+	@Test
+	public void split() {
+		TTTree<Integer, String> tree = TTTree.empty();
+		TreeMap<Integer, String> shadow = new TreeMap<>();
+		for (Integer k : randomInts(200, 1000)) {
+			tree = tree.put(k*2, ""+k);
+			shadow.put(k*2, ""+k);
+		}
+		for (int k = -1; k <= 2001; k++) {
+			Split<Integer, String> split = tree.split(k);
+			assertEquals(shadow.headMap(k), new TTTMap<>(split.getLeft()));
+			assertEquals(shadow.tailMap(k, false), new TTTMap<>(split.getRight()));
+			assertEquals(shadow.headMap(k).size(), split.getLeft().size());
+			assertEquals(shadow.tailMap(k, false).size(), split.getRight().size());
+			if (shadow.containsKey(k)) {
+				assertEquals((Integer)k, split.getEntry().getKey());
+				assertEquals(shadow.get(k), split.getEntry().getValue());
+			} else {
+				assertNull(split.getEntry());
+			}
+			//Joining the parts back together should give back the original tree's contents
+			TTTree<Integer, String> joined = TTTree.join(split.getLeft(), split.getRight());
+			if (split.getEntry()!=null) {
+				joined = joined.put(k, split.getEntry().getValue());
+			}
+			assertEquals(shadow, new TTTMap<>(joined));
+		}
+	}
+
+	@Test
+	public void join() {
+		for (int leftSize = 0; leftSize < 40; leftSize++) {
+			for (int rightSize = 0; rightSize < 40; rightSize++) {
+				TreeMap<Integer, String> shadow = new TreeMap<>();
+				TTTree<Integer, String> left = TTTree.empty();
+				for (int i = 0; i < leftSize; i++) {
+					left = left.put(i, ""+i);
+					shadow.put(i, ""+i);
+				}
+				TTTree<Integer, String> right = TTTree.empty();
+				for (int i = 1000; i < 1000+rightSize; i++) {
+					right = right.put(i, ""+i);
+					shadow.put(i, ""+i);
+				}
+				TTTree<Integer, String> joined = TTTree.join(left, right);
+				assertEquals(shadow, new TTTMap<>(joined));
+				assertEquals(leftSize+rightSize, joined.size());
+				//Check the tree is still usable as a normal tree
+				for (Integer k : shadow.keySet()) {
+					joined = joined.remove(k);
+				}
+				assertTrue(joined.isEmpty());
+			}
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void joinRejectsOverlappingTrees() {
+		TTTree<Integer, String> left = TTTree.<Integer,String>empty().put(1, "1").put(5, "5");
+		TTTree<Integer, String> right = TTTree.<Integer,String>empty().put(3, "3").put(7, "7");
+		TTTree.join(left, right);
+	}
 }